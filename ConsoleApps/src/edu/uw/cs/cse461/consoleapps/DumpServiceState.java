@@ -2,8 +2,12 @@ package edu.uw.cs.cse461.consoleapps;
 
 import java.util.List;
 
+import org.json.JSONException;
+
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.net.rpc.RPCService;
 
 /**
  * An application that prints the contents of the naming database used by the DDNS system. 
@@ -32,9 +36,29 @@ public class DumpServiceState extends NetLoadableConsoleApp {
 			NetLoadableService service = NetBase.theNetBase().getService(sName);
 			if ( service != null ) sb.append(service.dumpState()).append("\n");
 			else sb.append("\tNot loaded\n");
+			if ( service instanceof RPCService ) sb.append(_rpcMethodStats((RPCService)service));
+			if ( service instanceof RPCCall ) sb.append(_rpcClientStats((RPCCall)service));
 		}
 
 		return sb.toString();
 	}
 	
+	// The RPC service's per-method statistics in machine readable form, for tools that collect them
+	private String _rpcMethodStats(RPCService rpcService) {
+		try {
+			return "RPC method statistics (JSON):\n" + rpcService.methodStats().toString(2) + "\n";
+		} catch (JSONException e) {
+			return "Couldn't format RPC method statistics: " + e.getMessage() + "\n";
+		}
+	}
+	
+	// Likewise for the calls this node has made
+	private String _rpcClientStats(RPCCall rpcCall) {
+		try {
+			return "RPC client statistics (JSON):\n" + rpcCall.clientStats().toString(2) + "\n";
+		} catch (JSONException e) {
+			return "Couldn't format RPC client statistics: " + e.getMessage() + "\n";
+		}
+	}
+	
 }
@@ -18,6 +18,7 @@ import org.apache.commons.cli.PosixParser;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetBaseConsole;
 import edu.uw.cs.cse461.net.base.NetBaseInterface;
+import edu.uw.cs.cse461.util.BufferPool;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -148,6 +149,7 @@ public abstract class ConsoleStart implements NetBaseInterface {
 			Log.setShowLog(showDebug != 0);
 			int debugLevel = configMgr.getAsInt("debug.level", Log.DebugLevel.DEBUG.toInt());
 			Log.setLevel(debugLevel);
+			BufferPool.setDebug(configMgr.getAsInt("bufferpool.debug", 0) != 0);
 
 			//------------------------------------------------------------------------
 			// Initialize IPFinder
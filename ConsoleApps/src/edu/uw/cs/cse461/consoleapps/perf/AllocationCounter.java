@@ -0,0 +1,38 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reports the number of bytes of heap the JVM has allocated, summed over all live threads.
+ * Relies on the com.sun.management extension of ThreadMXBean, which HotSpot provides but
+ * other JVMs (Android's, in particular) may not.
+ * <p>
+ * Bytes allocated by threads that have exited are no longer counted, so a measurement
+ * is only meaningful over an interval during which the threads doing the work stay alive.
+ * 
+ * @author zahorjan
+ *
+ */
+class AllocationCounter {
+
+	/**
+	 * @return The total bytes allocated so far, or -1 if the JVM can't say.
+	 */
+	static long allocatedBytes() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if ( !(bean instanceof com.sun.management.ThreadMXBean) ) return -1;
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+			if ( !sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled() ) return -1;
+			long total = 0;
+			for ( long bytes : sunBean.getThreadAllocatedBytes(bean.getAllThreadIds()) ) {
+				if ( bytes > 0 ) total += bytes;
+			}
+			return total;
+		} catch (Throwable e) {
+			// NoClassDefFoundError where com.sun.management doesn't exist
+			return -1;
+		}
+	}
+}
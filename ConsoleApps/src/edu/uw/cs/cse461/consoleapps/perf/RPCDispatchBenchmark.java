@@ -0,0 +1,88 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.function.Function;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+
+/**
+ * Compares the cost of dispatching to an RPC handler method the way RPCCallableMethod
+ * used to, with Method.invoke(), against the ways it does now: through a handler bound
+ * once when the method is registered, and through a registered Function.
+ * <p>
+ * No messages are sent; only the call from the RPC service into the handler is timed.
+ * 
+ * @author zahorjan
+ *
+ */
+public class RPCDispatchBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="RPCDispatchBenchmark";
+	private static final int ROUNDS = 5;
+
+	private int mNCalls;
+	private volatile JSONObject mLastArgs;    // written on every call, so the JIT can't optimize the calls away
+	
+	// ConsoleApp's must have a constructor taking no arguments
+	public RPCDispatchBenchmark() {
+		super("rpcdispatchbench");
+	}
+
+	/**
+	 * The handler being called.  It does as little as possible, so that the dispatch cost dominates.
+	 */
+	public JSONObject _handler(JSONObject args) {
+		mNCalls++;
+		mLastArgs = args;
+		return args;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+
+			System.out.print("Enter number of calls per round [10000000]: ");
+			String nCallsStr = console.readLine();
+			if ( nCallsStr == null ) return;
+			int nCalls = nCallsStr.trim().isEmpty() ? 10000000 : Integer.parseInt(nCallsStr.trim());
+
+			final Method method = getClass().getMethod("_handler", JSONObject.class);
+			RPCCallableMethod bound = new RPCCallableMethod(this, "_handler");
+			RPCCallableMethod function = RPCCallableMethod.of(new Function<JSONObject,JSONObject>() {
+				@Override
+				public JSONObject apply(JSONObject args) {
+					return _handler(args);
+				}
+			});
+			JSONObject args = new JSONObject().put("payload", "x");
+
+			// the first rounds give the JIT a chance to compile each path
+			for ( int round = 0; round < ROUNDS; round++ ) {
+				long start = System.nanoTime();
+				for ( int i = 0; i < nCalls; i++ ) method.invoke(this, args);
+				double reflective = (System.nanoTime() - start) / (double)nCalls;
+
+				start = System.nanoTime();
+				for ( int i = 0; i < nCalls; i++ ) bound.handleCall(args);
+				double boundTime = (System.nanoTime() - start) / (double)nCalls;
+
+				start = System.nanoTime();
+				for ( int i = 0; i < nCalls; i++ ) function.handleCall(args);
+				double functionTime = (System.nanoTime() - start) / (double)nCalls;
+
+				System.out.println(String.format("Round %d: Method.invoke %.2f nsec/call, bound handler %.2f nsec/call, Function %.2f nsec/call",
+						round, reflective, boundTime, functionTime));
+			}
+			System.out.println(mNCalls + " calls made");
+
+		} catch (Exception e) {
+			System.out.println("RPCDispatchBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+}
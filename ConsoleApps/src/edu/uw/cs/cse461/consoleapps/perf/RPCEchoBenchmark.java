@@ -0,0 +1,102 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.service.EchoRPCService;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * Measures the cost of a small RPC: issues back-to-back echorpc.echo calls over a
+ * persistent connection and reports the call rate and the heap allocated per call.
+ * <p>
+ * The allocation figure covers every thread in this JVM, so it includes the RPC reader
+ * thread and, when the server is running in the same process, the server side of each
+ * call as well.
+ * 
+ * @author zahorjan
+ *
+ */
+public class RPCEchoBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="RPCEchoBenchmark";
+	private static final int WARMUP_CALLS = 2000;
+	
+	// ConsoleApp's must have a constructor taking no arguments
+	public RPCEchoBenchmark() {
+		super("rpcechobench");
+	}
+	
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			ConfigManager config = NetBase.theNetBase().config();
+
+			int timeout = config.getAsInt("net.timeout.socket", 5000);
+			
+			String targetIP = config.getProperty("net.server.ip");
+			if ( targetIP == null ) {
+				System.out.println("No net.server.ip entry in config file.");
+				System.out.print("Enter a server ip, or empty line to exit: ");
+				targetIP = console.readLine();
+				if ( targetIP == null || targetIP.trim().isEmpty() ) return;
+			}
+
+			System.out.print("Enter the server's RPC port, or empty line to exit: ");
+			String targetRPCPortStr = console.readLine();
+			if ( targetRPCPortStr == null || targetRPCPortStr.trim().isEmpty() ) return;
+			int targetRPCPort = Integer.parseInt(targetRPCPortStr.trim());
+
+			System.out.print("Enter number of calls: ");
+			String nCallsStr = console.readLine();
+			if ( nCallsStr == null || nCallsStr.trim().isEmpty() ) return;
+			int nCalls = Integer.parseInt(nCallsStr.trim());
+
+			System.out.print("Enter payload length in characters [0]: ");
+			String payloadStr = console.readLine();
+			int payloadLen = (payloadStr == null || payloadStr.trim().isEmpty()) ? 0 : Integer.parseInt(payloadStr.trim());
+
+			StringBuilder sb = new StringBuilder(payloadLen);
+			for ( int i = 0; i < payloadLen; i++ ) sb.append((char)('a' + i % 26));
+			String payload = sb.toString();
+
+			System.out.println("Host: " + targetIP + ", RPC port: " + targetRPCPort + ", payload: " + payloadLen + " chars");
+
+			// let the connection get established and the JIT settle before measuring
+			_echo(targetIP, targetRPCPort, payload, timeout, Math.min(WARMUP_CALLS, nCalls));
+
+			long startBytes = AllocationCounter.allocatedBytes();
+			long startTime = System.nanoTime();
+			_echo(targetIP, targetRPCPort, payload, timeout, nCalls);
+			long elapsed = System.nanoTime() - startTime;
+			long endBytes = AllocationCounter.allocatedBytes();
+
+			double msec = elapsed / 1000000.0;
+			System.out.println(String.format("%d calls in %.1f msec: %.0f calls/sec, %.1f usec/call",
+					nCalls, msec, nCalls / (msec / 1000.0), msec * 1000.0 / nCalls));
+			if ( startBytes < 0 || endBytes < 0 ) System.out.println("Allocation counts aren't available on this JVM");
+			else System.out.println(String.format("%.0f bytes allocated per call", (endBytes - startBytes) / (double)nCalls));
+
+		} catch (Exception e) {
+			System.out.println("RPCEchoBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	private void _echo(String ip, int port, String payload, int timeout, int nCalls) throws Exception {
+		JSONObject header = new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoRPCService.HEADER_STR);
+		for ( int i = 0; i < nCalls; i++ ) {
+			JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header)
+											  .put(EchoRPCService.PAYLOAD_KEY, payload);
+			JSONObject response = RPCCall.invoke(ip, port, "echorpc", "echo", args, timeout);
+			if ( response == null ) throw new IOException("RPC failed; response is null");
+			if ( !payload.equals(response.optString(EchoRPCService.PAYLOAD_KEY)) ) throw new IOException("Bad echo: " + response);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.service.DataXferRawService;
+import edu.uw.cs.cse461.service.EchoServiceBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * Measures how many packets per second the raw UDP services handle.
+ * <p>
+ * The transfer test asks dataxferraw's any size port for a number of packets of a given payload size,
+ * and reports the rate they arrive at, from the first to the last, and how many never came.  (The server
+ * ignores requests for more than its dataxferraw.server.udp.maxxfermb, 4MB by default.)  The echo
+ * test keeps a window of echoraw requests outstanding, sending another as each reply arrives, and
+ * reports the reply rate.  A request that gets no reply for 100 msec. counts as lost and is replaced.
+ * <p>
+ * The client reads with a non-blocking DatagramChannel, draining everything queued on each wakeup,
+ * into a buffer it reuses, and asks for large socket buffers, so that it can keep up with the server.
+ *
+ * @author zahorjan
+ *
+ */
+public class UDPPacketRateBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="UDPPacketRateBenchmark";
+	private static final int SOCKET_BUFFER = 8 << 20;
+	private static final int LOSS_TIMEOUT = 100;         // msec.
+	private static final int ECHO_WINDOW = 64;
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public UDPPacketRateBenchmark() {
+		super("udpratebench");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+			ConfigManager config = NetBase.theNetBase().config();
+
+			int timeout = config.getAsInt("net.timeout.socket", 5000);
+
+			String targetIP = config.getProperty("net.server.ip");
+			if ( targetIP == null ) {
+				System.out.println("No net.server.ip entry in config file.");
+				System.out.print("Enter a server ip, or empty line to exit: ");
+				targetIP = console.readLine();
+				if ( targetIP == null || targetIP.trim().isEmpty() ) return;
+			}
+
+			System.out.print("Enter number of packets [4000]: ");
+			String nPacketsStr = console.readLine();
+			if ( nPacketsStr == null ) return;
+			int nPackets = nPacketsStr.trim().isEmpty() ? 4000 : Integer.parseInt(nPacketsStr.trim());
+
+			System.out.print("Enter payload size in bytes [" + DataXferRawService.PAYLOAD_SIZE + "]: ");
+			String payloadStr = console.readLine();
+			if ( payloadStr == null ) return;
+			int payloadSize = payloadStr.trim().isEmpty() ? DataXferRawService.PAYLOAD_SIZE : Integer.parseInt(payloadStr.trim());
+
+			int basePort = config.getAsInt("dataxferraw.server.baseport", -1);
+			int xferPort = config.getAsInt("dataxferraw.server.port", basePort + DataXferRawService.NPORTS);
+			if ( basePort > 0 ) _transfer(new InetSocketAddress(targetIP, xferPort), nPackets, payloadSize, timeout);
+			else System.out.println("No dataxferraw.server.baseport entry in config file; skipping the transfer test");
+
+			System.out.print("Enter the echoraw UDP port, or empty line to skip the echo test: ");
+			String echoPortStr = console.readLine();
+			if ( echoPortStr == null || echoPortStr.trim().isEmpty() ) return;
+			_echo(new InetSocketAddress(targetIP, Integer.parseInt(echoPortStr.trim())), nPackets, payloadSize, timeout);
+
+		} catch (Exception e) {
+			System.out.println("UDPPacketRateBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Asks for nPackets packets of payloadSize bytes, and times their arrival.
+	 */
+	private void _transfer(SocketAddress server, int nPackets, int payloadSize, int timeout) throws IOException {
+		DatagramChannel channel = _open();
+		Selector selector = Selector.open();
+		try {
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer buf = ByteBuffer.allocateDirect(EchoServiceBase.RESPONSE_LEN + payloadSize);
+			channel.send(ByteBuffer.wrap(DataXferRawService.header((long)nPackets * payloadSize, payloadSize)), server);
+
+			int received = 0;
+			int wakeups = 0;
+			long first = 0;
+			long last = 0;
+			// wait as long as the socket timeout for the first packet, and then until the stream goes quiet
+			while ( received < nPackets && selector.select(received == 0 ? timeout : LOSS_TIMEOUT) > 0 ) {
+				selector.selectedKeys().clear();
+				wakeups++;
+				while ( channel.receive((ByteBuffer)buf.clear()) != null ) {
+					if ( received++ == 0 ) first = System.nanoTime();
+				}
+				last = System.nanoTime();
+			}
+			if ( received == 0 ) {
+				System.out.println("Transfer: no packets arrived from " + server);
+				return;
+			}
+			double sec = (last - first) / 1e9;
+			System.out.println(String.format("Transfer: %d of %d packets (%.2f%% lost) in %.1f msec: %.0f packets/sec, %.1f MB/sec, %.1f packets per wakeup",
+					received, nPackets, 100.0 * (nPackets - received) / nPackets, sec * 1000.0,
+					received / sec, (double)received * payloadSize / sec / (1 << 20), (double)received / wakeups));
+		} finally {
+			selector.close();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Makes nPackets echo requests of payloadSize bytes, keeping ECHO_WINDOW of them outstanding, and times the replies.
+	 */
+	private void _echo(SocketAddress server, int nPackets, int payloadSize, int timeout) throws IOException {
+		DatagramChannel channel = _open();
+		Selector selector = Selector.open();
+		try {
+			channel.connect(server);
+			channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer request = ByteBuffer.allocateDirect(EchoServiceBase.HEADER_LEN + payloadSize);
+			request.put(EchoServiceBase.HEADER_BYTES);
+			ByteBuffer reply = ByteBuffer.allocateDirect(EchoServiceBase.RESPONSE_LEN + payloadSize);
+
+			int sent = 0;
+			int received = 0;
+			int lost = 0;
+			long start = System.nanoTime();
+			while ( received + lost < nPackets ) {
+				while ( sent < nPackets && sent - received - lost < ECHO_WINDOW ) {
+					if ( channel.write((ByteBuffer)request.clear()) == 0 ) break;
+					sent++;
+				}
+				if ( selector.select(LOSS_TIMEOUT) == 0 ) {
+					// everything outstanding is presumed lost
+					lost += sent - received - lost;
+					if ( System.nanoTime() - start > timeout * 1000000L && received == 0 ) {
+						System.out.println("Echo: no replies from " + server);
+						return;
+					}
+					continue;
+				}
+				selector.selectedKeys().clear();
+				while ( channel.read((ByteBuffer)reply.clear()) > 0 ) {
+					if ( received + lost < sent ) received++;    // otherwise, it's a late reply to a request already counted lost
+				}
+			}
+			double sec = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Echo: %d of %d replies (%d lost) in %.1f msec: %.0f round trips/sec with %d outstanding",
+					received, nPackets, lost, sec * 1000.0, received / sec, ECHO_WINDOW));
+		} finally {
+			selector.close();
+			channel.close();
+		}
+	}
+
+	private DatagramChannel _open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+		channel.configureBlocking(false);
+		return channel;
+	}
+}
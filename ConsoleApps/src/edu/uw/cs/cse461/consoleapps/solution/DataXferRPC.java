@@ -3,6 +3,10 @@ package edu.uw.cs.cse461.consoleapps.solution;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -11,6 +15,7 @@ import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferRPCInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.rpc.RPCCall;
+import edu.uw.cs.cse461.net.rpc.RPCNoSuchMethodException;
 import edu.uw.cs.cse461.service.DataXferRPCService;
 import edu.uw.cs.cse461.util.Base64;
 import edu.uw.cs.cse461.util.ConfigManager;
@@ -26,12 +31,94 @@ public class DataXferRPC extends NetLoadableConsoleApp implements
 		super("dataxferrpc");
 	}
 
+	/**
+	 * Fetches the data using the server's streaming dataxferstream() method, copying each chunk into
+	 * the result as it arrives.  The chunks arrive as binary attachments if the server supports them.  Falls back to dataxfer() if the server doesn't have dataxferstream().
+	 */
 	@Override
 	public byte[] DataXfer(JSONObject header, String hostIP, int port,
 			int timeout) throws JSONException, IOException {
+		final ByteBuffer result = ByteBuffer.allocate(_xferLength(header));
+		try {
+			_streamXfer(header, hostIP, port, timeout, new RPCCall.ChunkReceiver() {
+				@Override
+				public void chunk(JSONObject chunk, List<ByteBuffer> attachments) throws Exception {
+					try {
+						if ( attachments.isEmpty() ) result.put(_chunkData(chunk));
+						for ( ByteBuffer data : attachments ) result.put(data);
+					} catch (BufferOverflowException e) {
+						throw new IOException("Server sent more than the " + result.capacity() + " bytes requested");
+					}
+				}
+			});
+		} catch (NoSuchMethodException e) {
+			return _singleXfer(header, hostIP, port);
+		}
+		if ( result.hasRemaining() )
+			throw new IOException("Transfer ended after " + result.position() + " of " + result.capacity() + " bytes");
+		return result.array();
+	}
+
+	/**
+	 * Like DataXfer(), but writes the data to out as it arrives rather than returning it.
+	 * @return The number of bytes written to out.
+	 */
+	public long DataXfer(JSONObject header, String hostIP, int port,
+			int timeout, final OutputStream out) throws JSONException, IOException {
+		final long[] nWritten = {0};
+		try {
+			_streamXfer(header, hostIP, port, timeout, new RPCCall.ChunkReceiver() {
+				@Override
+				public void chunk(JSONObject chunk, List<ByteBuffer> attachments) throws Exception {
+					if ( attachments.isEmpty() ) {
+						byte[] data = _chunkData(chunk);
+						out.write(data);
+						nWritten[0] += data.length;
+					}
+					for ( ByteBuffer data : attachments ) {
+						// attachments as received are always backed by an array
+						out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+						nWritten[0] += data.remaining();
+					}
+				}
+			});
+		} catch (NoSuchMethodException e) {
+			byte[] data = _singleXfer(header, hostIP, port);
+			out.write(data);
+			return data.length;
+		}
+		return nWritten[0];
+	}
+
+	// Calls dataxferstream(), handing each chunk to receiver.  Throws NoSuchMethodException if the server doesn't implement it.
+	// Servers built on the original RPCService answer a call to a method they don't have with an OK response and no value;
+	// later ones answer with an error marked nomethod, which RPCCall throws as an RPCNoSuchMethodException.  Either way, no
+	// chunks will have been received.
+	private void _streamXfer(JSONObject header, String hostIP, int port, int timeout,
+			RPCCall.ChunkReceiver receiver) throws JSONException, IOException, NoSuchMethodException {
+		JSONObject response;
+		try {
+			response = RPCCall.invokeStream(hostIP, port, "dataxferrpc", "dataxferstream", header, receiver, timeout);
+		} catch (RPCNoSuchMethodException e) {
+			throw new NoSuchMethodException(e.getMessage());
+		}
+		if ( response == null ) throw new NoSuchMethodException(hostIP + ":" + port + " returned no value from dataxferstream()");
+		_checkResponse(response);
+	}
+
+	// The original, unstreamed transfer: all the data comes back in one response
+	private byte[] _singleXfer(JSONObject header, String hostIP, int port) throws JSONException, IOException {
 		// Do a RPC call to the server
 		JSONObject response = RPCCall.invoke(hostIP, port, "dataxferrpc",
 				"dataxfer", header);
+		_checkResponse(response);
+		if (!response.has(DataXferRPCService.DATA_KEY))
+			throw new IOException("Data key not found");
+		String resultBytes = (String) response.get(DataXferRPCService.DATA_KEY);
+		return Base64.decode(resultBytes);
+	}
+
+	private void _checkResponse(JSONObject response) throws JSONException, IOException {
 		if (response == null)
 			throw new IOException("RPC failed; response is null");
 		JSONObject rcvdHeader = response.getJSONObject(DataXferRPCService.HEADER_KEY);
@@ -40,11 +127,16 @@ public class DataXferRPC extends NetLoadableConsoleApp implements
 			throw new IOException("Bad response header: got '" + rcvdHeader.toString() +
 					               "' but wanted a JSONOBject with key '" + DataXferRPCService.HEADER_TAG_KEY + "' and string value '" +
 					               DataXferRPCService.RESPONSE_OKAY_STR + "'");
-		
-		if (!response.has(DataXferRPCService.DATA_KEY))
-			throw new IOException("Data key not found");
-		String resultBytes = (String) response.get(DataXferRPCService.DATA_KEY);
-		return Base64.decode(resultBytes);
+	}
+
+	private static byte[] _chunkData(JSONObject chunk) throws JSONException, IOException {
+		if ( chunk == null || !chunk.has(DataXferRPCService.DATA_KEY) ) throw new IOException("Data key not found in chunk");
+		return Base64.decode(chunk.getString(DataXferRPCService.DATA_KEY));
+	}
+
+	// The call's arguments wrap the header the server will check
+	private static int _xferLength(JSONObject args) throws JSONException {
+		return args.getJSONObject(DataXferRPCService.HEADER_KEY).getInt(DataXferRPCService.DATA_LENGTH_KEY);
 	}
 
 	@Override
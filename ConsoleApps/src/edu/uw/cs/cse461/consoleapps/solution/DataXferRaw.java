@@ -1,6 +1,7 @@
 package edu.uw.cs.cse461.consoleapps.solution;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -9,7 +10,10 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
 
 import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferRawInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
@@ -29,7 +33,11 @@ import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
 public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInterface {
 	
 	private static final String TAG="DataXferRaw";
-	private static final int PAYLOAD_SIZE = 1000;
+	private static final int MAX_RECEIVE_BUFFER = 8 << 20;   // most we ask the OS to buffer for a UDP transfer
+	// The rate measurements keep transfers up to this size in memory, as udpDataXfer() and tcpDataXfer() do.
+	// Larger transfers are counted as they arrive and thrown away.
+	private static final long MAX_HELD_XFER = 64 << 20;
+	private static final int DISCARD_BUFFER_SIZE = 64 << 10;  // what a discarded TCP transfer is read into
 	
 	// ConsoleApp's must have a constructor taking no arguments
 	public DataXferRaw() throws Exception {
@@ -76,12 +84,29 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 			String trialStr = console.readLine();
 			int nTrials = Integer.parseInt(trialStr);
 
-			for ( int index=0; index<DataXferRawService.NPORTS; index++ ) {
+			// the four fixed size ports, and then any sizes asked for in the config file, from the port that sends any size
+			String[] sizes = config.getProperty("dataxferraw.client.sizes", "").trim().split("\\s*,\\s*");
+			int nSizes = sizes[0].isEmpty() ? 0 : sizes.length;
+			int anySizePort = config.getAsInt("dataxferraw.server.port", basePort + DataXferRawService.NPORTS);
+			int payloadSize = config.getAsInt("dataxferraw.client.payloadsize", 0, 0, DataXferRawService.MAX_PAYLOAD_SIZE);
+			boolean reliable = config.getAsInt("dataxferraw.client.reliable", 0) != 0;
+
+			for ( int index=0; index<DataXferRawService.NPORTS + nSizes; index++ ) {
 
 				TransferRate.clear();
 				
-				int port = basePort + index;
-				int xferLength = DataXferRawService.XFERSIZE[index];
+				int port;
+				long xferLength;
+				byte[] header;
+				if ( index < DataXferRawService.NPORTS ) {
+					port = basePort + index;
+					xferLength = DataXferRawService.XFERSIZE[index];
+					header = DataXferServiceBase.HEADER_BYTES;
+				} else {
+					port = anySizePort;
+					xferLength = Long.parseLong(sizes[index - DataXferRawService.NPORTS]);
+					header = DataXferRawService.header(xferLength, payloadSize);
+				}
 
 				System.out.println("\n" + xferLength + " bytes");
 
@@ -89,17 +114,26 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 				// UDP transfer
 				//-----------------------------------------------------
 
-				TransferRateInterval udpStats = udpDataXferRate(DataXferServiceBase.HEADER_BYTES, server, port, socketTimeout, xferLength, nTrials);
+				TransferRateInterval udpStats = udpDataXferRate(header, server, port, socketTimeout, xferLength, nTrials);
 				
 				System.out.println("UDP: xfer rate = " + String.format("%9.0f", udpStats.mean() * 1000.0) + " bytes/sec.");
 				System.out.println("UDP: failure rate = " + String.format("%5.1f", udpStats.failureRate()) +
 						           " [" + udpStats.nAborted() + "/" + udpStats.nTrials() + "]");
 
+				if ( reliable && index >= DataXferRawService.NPORTS ) {
+					ReliableStats reliableStats = new ReliableStats();
+					TransferRateInterval reliableUdpStats = udpReliableDataXferRate(server, port, socketTimeout, xferLength, payloadSize, nTrials, reliableStats);
+					System.out.println("\nReliable UDP: xfer rate = " + String.format("%9.0f", reliableUdpStats.mean() * 1000.0) + " bytes/sec.");
+					System.out.println("Reliable UDP: failure rate = " + String.format("%5.1f", reliableUdpStats.failureRate()) +
+							           " [" + reliableUdpStats.nAborted() + "/" + reliableUdpStats.nTrials() + "]");
+					System.out.println("Reliable UDP: " + reliableStats);
+				}
+
 				//-----------------------------------------------------
 				// TCP transfer
 				//-----------------------------------------------------
 
-				TransferRateInterval tcpStats = tcpDataXferRate(DataXferServiceBase.HEADER_BYTES, server, port, socketTimeout, xferLength, nTrials);
+				TransferRateInterval tcpStats = tcpDataXferRate(header, server, port, socketTimeout, xferLength, nTrials);
 
 				System.out.println("\nTCP: xfer rate = " + String.format("%9.0f", tcpStats.mean() * 1000.0) + " bytes/sec.");
 				System.out.println("TCP: failure rate = " + String.format("%5.1f", tcpStats.failureRate()) +
@@ -124,33 +158,50 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 	 */
 	@Override
 	public byte[] udpDataXfer(byte[] header, String hostIP, int udpPort, int socketTimeout, int xferLength) throws IOException {
-		// Except for the last packet, the payload should be 1000 bytes. So, for instance,
-		// if a total of 3500 bytes will be sent, the server would respond with three packets
-		// containing 1000 payload bytes and a final packet with 500 payload bytes.
-		// (The transfer lengths offered by the four dataxfer ports are all multiples of 1000,
-		// but that won't be the case in later projects.
+		byte[] result = new byte[xferLength];
+		_udpDataXfer(header, hostIP, udpPort, socketTimeout, xferLength, result);
+		return result;
+	}
+
+	/**
+	 * Performs a UDP transfer, as udpDataXfer(), but only counts the data, so that xferLength can be
+	 * larger than fits in memory.
+	 */
+	public void udpDataXferDiscard(byte[] header, String hostIP, int udpPort, int socketTimeout, long xferLength) throws IOException {
+		_udpDataXfer(header, hostIP, udpPort, socketTimeout, xferLength, null);
+	}
+
+	// Receives a UDP transfer of xferLength bytes into result, or just counts it if result is null
+	private void _udpDataXfer(byte[] header, String hostIP, int udpPort, int socketTimeout, long xferLength, byte[] result) throws IOException {
+		// Except for the last packet, the payload should be 1000 bytes (or whatever payload size the
+		// header asked for). So, for instance, if a total of 3500 bytes will be sent, the server would
+		// respond with three packets containing 1000 payload bytes and a final packet with 500 payload bytes.
+		// Each packet starts with the okay response.
 		DatagramSocket socket = null;
 		try {
 			socket = new DatagramSocket();
 			socket.setSoTimeout(socketTimeout);
+			// the server sends as fast as it can, so give the OS room to hold the whole transfer rather than drop packets
+			socket.setReceiveBufferSize((int)Math.min((long)MAX_RECEIVE_BUFFER, 2L * xferLength + 65536));
 			DatagramPacket sendPacket = new DatagramPacket(header, header.length, new InetSocketAddress(hostIP, udpPort));
 			socket.send(sendPacket);
 			// Received packet from server.
-			ByteBuffer resultBuf = ByteBuffer.allocate(xferLength);
-			byte[] rxData = new byte[PAYLOAD_SIZE + EchoServiceBase.RESPONSE_LEN];
+			long received = 0;
+			byte[] rxData = new byte[DataXferRawService.MAX_PAYLOAD_SIZE + EchoServiceBase.RESPONSE_LEN];
 			DatagramPacket rxPacket = new DatagramPacket(rxData, rxData.length);
-			socket.receive(rxPacket);
-			int dataLength = rxPacket.getLength() - EchoServiceBase.RESPONSE_LEN;
-			xferLength -= dataLength;
-			String headerStr = new String(rxData, 0, 4);
-			if ( !headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
-				throw new IOException("Bad response header: got '" + headerStr + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
-			while (xferLength > 0) {
-				resultBuf.put(rxPacket.getData(), EchoServiceBase.RESPONSE_LEN, dataLength);
+			while (received < xferLength) {
+				rxPacket.setLength(rxData.length);
 				socket.receive(rxPacket);
-				xferLength -= rxPacket.getLength();
+				String headerStr = new String(rxData, 0, 4);
+				if ( rxPacket.getLength() < EchoServiceBase.RESPONSE_LEN || !headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
+					throw new IOException("Bad response header: got '" + headerStr + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
+				int dataLength = rxPacket.getLength() - EchoServiceBase.RESPONSE_LEN;
+				if ( dataLength > xferLength - received )
+					throw new IOException("Received " + (received + dataLength) + " bytes, but expected only " + xferLength);
+				if ( result != null )
+					System.arraycopy(rxData, EchoServiceBase.RESPONSE_LEN, result, (int)received, dataLength);
+				received += dataLength;
 			}
-			return resultBuf.array();
 		} finally {
 			if (socket !=null) {
 				socket.close();
@@ -166,11 +217,19 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 	 */
 	@Override
 	public TransferRateInterval udpDataXferRate(byte[] header, String hostIP, int udpPort, int socketTimeout, int xferLength, int nTrials) {
+		return udpDataXferRate(header, hostIP, udpPort, socketTimeout, (long)xferLength, nTrials);
+	}
+
+	/**
+	 * As udpDataXferRate(), for any size of transfer.  Transfers larger than MAX_HELD_XFER are counted and discarded.
+	 */
+	public TransferRateInterval udpDataXferRate(byte[] header, String hostIP, int udpPort, int socketTimeout, long xferLength, int nTrials) {
 
 		for ( int trial=0; trial<nTrials; trial++ ) {
 			try {
 				TransferRate.start("udp");
-				udpDataXfer(header, hostIP, udpPort, socketTimeout, xferLength);
+				if ( xferLength <= MAX_HELD_XFER ) udpDataXfer(header, hostIP, udpPort, socketTimeout, (int)xferLength);
+				else udpDataXferDiscard(header, hostIP, udpPort, socketTimeout, xferLength);
 				TransferRate.stop("udp", xferLength);
 			} catch ( java.net.SocketTimeoutException e) {
 				TransferRate.abort("udp", xferLength);
@@ -185,11 +244,198 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 	}
 	
 
+	/**
+	 * What the client saw of the reliable UDP transfers it has made, summed over transfers.
+	 */
+	public static class ReliableStats {
+		public long packets;         // data packets received, including duplicates
+		public long duplicates;      // packets that had already arrived
+		public long retransmitted;   // new packets that the server had sent before
+		public long reordered;       // new packets, sent only once, that arrived after a packet sent later
+		public long maxReorder;      // most packets a reordered packet arrived behind
+		public long acks;
+		public long requestRetries;  // requests sent again because no data came back
+
+		@Override
+		public String toString() {
+			return packets + " packets, " + duplicates + " duplicates, " + retransmitted + " retransmitted, " +
+					reordered + " reordered (by up to " + maxReorder + " packets), " + acks + " acks, " +
+					requestRetries + " request retries";
+		}
+	}
+
+	/**
+	 * Transfers xferLength bytes from the any size port using the server's reliable UDP mode (see
+	 * DataXferRawService), acking what has arrived so that the server resends what hasn't.
+	 * @param socketTimeout How long to wait for a packet before giving up.
+	 * @param payloadSize Bytes of data per packet, or 0 for the server's default.
+	 * @param stats Accumulates what happened during the transfer; may be null.
+	 */
+	public byte[] udpReliableDataXfer(String hostIP, int udpPort, int socketTimeout, int xferLength, int payloadSize, ReliableStats stats) throws IOException {
+		byte[] result = new byte[xferLength];
+		_udpReliableDataXfer(hostIP, udpPort, socketTimeout, xferLength, payloadSize, stats, result);
+		return result;
+	}
+
+	/**
+	 * Performs a reliable UDP transfer, as udpReliableDataXfer(), but only counts the data, so that
+	 * xferLength can be larger than fits in memory.
+	 */
+	public void udpReliableDataXferDiscard(String hostIP, int udpPort, int socketTimeout, long xferLength, int payloadSize, ReliableStats stats) throws IOException {
+		_udpReliableDataXfer(hostIP, udpPort, socketTimeout, xferLength, payloadSize, stats, null);
+	}
+
+	// Receives a reliable UDP transfer of xferLength bytes into result, or just keeps track of which packets have arrived if result is null
+	private void _udpReliableDataXfer(String hostIP, int udpPort, int socketTimeout, long xferLength, int payloadSize, ReliableStats stats, byte[] result) throws IOException {
+		if ( payloadSize == 0 ) payloadSize = DataXferRawService.PAYLOAD_SIZE;
+		if ( stats == null ) stats = new ReliableStats();
+		long nPacketsLong = (xferLength + payloadSize - 1) / payloadSize;
+		if ( nPacketsLong > Integer.MAX_VALUE )
+			throw new IOException(xferLength + " bytes is too many packets of " + payloadSize + " bytes; use a larger payload size");
+		int nPackets = (int)nPacketsLong;
+		BitSet received = new BitSet(nPackets);
+		int cumAck = 0;             // packets received in order
+		long highest = -1;          // highest sequence number received
+		int unacked = 0;            // in order packets received since the last ack
+		DatagramSocket socket = null;
+		try {
+			socket = new DatagramSocket();
+			socket.setReceiveBufferSize((int)Math.min((long)MAX_RECEIVE_BUFFER, 2L * xferLength + 65536));
+			// until the first packet arrives, the request is sent again this often
+			int retryInterval = Math.max(1, Math.min(socketTimeout / 4, 500));
+			socket.setSoTimeout(retryInterval);
+			byte[] request = DataXferRawService.reliableHeader(xferLength, payloadSize);
+			DatagramPacket requestPacket = new DatagramPacket(request, request.length, new InetSocketAddress(hostIP, udpPort));
+			socket.send(requestPacket);
+			if ( nPackets == 0 ) return;
+
+			byte[] rxData = new byte[DataXferRawService.RELIABLE_DATA_HEADER_LEN + payloadSize];
+			DatagramPacket rxPacket = new DatagramPacket(rxData, rxData.length);
+			ByteBuffer rxHeader = ByteBuffer.wrap(rxData).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer ack = ByteBuffer.allocate(DataXferRawService.RELIABLE_ACK_LEN).order(ByteOrder.LITTLE_ENDIAN);
+			DatagramPacket ackPacket = new DatagramPacket(ack.array(), ack.capacity());
+			long lastArrival = System.currentTimeMillis();
+			boolean started = false;
+
+			while ( cumAck < nPackets ) {
+				rxPacket.setLength(rxData.length);
+				try {
+					socket.receive(rxPacket);
+				} catch (SocketTimeoutException e) {
+					if ( System.currentTimeMillis() - lastArrival >= socketTimeout ) throw e;
+					if ( !started ) {
+						socket.send(requestPacket);
+						stats.requestRetries++;
+					}
+					continue;
+				}
+				lastArrival = System.currentTimeMillis();
+				String typeStr = new String(rxData, 0, 4);
+				if ( rxPacket.getLength() < DataXferRawService.RELIABLE_DATA_HEADER_LEN || !typeStr.equals(DataXferRawService.RELIABLE_DATA_STR) )
+					throw new IOException("Bad data packet header: got '" + typeStr + "' but expected '" + DataXferRawService.RELIABLE_DATA_STR + "'");
+				// The transfer comes from a socket of its own; acks go there, and nothing else is wanted.
+				// (Connecting the socket to it instead would throw away packets already queued.)
+				if ( !started ) {
+					ackPacket.setSocketAddress(rxPacket.getSocketAddress());
+					started = true;
+				} else if ( !rxPacket.getSocketAddress().equals(ackPacket.getSocketAddress()) ) {
+					continue;
+				}
+				long seq = rxHeader.getLong(4);
+				int transmission = rxHeader.getInt(12);
+				int dataLength = rxPacket.getLength() - DataXferRawService.RELIABLE_DATA_HEADER_LEN;
+				if ( seq < 0 || seq >= nPackets || dataLength != Math.min(payloadSize, xferLength - seq * payloadSize) )
+					throw new IOException("Bad data packet: sequence number " + seq + " with " + dataLength + " bytes");
+				stats.packets++;
+
+				boolean ackNow;
+				if ( received.get((int)seq) ) {
+					// our ack must have been lost, or was too late
+					stats.duplicates++;
+					ackNow = true;
+				} else {
+					received.set((int)seq);
+					if ( result != null )
+						System.arraycopy(rxData, DataXferRawService.RELIABLE_DATA_HEADER_LEN, result, (int)seq * payloadSize, dataLength);
+					if ( transmission > 1 ) stats.retransmitted++;
+					if ( seq < highest && transmission == 1 ) {
+						stats.reordered++;
+						stats.maxReorder = Math.max(stats.maxReorder, highest - seq);
+					}
+					highest = Math.max(highest, seq);
+					int oldCumAck = cumAck;
+					cumAck = received.nextClearBit(cumAck);
+					// the server hears at once about gaps, and gaps being filled; in order packets are acked in pairs
+					ackNow = seq != oldCumAck || cumAck != oldCumAck + 1 || received.nextSetBit(cumAck) >= 0 ||
+							++unacked >= 2 || cumAck == nPackets;
+				}
+				if ( ackNow ) {
+					_buildAck(ack, received, cumAck);
+					socket.send(ackPacket);
+					stats.acks++;
+					unacked = 0;
+				}
+			}
+		} finally {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Fills ack with the reliable mode ack for the packets in received.
+	 */
+	private static void _buildAck(ByteBuffer ack, BitSet received, int cumAck) {
+		ack.clear();
+		ack.put(DataXferRawService.RELIABLE_ACK_BYTES).putLong(cumAck);
+		for ( int i = 0; i < DataXferRawService.RELIABLE_ACK_BITS / 8; i++ ) ack.put((byte)0);
+		for ( int seq = received.nextSetBit(cumAck + 1); seq >= 0 && seq <= cumAck + DataXferRawService.RELIABLE_ACK_BITS; seq = received.nextSetBit(seq + 1) ) {
+			int bit = seq - cumAck - 1;
+			int index = 12 + bit / 8;
+			ack.put(index, (byte)(ack.get(index) | (1 << (bit % 8))));
+		}
+	}
+
+	/**
+	 * Performs nTrials reliable UDP transfers, as udpReliableDataXfer(), and measures their rate.
+	 */
+	public TransferRateInterval udpReliableDataXferRate(String hostIP, int udpPort, int socketTimeout, long xferLength, int payloadSize, int nTrials, ReliableStats stats) {
+
+		for ( int trial=0; trial<nTrials; trial++ ) {
+			try {
+				TransferRate.start("reliableudp");
+				if ( xferLength <= MAX_HELD_XFER ) udpReliableDataXfer(hostIP, udpPort, socketTimeout, (int)xferLength, payloadSize, stats);
+				else udpReliableDataXferDiscard(hostIP, udpPort, socketTimeout, xferLength, payloadSize, stats);
+				TransferRate.stop("reliableudp", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("reliableudp", xferLength);
+				System.out.println("Reliable UDP trial failed: " + e.getMessage());
+			}
+		}
+		return TransferRate.get("reliableudp");
+	}
+
 	/**
 	 * Method to actually transfer data over TCP, without measuring performance.
 	 */
 	@Override
 	public byte[] tcpDataXfer(byte[] header, String hostIP, int tcpPort, int socketTimeout, int xferLength) throws IOException {
+		byte[] result = new byte[xferLength];
+		_tcpDataXfer(header, hostIP, tcpPort, socketTimeout, xferLength, result);
+		return result;
+	}
+
+	/**
+	 * Performs a TCP transfer, as tcpDataXfer(), but only counts the data, so that xferLength can be
+	 * larger than fits in memory.
+	 */
+	public void tcpDataXferDiscard(byte[] header, String hostIP, int tcpPort, int socketTimeout, long xferLength) throws IOException {
+		_tcpDataXfer(header, hostIP, tcpPort, socketTimeout, xferLength, null);
+	}
+
+	// Receives a TCP transfer of xferLength bytes into result, or just counts it if result is null
+	private void _tcpDataXfer(byte[] header, String hostIP, int tcpPort, int socketTimeout, long xferLength, byte[] result) throws IOException {
 		Socket socket = null;
 		try {
 			socket = new Socket(hostIP, tcpPort);
@@ -198,23 +444,22 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 			// Send header
 			os.write(header, 0, header.length);
 			socket.shutdownOutput();
-			ByteBuffer resultBuf = ByteBuffer.allocate(xferLength);
-			int headerAndPayloadSize = PAYLOAD_SIZE + EchoServiceBase.RESPONSE_LEN;
-			byte[] buf = new byte[headerAndPayloadSize];
+			// a discarded transfer is read into the same small buffer over and over
+			byte[] buf = result != null ? result : new byte[DISCARD_BUFFER_SIZE];
 			InputStream is = socket.getInputStream();
-			int readLen = is.read(buf, 0, headerAndPayloadSize) - EchoServiceBase.RESPONSE_LEN;
-			resultBuf.put(buf, EchoServiceBase.RESPONSE_LEN, readLen);
-			xferLength -= readLen;
-			String headerStr = new String(buf, 0, 4);
+			byte[] responseHeader = new byte[EchoServiceBase.RESPONSE_LEN];
+			new DataInputStream(is).readFully(responseHeader);
+			String headerStr = new String(responseHeader);
 			if ( !headerStr.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
 				throw new IOException("Bad response header: got '" + headerStr + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
 			// Read the data sent by server
-			while (xferLength > 0) {
-				readLen = is.read(buf, 0, PAYLOAD_SIZE);
-				resultBuf.put(buf, 0, readLen);
-				xferLength -= readLen;
+			long received = 0;
+			while (received < xferLength) {
+				int offset = result != null ? (int)received : 0;
+				int readLen = is.read(buf, offset, (int)Math.min(xferLength - received, buf.length - offset));
+				if ( readLen < 0 ) throw new IOException("Connection closed after " + received + " of " + xferLength + " bytes");
+				received += readLen;
 			}
-			return resultBuf.array();
 		} finally {
 			if (socket != null) {
 				socket.close();
@@ -230,11 +475,19 @@ public class DataXferRaw extends NetLoadableConsoleApp implements DataXferRawInt
 	 */
 	@Override
 	public TransferRateInterval tcpDataXferRate(byte[] header, String hostIP, int tcpPort, int socketTimeout, int xferLength, int nTrials) {
+		return tcpDataXferRate(header, hostIP, tcpPort, socketTimeout, (long)xferLength, nTrials);
+	}
+
+	/**
+	 * As tcpDataXferRate(), for any size of transfer.  Transfers larger than MAX_HELD_XFER are counted and discarded.
+	 */
+	public TransferRateInterval tcpDataXferRate(byte[] header, String hostIP, int tcpPort, int socketTimeout, long xferLength, int nTrials) {
 
 		for ( int trial=0; trial<nTrials; trial++) {
 			try {
 				TransferRate.start("tcp");
-				tcpDataXfer(header, hostIP, tcpPort, socketTimeout, xferLength);
+				if ( xferLength <= MAX_HELD_XFER ) tcpDataXfer(header, hostIP, tcpPort, socketTimeout, (int)xferLength);
+				else tcpDataXferDiscard(header, hostIP, tcpPort, socketTimeout, xferLength);
 				TransferRate.stop("tcp", xferLength);
 			} catch (Exception e) {
 				TransferRate.abort("tcp", xferLength);
@@ -132,9 +132,7 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			if (!resultHeader.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
 				throw new IOException("Bad response header: got '" + resultHeader + "' but expected '" + EchoServiceBase.RESPONSE_OKAY_STR + "'");
 			while (xferLength > 0) {
-				result = messageHandler.readMessageAsBytes();
-				resultBuf.put(result);
-				xferLength -= result.length;
+				xferLength -= messageHandler.readMessageInto(resultBuf);
 			}
 			return resultBuf.array();
 		} finally {
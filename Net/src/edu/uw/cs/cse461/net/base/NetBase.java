@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.util.BufferPool;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -214,6 +215,8 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			// We can't remove items from the HashMap while iterating
 			serviceMap.clear();
+			BufferPool.reportLeaks();
+			Log.d(TAG, BufferPool.stats());
 		} catch (Exception e) {
 			Log.e(TAG, "Error shutting down services: " + e.getMessage());
 			throw new RuntimeException(e.getMessage());
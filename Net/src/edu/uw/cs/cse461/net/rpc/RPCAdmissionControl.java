@@ -0,0 +1,242 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.uw.cs.cse461.util.BoundedExecutor;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * Decides how much work RPCService takes on, so that a burst of callers gets quick refusals
+ * instead of slowing down everyone.  Its limits, each off when set to 0:
+ * <ul>
+ * <li>rpc.server.maxconnections: open connections.  A connection beyond the limit is sent an
+ *     ERROR in answer to its first message, and then closed.
+ * <li>rpc.server.conn.maxinflight: calls outstanding on one connection.
+ * <li>rpc.server.client.rate and rpc.server.client.burst: calls per second from one client
+ *     address, enforced with a token bucket that holds up to burst calls.
+ * <li>rpc.server.attachmentbuffer: bytes of incoming attachments held at once, over all
+ *     connections.  A call with attachments counts as holding rpc.server.maxattachmentbytes
+ *     (the most one call's attachments may add up to) from when it arrives until its attachments
+ *     have all been read, and then what they actually add up to until it completes.
+ * </ul>
+ * A refusal carries a retry-after hint: how long until the client's bucket has a token again,
+ * or rpc.server.retryafter msec. for the other limits.
+ * <p>
+ * Calls also get shed once they've waited too long for a worker.  A call that has waited
+ * rpc.server.queue.maxwait msec. (by default, net.timeout.socket) is dropped without running its
+ * handler, since its caller has surely given up on it.  And, in the style of CoDel, if every call
+ * picked up during the last rpc.server.queue.interval msec. had waited more than
+ * rpc.server.queue.target msec., and the queue never emptied, the service counts as overloaded:
+ * the worker queue is run newest first, so that calls whose callers are still waiting get done,
+ * and calls that have waited more than the target are shed.  The state is judged only from the
+ * waits of calls actually picked up, so an interval in which no worker was free to pick one up
+ * leaves it as it was.  Setting rpc.server.queue.target to 0 turns this off.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCAdmissionControl {
+	final LongAdder refusedConnections = new LongAdder();
+	final LongAdder rateLimited = new LongAdder();      // calls over their client's rate
+	final LongAdder connectionLimited = new LongAdder(); // calls over their connection's in-flight limit
+	final LongAdder shed = new LongAdder();             // calls dropped after waiting too long for a worker
+	final LongAdder attachmentLimited = new LongAdder(); // calls refused for want of room for their attachments
+
+	private int mMaxConnections;
+	private int mConnMaxInFlight;
+	private double mClientRate;        // calls per second
+	private double mClientBurst;
+	private int mRetryAfter;           // msec.
+	private int mMaxAttachmentBytes;   // per call
+	private long mAttachmentBuffer;
+	private AtomicLong mAttachmentBytes = new AtomicLong();   // held by calls, as described above
+
+	private BoundedExecutor mDispatcher;
+	private long mMaxWaitNanos;
+	private long mTargetNanos;
+	private long mIntervalNanos;
+
+	// CoDel state, guarded by this
+	private long mIntervalEnd;
+	private long mMinQueueNanos = Long.MAX_VALUE;   // shortest wait of a call picked up this interval; 0 if the queue emptied
+	private volatile boolean mIsOverloaded = false;
+	private long mOverloadedCount = 0;
+
+	// per-client token buckets, used only by the selector thread
+	private HashMap<InetAddress, TokenBucket> mBuckets = new HashMap<InetAddress, TokenBucket>();
+	private long mLastBucketReap = System.nanoTime();
+
+	/**
+	 * @param dispatcher The executor whose queue is managed.
+	 * @param defaultMaxWait Longest a call may wait for a worker, in msec., if rpc.server.queue.maxwait isn't set.
+	 */
+	RPCAdmissionControl(ConfigManager config, BoundedExecutor dispatcher, int defaultMaxWait) {
+		mDispatcher = dispatcher;
+		mMaxConnections = config.getAsInt("rpc.server.maxconnections", 0, 0);
+		mConnMaxInFlight = config.getAsInt("rpc.server.conn.maxinflight", 0, 0);
+		mClientRate = config.getAsInt("rpc.server.client.rate", 0, 0);
+		mClientBurst = Math.max(1, config.getAsInt("rpc.server.client.burst", (int)Math.ceil(mClientRate), 0));
+		mRetryAfter = config.getAsInt("rpc.server.retryafter", 1000, 0);
+		mMaxAttachmentBytes = config.getAsInt("rpc.server.maxattachmentbytes", 8 << 20, 0);
+		mAttachmentBuffer = config.getAsInt("rpc.server.attachmentbuffer", 64 << 20, 0);
+		if ( mAttachmentBuffer > 0 ) mAttachmentBuffer = Math.max(mAttachmentBuffer, mMaxAttachmentBytes);
+		mMaxWaitNanos = config.getAsInt("rpc.server.queue.maxwait", defaultMaxWait, 0) * 1000000L;
+		mTargetNanos = config.getAsInt("rpc.server.queue.target", 10, 0) * 1000000L;
+		mIntervalNanos = config.getAsInt("rpc.server.queue.interval", 100, 1) * 1000000L;
+		mIntervalEnd = System.nanoTime() + mIntervalNanos;
+	}
+
+	/**
+	 * True if another connection may be accepted, given the number already open.
+	 */
+	boolean admitConnection(int nOpen) {
+		return mMaxConnections == 0 || nOpen < mMaxConnections;
+	}
+
+	int maxConnections() {
+		return mMaxConnections;
+	}
+
+	/**
+	 * True if a connection with nPending calls outstanding may start another.
+	 */
+	boolean admitOnConnection(int nPending) {
+		return mConnMaxInFlight == 0 || nPending < mConnMaxInFlight;
+	}
+
+	/**
+	 * Takes a token from client's bucket.  Called only by the selector thread.
+	 * @return 0 if the call may go ahead; otherwise, the number of msec. until the bucket will have a token.
+	 */
+	long rateLimit(InetAddress client) {
+		if ( mClientRate == 0 ) return 0;
+		long now = System.nanoTime();
+		TokenBucket bucket = mBuckets.get(client);
+		if ( bucket == null ) {
+			bucket = new TokenBucket(mClientBurst, now);
+			mBuckets.put(client, bucket);
+		}
+		bucket.refill(now, mClientRate, mClientBurst);
+		if ( bucket.mTokens >= 1.0 ) {
+			bucket.mTokens -= 1.0;
+			return 0;
+		}
+		return Math.max(1, (long)Math.ceil((1.0 - bucket.mTokens) * 1000.0 / mClientRate));
+	}
+
+	/**
+	 * Forgets the buckets of clients that haven't called for long enough that their buckets are full again.
+	 * Called only by the selector thread.
+	 */
+	void reapBuckets() {
+		long now = System.nanoTime();
+		if ( mClientRate == 0 || now - mLastBucketReap < 1000000000L ) return;
+		mLastBucketReap = now;
+		long refillNanos = (long)(mClientBurst / mClientRate * 1e9);
+		Iterator<TokenBucket> it = mBuckets.values().iterator();
+		while ( it.hasNext() ) {
+			if ( now - it.next().mLastRefill > refillNanos ) it.remove();
+		}
+	}
+
+	/**
+	 * The most the attachments of one call may add up to, in bytes.
+	 */
+	int maxAttachmentBytes() {
+		return mMaxAttachmentBytes;
+	}
+
+	/**
+	 * Sets aside nBytes of the attachment buffer for a call.  Called only by the selector thread.
+	 * @return False if there isn't room.
+	 */
+	boolean reserveAttachmentBytes(long nBytes) {
+		if ( mAttachmentBytes.addAndGet(nBytes) > mAttachmentBuffer && mAttachmentBuffer > 0 ) {
+			mAttachmentBytes.addAndGet(-nBytes);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back nBytes set aside by reserveAttachmentBytes().  Safe to call from any thread.
+	 */
+	void releaseAttachmentBytes(long nBytes) {
+		if ( nBytes != 0 ) mAttachmentBytes.addAndGet(-nBytes);
+	}
+
+	/**
+	 * The retry-after hint for calls refused by a limit other than the client rate, in msec.
+	 */
+	int retryAfter() {
+		return mRetryAfter;
+	}
+
+	/**
+	 * Called by a worker as it picks up a call, which waited queueNanos for it.  Updates whether the service
+	 * is overloaded, which decides the order the queue is run in.
+	 * @return True if the call should be dropped without running it.
+	 */
+	boolean shed(long queueNanos) {
+		if ( mTargetNanos > 0 ) {
+			synchronized(this) {
+				long now = System.nanoTime();
+				mMinQueueNanos = Math.min(mMinQueueNanos, mDispatcher.queuedCount() == 0 ? 0 : queueNanos);
+				if ( now >= mIntervalEnd ) {
+					// a long gap since the last pickup counts as one interval, judged by this call's wait:
+					// it's short if the queue was idle, and long if the workers were all busy
+					boolean overloaded = mMinQueueNanos > mTargetNanos;
+					if ( overloaded != mIsOverloaded ) {
+						mIsOverloaded = overloaded;
+						if ( overloaded ) mOverloadedCount++;
+						mDispatcher.setLastInFirstOut(overloaded);
+					}
+					mMinQueueNanos = Long.MAX_VALUE;
+					mIntervalEnd = now + mIntervalNanos;
+				}
+			}
+		}
+		long limit = mIsOverloaded ? mTargetNanos : mMaxWaitNanos;
+		if ( limit == 0 || queueNanos <= limit ) return false;
+		shed.increment();
+		return true;
+	}
+
+	boolean isOverloaded() {
+		return mIsOverloaded;
+	}
+
+	/**
+	 * One client's allowance of calls.  It gains rate tokens a second, up to burst; each call takes one.
+	 */
+	private static class TokenBucket {
+		double mTokens;
+		long mLastRefill;
+
+		TokenBucket(double tokens, long now) {
+			mTokens = tokens;
+			mLastRefill = now;
+		}
+
+		void refill(long now, double rate, double burst) {
+			mTokens = Math.min(burst, mTokens + (now - mLastRefill) * rate / 1e9);
+			mLastRefill = now;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Admission control: " + refusedConnections.sum() + " connections refused" +
+				(mMaxConnections > 0 ? " (max " + mMaxConnections + ")" : "") + ", " +
+				rateLimited.sum() + " calls over client rate" + (mClientRate > 0 ? " (" + (int)mClientRate + "/sec.)" : "") + ", " +
+				connectionLimited.sum() + " over connection limit" + (mConnMaxInFlight > 0 ? " (" + mConnMaxInFlight + ")" : "") + ", " +
+				shed.sum() + " shed after waiting, " +
+				attachmentLimited.sum() + " over attachment buffer (" + mAttachmentBytes.get() + " of " +
+				(mAttachmentBuffer > 0 ? mAttachmentBuffer : "unlimited") + " bytes held); " +
+				(mIsOverloaded ? "overloaded" : "not overloaded") + " (" + mOverloadedCount + " times)";
+	}
+}
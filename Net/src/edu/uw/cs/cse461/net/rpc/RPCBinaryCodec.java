@@ -0,0 +1,271 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact binary encoding of JSON values, in the spirit of MessagePack.  It carries the same
+ * information as JSON text but is much cheaper to produce and to parse: there is no quoting or
+ * escaping, numbers aren't converted to and from decimal, and lengths are known up front.
+ * <p>
+ * Each value is a one byte tag followed by its contents:
+ * <ul>
+ * <li>NULL, FALSE, TRUE: nothing
+ * <li>INT: a zigzag encoded varint (small magnitudes take one byte)
+ * <li>DOUBLE: 8 bytes, big endian IEEE 754
+ * <li>STRING: a varint byte count, then that many bytes of UTF-8
+ * <li>OBJECT: a varint member count, then each member's name (as a STRING without its tag) and value
+ * <li>ARRAY: a varint element count, then each element
+ * </ul>
+ * A message is a single OBJECT.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCBinaryCodec extends RPCCodec {
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte INT = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte STRING = 5;
+	private static final byte OBJECT = 6;
+	private static final byte ARRAY = 7;
+
+	private static final int MAX_DEPTH = 64;     // deepest nesting decode() will follow
+	private static final int MAX_RETAINED_BUFFER = 256 * 1024;    // bigger encode buffers aren't kept for reuse
+
+	private static ThreadLocal<Encoder> mEncoders = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	@Override
+	public String name() {
+		return "binary";
+	}
+
+	@Override
+	public byte[] encode(JSONObject msg) throws IOException {
+		return _encode(msg).toByteArray();
+	}
+
+	@Override
+	public ByteBuffer encodeShared(JSONObject msg) throws IOException {
+		Encoder out = _encode(msg);
+		return ByteBuffer.wrap(out.mBuf, 0, out.mLen);
+	}
+
+	// Encodes msg into the calling thread's encoder
+	private Encoder _encode(JSONObject msg) throws IOException {
+		Encoder out = mEncoders.get();
+		out.reset();
+		try {
+			out.value(msg);
+		} catch (JSONException e) {
+			throw new IOException("Can't encode message: " + e.getMessage());
+		}
+		return out;
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf) throws IOException {
+		Decoder in = new Decoder(buf);
+		try {
+			if ( in.tag() != OBJECT ) throw new IOException("Message isn't an object");
+			JSONObject msg = in.object(0);
+			if ( in.mPos != buf.length ) throw new IOException((buf.length - in.mPos) + " extra bytes after message");
+			return msg;
+		} catch (JSONException e) {
+			throw new IOException("Bad message: " + e.getMessage());
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated message");
+		}
+	}
+
+	//----------------------------------------------------------------------------------
+
+	private static class Encoder {
+		private byte[] mBuf = new byte[256];
+		private int mLen = 0;
+
+		void reset() {
+			if ( mBuf.length > MAX_RETAINED_BUFFER ) mBuf = new byte[256];
+			mLen = 0;
+		}
+
+		void value(Object v) throws JSONException {
+			if ( v == null || v == JSONObject.NULL ) {
+				_byte(NULL);
+			} else if ( v instanceof String ) {
+				_byte(STRING);
+				_string((String)v);
+			} else if ( v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte ) {
+				_byte(INT);
+				long n = ((Number)v).longValue();
+				_varint((n << 1) ^ (n >> 63));
+			} else if ( v instanceof Number ) {
+				_byte(DOUBLE);
+				long bits = Double.doubleToLongBits(((Number)v).doubleValue());
+				_ensure(8);
+				for ( int shift = 56; shift >= 0; shift -= 8 ) mBuf[mLen++] = (byte)(bits >>> shift);
+			} else if ( v instanceof Boolean ) {
+				_byte(((Boolean)v) ? TRUE : FALSE);
+			} else if ( v instanceof JSONObject ) {
+				JSONObject obj = (JSONObject)v;
+				_byte(OBJECT);
+				_varint(obj.length());
+				Iterator<?> keys = obj.keys();
+				while ( keys.hasNext() ) {
+					String key = (String)keys.next();
+					_string(key);
+					value(obj.get(key));
+				}
+			} else if ( v instanceof JSONArray ) {
+				JSONArray array = (JSONArray)v;
+				_byte(ARRAY);
+				_varint(array.length());
+				for ( int i = 0; i < array.length(); i++ ) value(array.get(i));
+			} else {
+				// anything else is sent the way JSONObject.toString() would show it
+				_byte(STRING);
+				_string(v.toString());
+			}
+		}
+
+		private void _string(String s) {
+			int n = s.length();
+			// most strings are ASCII, which can be copied without a trip through the charset encoder
+			boolean ascii = true;
+			for ( int i = 0; i < n && ascii; i++ ) ascii = s.charAt(i) < 0x80;
+			if ( ascii ) {
+				_varint(n);
+				_ensure(n);
+				for ( int i = 0; i < n; i++ ) mBuf[mLen++] = (byte)s.charAt(i);
+			} else {
+				byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+				_varint(utf8.length);
+				_ensure(utf8.length);
+				System.arraycopy(utf8, 0, mBuf, mLen, utf8.length);
+				mLen += utf8.length;
+			}
+		}
+
+		private void _varint(long n) {
+			_ensure(10);
+			while ( (n & ~0x7FL) != 0 ) {
+				mBuf[mLen++] = (byte)((n & 0x7F) | 0x80);
+				n >>>= 7;
+			}
+			mBuf[mLen++] = (byte)n;
+		}
+
+		private void _byte(byte b) {
+			_ensure(1);
+			mBuf[mLen++] = b;
+		}
+
+		private void _ensure(int n) {
+			if ( mLen + n > mBuf.length ) mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mLen + n));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(mBuf, mLen);
+		}
+	}
+
+	private static class Decoder {
+		private byte[] mBuf;
+		private int mPos = 0;
+
+		Decoder(byte[] buf) {
+			mBuf = buf;
+		}
+
+		byte tag() {
+			return mBuf[mPos++];
+		}
+
+		Object value(int depth) throws IOException, JSONException {
+			byte tag = tag();
+			switch ( tag ) {
+			case NULL:
+				return JSONObject.NULL;
+			case FALSE:
+				return Boolean.FALSE;
+			case TRUE:
+				return Boolean.TRUE;
+			case INT:
+				long zigzag = _varint();
+				long n = (zigzag >>> 1) ^ -(zigzag & 1);
+				if ( n == (int)n ) return Integer.valueOf((int)n);
+				return Long.valueOf(n);
+			case DOUBLE:
+				long bits = 0;
+				for ( int i = 0; i < 8; i++ ) bits = (bits << 8) | (mBuf[mPos++] & 0xFF);
+				return Double.valueOf(Double.longBitsToDouble(bits));
+			case STRING:
+				return _string();
+			case OBJECT:
+				return object(depth + 1);
+			case ARRAY:
+				return _array(depth + 1);
+			default:
+				throw new IOException("Unknown tag " + tag + " at offset " + (mPos - 1));
+			}
+		}
+
+		// Reads an object's contents; the caller has already read its tag
+		JSONObject object(int depth) throws IOException, JSONException {
+			if ( depth > MAX_DEPTH ) throw new IOException("Message nested more than " + MAX_DEPTH + " deep");
+			int count = _count();
+			JSONObject obj = new JSONObject();
+			for ( int i = 0; i < count; i++ ) {
+				String key = _string();
+				obj.put(key, value(depth));
+			}
+			return obj;
+		}
+
+		private JSONArray _array(int depth) throws IOException, JSONException {
+			if ( depth > MAX_DEPTH ) throw new IOException("Message nested more than " + MAX_DEPTH + " deep");
+			int count = _count();
+			JSONArray array = new JSONArray();
+			for ( int i = 0; i < count; i++ ) array.put(value(depth));
+			return array;
+		}
+
+		private String _string() throws IOException {
+			int len = _count();
+			String s = new String(mBuf, mPos, len, StandardCharsets.UTF_8);
+			mPos += len;
+			return s;
+		}
+
+		// A length or element count, which can't be more than the bytes left in the message
+		private int _count() throws IOException {
+			long n = _varint();
+			if ( n < 0 || n > mBuf.length - mPos ) throw new IOException("Bad length " + n + " at offset " + mPos);
+			return (int)n;
+		}
+
+		private long _varint() throws IOException {
+			long n = 0;
+			for ( int shift = 0; shift < 64; shift += 7 ) {
+				byte b = mBuf[mPos++];
+				n |= (long)(b & 0x7F) << shift;
+				if ( (b & 0x80) == 0 ) return n;
+			}
+			throw new IOException("Varint too long at offset " + mPos);
+		}
+	}
+}
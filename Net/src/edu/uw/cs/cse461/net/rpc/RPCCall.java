@@ -1,19 +1,29 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.ConfigManager;
 
 /**
  * Class implementing the caller side of RPC -- the RPCCall.invoke() method.
@@ -24,36 +34,77 @@ import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
  * This class is responsible for implementing persistent connections. 
  * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
  * Implementing persistence requires keeping a cache that must be cleaned periodically.
- * We do that using a cleaner thread.
+ * We do that with a single reaper task that periodically closes connections that have been
+ * idle for longer than rpc.persistence.timeout.  The reaper also probes idle connections,
+ * so that dead ones are dropped before a call tries to use them.
+ * <p>
+ * invoke() may be called by any number of threads at once.  Each remote RPC service gets an
+ * RPCConnectionPool of between rpc.pool.min and rpc.pool.max connections.  A call is pipelined
+ * on the pool's least busy connection, so a slow call doesn't hold up the others.
+ * <p>
+ * A call that has to open a new connection sends the connect options along with the invocation,
+ * rather than waiting a round trip for the connect handshake first (unless rpc.zerortt is 0).
+ * Remote services that predate this still work; connections to them go back to handshaking first.
+ * <p>
+ * invokeAsync() is the non-blocking form of invoke().  It returns a CompletableFuture
+ * right away; connecting, the handshake, and waiting for the response all happen without
+ * tying up the calling thread, so one thread can have calls outstanding to many hosts.
+ * New connections are opened by at most rpc.connect.threads connector threads; further connects
+ * wait for one of them.  Each open connection still has a reader thread of its own, though,
+ * so the number of threads grows with the number of connections, if not with the number of calls.
+ * <p>
+ * invokeStream() calls a streaming method (see RPCResponseStream), handing each chunk of
+ * its result to a ChunkReceiver as it arrives instead of collecting the whole result first.
+ * <p>
+ * Calls may send binary attachments along with their arguments, and get them back with
+ * results and chunks.  Attachments travel as raw bytes after the JSON, so they avoid the
+ * cost of Base64 encoding.  They can be exchanged only with RPC services that accept them.
+ * <p>
+ * For each destination, RPCCall records connect and handshake times, how often calls found an open
+ * connection, retries, and the round trip time of each method called.  dumpState() shows them, and
+ * clientStats() returns them in machine readable form.
  * 
  * @author zahorjan
  *
  */
 public class RPCCall extends NetLoadableService {
 	
-	private static final String TAG="RPCCall";
-	
-	private static final String ID_KEY = "id";
-	private static final String HOST_KEY = "host";
-	private static final String ACTION_KEY = "action";
-	private static final String TYPE_KEY = "type";
-	private static final String OPTIONS_KEY = "options";
-	private static final String CONNECTION_KEY = "connection";
-	private static final String MESSAGE_KEY_SHORT = "msg";
-	private static final String MESSAGE_KEY_LONG = "message";
-	private static final String APP_KEY = "app";
-	private static final String METHOD_KEY = "method";
-	private static final String ARG_KEY = "args";
-	private static final String VALUE_KEY = "value";
-	private static final String CALL_ID_KEY = "callid";
-	private static final String KEEP_ALIVE_VALUE = "keep-alive";
-	
-	private static final int CLEANUP_TIME = 10000;	// default idle time for cleaning up, 5 minutes, 300000ms
+	private static final int DEFAULT_PERSISTENCE_TIMEOUT = 30000;	// msec. a connection may sit idle before it's closed
+	private static final int DEFAULT_POOL_MIN = 1;
+	private static final int DEFAULT_POOL_MAX = 4;
+	private static final int DEFAULT_CONNECT_THREADS = 8;
+	private static final long CONNECT_THREAD_IDLE = 30000;	// msec. an unused connector thread lingers
 	
-	private static HashMap<String, Socket> cache = new HashMap<String, Socket>();
-	private static HashMap<String, Timer> cleaner = new HashMap<String, Timer>();
-	
-	private static int idCounter = 1;
+	private ConcurrentHashMap<String, RPCConnectionPool> cache = new ConcurrentHashMap<String, RPCConnectionPool>();
+	private int persistenceTimeout;
+	private int poolMin;
+	private int poolMax;
+	private boolean zeroRTT;
+	private long reapInterval;
+	private ScheduledFuture<?> reaper;
+	private AtomicLong cacheHits = new AtomicLong();
+	private AtomicLong cacheMisses = new AtomicLong();
+	private AtomicLong cacheEvictions = new AtomicLong();
+	// kept for every destination ever called, under the same key as cache, so they outlive idle pools
+	private ConcurrentHashMap<String, RPCDestinationStats> destinationStats = new ConcurrentHashMap<String, RPCDestinationStats>();
+
+	// times out calls that are waiting for a response, and runs the reaper
+	private static final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(_daemonThreads("RPCCall-timeout"));
+	// opens new connections, so that invokeAsync() callers never wait for a connect or handshake.  At most
+	// rpc.connect.threads connects are in progress at once; the rest wait their turn in its queue.
+	private ThreadPoolExecutor connector;
+
+	/**
+	 * Consumes the chunks of a streamed result.
+	 */
+	public interface ChunkReceiver {
+		/**
+		 * Called once for each chunk, in the order the remote method sent them.  Calls for one
+		 * invocation are never concurrent.  Throwing fails the invocation with the exception thrown.
+		 * @param attachments The binary attachments sent with the chunk.  Possibly empty.
+		 */
+		public void chunk(JSONObject chunk, List<ByteBuffer> attachments) throws Exception;
+	}
 
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
@@ -83,7 +134,31 @@ public class RPCCall extends NetLoadableService {
 			) throws JSONException, IOException {
 		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
 		if ( rpcCallObj == null ) throw new IOException("RPCCall.invoke() called but the RPCCall service isn't loaded");
-		return rpcCallObj._invoke(ip, port, serviceName, method, userRequest, socketTimeout, true);
+		return _await(rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, null, null, null, socketTimeout, true));
+	}
+
+	/**
+	 * Invokes method() on serviceName located on remote host ip:port, sending binary attachments along with
+	 * the arguments and collecting any that come back with the result.  Other arguments are as for invoke().
+	 * The remote method must take an RPCResponseStream to see the attachments (see RPCCallableMethod).
+	 * @param attachments Binary data to send, or null.  The remaining bytes of each buffer are sent.
+	 * @param resultAttachments If not null, the attachments returned with the result are added to it.
+	 * @return Returns whatever the remote method returns.
+	 * @throws IOException Also if there are attachments to send and the remote service doesn't accept them.
+	 */
+	public static JSONObject invoke(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			List<ByteBuffer> attachments,        // binary data sent with the arguments
+			List<ByteBuffer> resultAttachments,  // binary data returned with the result
+			int socketTimeout         // timeout for this call, in msec.
+			) throws JSONException, IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invoke() called but the RPCCall service isn't loaded");
+		return _await(rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, attachments, null, resultAttachments, socketTimeout, true));
 	}
 	
 	/**
@@ -102,6 +177,68 @@ public class RPCCall extends NetLoadableService {
 		return invoke(ip, port, serviceName, method, userRequest, socketTimeout);
 	}
 
+	/**
+	 * Invokes a streaming method() on serviceName located on remote host ip:port, passing each chunk of its
+	 * result to receiver as it arrives.  Arguments are otherwise as for invoke().  receiver runs on a thread
+	 * shared with other calls to the same host, so it should do little more than copy the chunk somewhere.
+	 * @param socketTimeout Max time to wait for the first chunk, between chunks, and for the final response, in msec.
+	 * @return The remote method's final return value, sent after the last chunk.
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public static JSONObject invokeStream(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			ChunkReceiver receiver,   // consumer of the streamed result
+			int socketTimeout         // timeout for this call, in msec.
+			) throws JSONException, IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invokeStream() called but the RPCCall service isn't loaded");
+		return _await(rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, null, receiver, null, socketTimeout, true));
+	}
+
+	/**
+	 * Invokes method() on serviceName located on remote host ip:port, without waiting for the result.
+	 * Arguments are as for invoke().
+	 * @return A future that completes with whatever the remote method returns, or exceptionally with
+	 *  the IOException or JSONException invoke() would have thrown.  A SocketTimeoutException means
+	 *  no response arrived within socketTimeout msec.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) {
+			CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+			result.completeExceptionally(new IOException("RPCCall.invokeAsync() called but the RPCCall service isn't loaded"));
+			return result;
+		}
+		return rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, null, null, null, socketTimeout, true);
+	}
+
+	/**
+	 * A convenience implementation of invokeAsync() that uses the net.timeout.socket entry from the config file,
+	 * or 2 seconds if that doesn't exist, as the timeout.
+	 */
+	public static CompletableFuture<JSONObject> invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method,
+			) {
+		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		return invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout);
+	}
+
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
 	
@@ -110,195 +247,278 @@ public class RPCCall extends NetLoadableService {
 	 */
 	public RPCCall() {
 		super("rpccall");
+		ConfigManager config = NetBase.theNetBase().config();
+		persistenceTimeout = config.getAsInt("rpc.persistence.timeout", DEFAULT_PERSISTENCE_TIMEOUT);
+		poolMin = config.getAsInt("rpc.pool.min", DEFAULT_POOL_MIN);
+		poolMax = config.getAsInt("rpc.pool.max", DEFAULT_POOL_MAX);
+		zeroRTT = config.getAsInt("rpc.zerortt", 1) != 0;
+		int connectThreads = config.getAsInt("rpc.connect.threads", DEFAULT_CONNECT_THREADS, 1);
+		connector = new ThreadPoolExecutor(connectThreads, connectThreads, CONNECT_THREAD_IDLE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), _daemonThreads("RPCCall-connect"));
+		connector.allowCoreThreadTimeOut(true);
+		// a connection is closed between one and one and a quarter persistence timeouts after its last use
+		reapInterval = Math.max(1, persistenceTimeout / 4);
+		reaper = timeoutScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				_reapIdleConnections();
+			}
+		}, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
 	}
 
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
 	 * Note that because we may issue the call twice, we  may (a) cause it to be executed twice at the server(!),
-	 * and (b) may end up blocking the caller for around twice the timeout specified in the call. (!)
+	 * and (b) may end up taking around twice the timeout specified in the call to complete. (!)
+	 * <p>
+	 * Any number of threads may be in this method at once.  Calls to the same ip:port share its
+	 * pool of persistent connections, on which they are pipelined.  Nothing here blocks: a new connection is
+	 * made on a connector thread, and the result is delivered by the connection's reader thread.
 	 * 
 	 * @param ip
 	 * @param port
 	 * @param serviceName
 	 * @param method
 	 * @param userRequest
+	 * @param attachments Binary data sent with the arguments, or null
+	 * @param receiver Consumer of a streamed result, or null
+	 * @param resultAttachments Where the result's attachments go, or null
 	 * @param socketTimeout Max time to wait for this call
-	 * @param tryAgain Set to true if you want to repeat call if a socket error occurs; e.g., persistent socket is no good when you use it
+	 * @param tryAgain Set to true if you want to repeat call if a socket error occurs; e.g., persistent socket is no good when you use it.
+	 *   A streamed call is repeated only if none of its result has been received.
 	 * @return
-	 * @throws JSONException
-	 * @throws IOException
 	 */
-	private JSONObject _invoke(
-			String ip,				  // ip or dns name of remote host
-			int port,                 // port that RPC is listening on on the remote host
-			String serviceName,       // name of the remote service
-			String method,            // name of that service's method to invoke
-			JSONObject userRequest,   // arguments to send to remote method
-			int socketTimeout,        // max time to wait for reply
-			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
-			) throws JSONException, IOException {
-		// For persistent connection, we will do a mapping from IP,port(String typed) --> Socket
-		JSONObject retval = null;
+	private CompletableFuture<JSONObject> _invokeAsync(
+			final String ip,				  // ip or dns name of remote host
+			final int port,                 // port that RPC is listening on on the remote host
+			final String serviceName,       // name of the remote service
+			final String method,            // name of that service's method to invoke
+			final JSONObject userRequest,   // arguments to send to remote method
+			final List<ByteBuffer> attachments,        // binary data sent with the arguments, or null
+			final ChunkReceiver receiver,              // consumer of streamed result, or null
+			final List<ByteBuffer> resultAttachments,  // where the result's attachments go, or null
+			final int socketTimeout,        // max time to wait for reply
+			final boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
+			) {
+		// For persistent connection, we will do a mapping from IP,port(String typed) --> RPCConnectionPool
 		final String key = ip + "," + port;
-		Socket socket = cache.get(key);
-		TCPMessageHandler messageHandler = null;
-		String hostName = "";
-		if (socket == null) {
-			socket = new Socket(ip, port);
-			socket.setSoTimeout(socketTimeout);
-			hostName = socket.getLocalAddress().toString();
-			messageHandler = new TCPMessageHandler(socket);
-			// First, send the connect message
-			JSONObject recvObject = connectToHost(hostName, messageHandler, key);
-			// Got the success response, persist the connection
-			if (recvObject.has(TYPE_KEY) && recvObject.getString(TYPE_KEY).equalsIgnoreCase("OK")
-				&& recvObject.has(VALUE_KEY) && recvObject.getJSONObject(VALUE_KEY).getString(CONNECTION_KEY).equalsIgnoreCase(KEEP_ALIVE_VALUE)) {
-				cache.put(key, socket);	
-			}
-		} else {
-			Timer t = cleaner.get(key);
-			t.cancel();
-			hostName = socket.getLocalAddress().toString();
-			socket.setSoTimeout(socketTimeout);
-			messageHandler = new TCPMessageHandler(socket);
+		final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+		final RPCDestinationStats stats = _destinationStats(key);
+
+		RPCConnectionPool pool = cache.get(key);
+		if ( pool == null ) {
+			RPCConnectionPool newPool = new RPCConnectionPool(ip, port, poolMin, poolMax, socketTimeout, connector, timeoutScheduler, stats);
+			pool = cache.putIfAbsent(key, newPool);
+			if ( pool == null ) pool = newPool;
 		}
-		// create the timer and put it in the map
-		Timer timer = scheduleCleaner(key);	
-		// and we are ready to invoke methods
-		cleaner.put(key, timer);
-		try {
-			JSONObject recvObject = invokeRemoteMethod(ip, serviceName, method, userRequest, hostName,
-				messageHandler, key);
-			if (recvObject.has(VALUE_KEY)) {
-				retval = recvObject.getJSONObject(VALUE_KEY);
-			}
-		} catch (SocketException e) {
-			if (tryAgain) {
-				_invoke(ip, port, serviceName, method, userRequest, socketTimeout, false);
+		final RPCConnectionPool thePool = pool;
+
+		RPCCallerSocket socket = pool.leastLoaded();
+		if ( socket != null ) {
+			cacheHits.incrementAndGet();
+			stats.hits.increment();
+			_invokeOn(key, pool, stats, socket, true, ip, port, serviceName, method, userRequest, attachments, receiver, resultAttachments, socketTimeout, tryAgain, result);
+			return result;
+		}
+
+		cacheMisses.incrementAndGet();
+		stats.misses.increment();
+		// the connect options can go with the call unless it has attachments, which need the remote side's agreement first
+		pool.connect(zeroRTT && (attachments == null || attachments.isEmpty())).whenComplete((newSocket, failure) -> {
+			if ( failure != null ) {
+				RPCDestinationStats.MethodStats methodStats = stats.method(serviceName, method);
+				methodStats.calls.increment();
+				methodStats.failures.increment();
+				result.completeExceptionally(failure);
 			} else {
-				if (socket != null) {
-					socket.close();
-				}
-				throw new SocketException(e.getMessage());
+				// a call that waited for a connection being opened may be handed an existing pooled one
+				_invokeOn(key, thePool, stats, newSocket, thePool.contains(newSocket), ip, port, serviceName, method, userRequest, attachments, receiver, resultAttachments, socketTimeout, tryAgain, result);
 			}
-		}
-		return retval;
+		});
+		return result;
 	}
 
-	// schedule a cleaner task to CLEANUP_TIME, assuming that if there's no traffic for CLEANUP_TIME
-	// it is safe to close the socket rather than wasting memory to keep track of the socket
-	private Timer scheduleCleaner(final String key) {
-		Timer timer = new Timer();
-		timer.schedule(new TimerTask() {
+	/**
+	 * Sends the call on socket, arranging for its outcome to complete result.
+	 * @param stats Where the call's outcome and round trip time are recorded.
+	 * @param fromCache True if socket was an existing persistent connection, which might have gone bad while idle.
+	 */
+	private void _invokeOn(
+			final String key,
+			final RPCConnectionPool pool,
+			final RPCDestinationStats stats,
+			final RPCCallerSocket socket,
+			final boolean fromCache,
+			final String ip,
+			final int port,
+			final String serviceName,
+			final String method,
+			final JSONObject userRequest,
+			final List<ByteBuffer> attachments,
+			final ChunkReceiver receiver,
+			final List<ByteBuffer> resultAttachments,
+			final int socketTimeout,
+			final boolean tryAgain,
+			final CompletableFuture<JSONObject> result
+			) {
+		// a streamed call can't be repeated once the receiver has seen part of the result
+		final AtomicInteger nChunks = receiver == null ? null : new AtomicInteger();
+		ChunkReceiver counted = receiver == null ? null : new ChunkReceiver() {
 			@Override
-			public void run() {
-				System.out.println("cleaning up cache...");
-				Socket sock = cache.remove(key);
-				cleaner.remove(key);
-				try {
-					if (sock != null) {
-						sock.close();
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
+			public void chunk(JSONObject chunk, List<ByteBuffer> chunkAttachments) throws Exception {
+				nChunks.incrementAndGet();
+				receiver.chunk(chunk, chunkAttachments);
+			}
+		};
+		final RPCDestinationStats.MethodStats methodStats = stats.method(serviceName, method);
+		final long sentAt = System.nanoTime();
+		socket.invokeAsync(serviceName, method, userRequest, attachments, counted, resultAttachments, socketTimeout).whenComplete((value, failure) -> {
+			if ( failure instanceof SocketException ) {
+				// the connection failed (rather than the remote method)
+				pool.remove(socket);
+				if ( tryAgain && fromCache && (nChunks == null || nChunks.get() == 0) ) {
+					// the repeated call is counted when it completes
+					stats.retries.increment();
+					_invokeAsync(ip, port, serviceName, method, userRequest, attachments, receiver, resultAttachments, socketTimeout, false).whenComplete((retryValue, retryFailure) -> {
+						if ( retryFailure != null ) result.completeExceptionally(retryFailure);
+						else result.complete(retryValue);
+					});
+					return;
 				}
+			} else {
+				_release(key, pool, socket);
 			}
-		}, CLEANUP_TIME);
-		return timer;
+			methodStats.calls.increment();
+			if ( failure != null ) {
+				methodStats.failures.increment();
+				result.completeExceptionally(failure);
+			} else {
+				methodStats.roundTripTime.recordNanos(System.nanoTime() - sentAt);
+				result.complete(value);
+			}
+		});
 	}
-	
-	// Connects to the host
-	private JSONObject connectToHost(String ip, TCPMessageHandler messageHandler, String key)
-			throws JSONException, IOException {
-		JSONObject optionsMessage = new JSONObject().put(CONNECTION_KEY, "keep-alive");  // set it to be persistent
-		JSONObject connectMessage = new JSONObject().put(ID_KEY, idCounter)
-													.put(HOST_KEY, ip)
-													.put(ACTION_KEY, "connect")
-													.put(TYPE_KEY, "control")
-													.put(OPTIONS_KEY, optionsMessage);
-		return sendMessage(ip, messageHandler, connectMessage, key);
+
+	private RPCDestinationStats _destinationStats(String key) {
+		RPCDestinationStats stats = destinationStats.get(key);
+		if ( stats == null ) {
+			RPCDestinationStats newStats = new RPCDestinationStats();
+			stats = destinationStats.putIfAbsent(key, newStats);
+			if ( stats == null ) stats = newStats;
+		}
+		return stats;
 	}
-	
-	// Invokes the remote method
-	private JSONObject invokeRemoteMethod(String ip, String serviceName,
-			String method, JSONObject userRequest, String hostName,
-			TCPMessageHandler messageHandler, String key) throws JSONException, IOException {
-		JSONObject invokeMessage = new JSONObject().put(ID_KEY, idCounter)
-												   .put(APP_KEY, serviceName)
-												   .put(HOST_KEY, hostName)
-												   .put(METHOD_KEY, method)
-												   .put(TYPE_KEY, "invoke")
-												   .put(ARG_KEY, userRequest);
-		return sendMessage(ip, messageHandler, invokeMessage, key);
+
+	/**
+	 * Called when a call on socket has finished.  Closes the socket unless it's a pooled connection
+	 * (which the reaper will close once it has been idle long enough).
+	 */
+	private void _release(String key, RPCConnectionPool pool, RPCCallerSocket socket) {
+		if ( cache.get(key) == pool && pool.contains(socket) ) return;
+		if ( socket.outstandingCalls() == 0 ) socket.discard();
 	}
 
-	// sends the message over the network
-	private JSONObject sendMessage(String ip, TCPMessageHandler messageHandler,
-			JSONObject invokeMessage, String key) throws IOException, JSONException {
-		JSONObject recvObject = null;
+	/**
+	 * Waits for an invokeAsync() result, throwing whatever the invocation failed with.
+	 */
+	private static JSONObject _await(CompletableFuture<JSONObject> result) throws JSONException, IOException {
 		try {
-			messageHandler.sendMessage(invokeMessage);			
-			recvObject = messageHandler.readMessageAsJSONObject();
-			if (recvObject.has(CALL_ID_KEY)) {
-				int callid = recvObject.getInt(CALL_ID_KEY);
-				if (callid != idCounter) {
-					throw new IOException("The ids do not match");
-				}
-			}
-			if (!didSucceed(recvObject)) {
-				// we cannot establish the connection
-				String msg = "";
-				if (recvObject.has(MESSAGE_KEY_LONG)) {
-					msg = recvObject.getString(MESSAGE_KEY_LONG);
-				} else {
-					msg = recvObject.getString(MESSAGE_KEY_SHORT);
-				}
-				throw new IOException(msg);
-			}
-			idCounter++;
-		} catch (SocketTimeoutException e) {
-			cleanup(invokeMessage, key, e);
-		} catch (IOException e1) {
-			cleanup(invokeMessage, key, e1);
+			return result.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for RPC response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) throw (IOException)cause;
+			if ( cause instanceof JSONException ) throw (JSONException)cause;
+			throw new IOException(cause);
 		}
-		return recvObject;
 	}
 
-	private void cleanup(JSONObject invokeMessage, String key, IOException e1)
-			throws IOException {
-		Socket removed = cache.remove(key);
-		Timer t = cleaner.remove(key);
-		if (removed != null) {
-			removed.close();
-		}
-		if (t != null) {
-			t.cancel();
-		}
-		String errorMessage = "rpcPing failed: java.io.IOException Error processing request " + invokeMessage + ": " + e1.getMessage();
-		throw new IOException(errorMessage);
+	private static ThreadFactory _daemonThreads(final String name) {
+		final AtomicInteger threadNum = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + threadNum.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
 	}
 
-	// Returns whether the message received was a success or not
-	private boolean didSucceed(JSONObject recvObject) throws JSONException {
-		return recvObject.has(TYPE_KEY) && recvObject.getString(TYPE_KEY).equalsIgnoreCase("ok");
+	/**
+	 * Executed periodically by the reaper.  Closes cached connections with no calls outstanding
+	 * that haven't been used for persistenceTimeout msec.
+	 */
+	private void _reapIdleConnections() {
+		long now = System.currentTimeMillis();
+		for ( Map.Entry<String, RPCConnectionPool> entry : cache.entrySet() ) {
+			RPCConnectionPool pool = entry.getValue();
+			int nEvicted = pool.reapIdle(now - persistenceTimeout);
+			if ( nEvicted > 0 ) {
+				cacheEvictions.addAndGet(nEvicted);
+				_destinationStats(entry.getKey()).evictions.add(nEvicted);
+			}
+			if ( pool.isEmpty() ) {
+				cache.remove(entry.getKey(), pool);
+				continue;
+			}
+			pool.probeIdle(now - reapInterval);
+		}
 	}
 
 	@Override
 	public void shutdown() {
-		for (String host : cache.keySet()) {
-			Socket sock = cache.get(host);
-			try {
-				if (sock != null)
-					sock.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			cache.remove(host);
+		super.shutdown();
+		reaper.cancel(false);
+		connector.shutdown();
+		for ( String key : cache.keySet() ) {
+			RPCConnectionPool pool = cache.remove(key);
+			if ( pool != null ) pool.close();
 		}
 	}
 
 	@Override
 	public String dumpState() {
-		return "Current persistent connections are ... " + cache.size();
+		StringBuilder sb = new StringBuilder();
+		int nConnections = 0;
+		for ( RPCConnectionPool pool : cache.values() ) {
+			nConnections += pool.size();
+			sb.append("\t").append(pool).append("\n");
+		}
+		StringBuilder perDestination = new StringBuilder();
+		for ( Map.Entry<String, RPCDestinationStats> entry : destinationStats.entrySet() ) {
+			perDestination.append("\t").append(_destinationName(entry.getKey())).append(": ").append(entry.getValue());
+		}
+		return "Current persistent connections are ... " + nConnections + "\n" + sb +
+				"Connection cache hits: " + cacheHits.get() + ", misses: " + cacheMisses.get() +
+				", evictions: " + cacheEvictions.get() + " (idle timeout " + persistenceTimeout + " msec.)\n" +
+				"Connects in progress: " + connector.getActiveCount() + " of " + connector.getMaximumPoolSize() +
+				", waiting: " + connector.getQueue().size() + "\n" +
+				"Per destination:\n" + perDestination;
+	}
+	
+	/**
+	 * A machine readable copy of the per-destination statistics shown by dumpState().  The result has a
+	 * member for each ip:port called, whose value is
+	 * {"hits":n, "misses":n, "hitrate":f, "retries":n, "evictions":n, "connectfailures":n, "connect":{...},
+	 *  "handshake":{...}, "methods":{"app":{"method":{"calls":n, "failures":n, "rtt":{...}}, ...}, ...}}.
+	 * <p>
+	 * hits and misses count calls that did and didn't find an open connection to use; retries counts calls
+	 * repeated because a persistent connection turned out to be dead; evictions counts connections closed
+	 * after sitting idle for rpc.persistence.timeout.  connect, handshake and rtt summarize times, in
+	 * microseconds, as {"count":n, "mean":usec, "p50":usec, "p99":usec, "p999":usec, "max":usec}.
+	 */
+	public JSONObject clientStats() throws JSONException {
+		JSONObject result = new JSONObject();
+		for ( Map.Entry<String, RPCDestinationStats> entry : destinationStats.entrySet() ) {
+			result.put(_destinationName(entry.getKey()), entry.getValue().toJSON());
+		}
+		return result;
+	}
+	
+	// cache keys are ip,port
+	private static String _destinationName(String key) {
+		return key.replace(',', ':');
 	}
 }
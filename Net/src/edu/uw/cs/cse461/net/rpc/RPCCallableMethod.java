@@ -1,9 +1,12 @@
 package edu.uw.cs.cse461.net.rpc;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.function.Function;
 
 import org.json.JSONObject;
 
@@ -13,46 +16,171 @@ import edu.uw.cs.cse461.util.Log;
  * An object of this type represents an RPC callable method.  You'll have one
  * object of this type for each method you expose by RPC.
  * <p>
- * The parameterized type, T, is the class exposing the method.
+ * The method can be given by name, in which case it's looked up once, when the
+ * RPCCallableMethod is constructed, and bound to a generated implementation of
+ * Handler or StreamingHandler.  Calls then go straight to the method, without
+ * the cost of reflection.  Alternatively, the method can be given directly, as
+ * a Handler, a StreamingHandler, or a Function.
  * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
  *
- * @param <T>
  */
 public class RPCCallableMethod {
 	private static final String TAG="RPCCallableMethod";
-	
-	Object service;
-	Method method;
+
+	/**
+	 * An RPC method that returns its whole result at once.
+	 */
+	public interface Handler {
+		JSONObject handleCall(JSONObject args) throws Exception;
+	}
+
 	/**
-	 * Constructor.
+	 * An RPC method that sends its result in chunks.  See RPCResponseStream.
+	 */
+	public interface StreamingHandler {
+		JSONObject handleCall(JSONObject args, RPCResponseStream stream) throws Exception;
+	}
+
+	private Handler handler;
+	private StreamingHandler streamingHandler;
+	private String name;
+
+	/**
+	 * Constructor.  The named method either takes a JSONObject, or a JSONObject and an RPCResponseStream.
+	 * The second form is a streaming method: it sends its result in chunks using the stream, and its
+	 * return value is sent as the final response once all chunks have been sent.  The stream also
+	 * carries binary attachments, so a method that sends or receives them must use the second form.
 	 * @param serviceObject The Java instance of the object that will field the RPC
 	 * @param methodName The name of the Java method to invoke on that object, as a String
 	 * @throws NoSuchMethodException
 	 */
-	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException { 
-		service = serviceObject; 
-		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
-		method = serviceClass.getMethod(methodName, JSONObject.class);
+	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException {
+		Class<? extends Object> serviceClass = serviceObject.getClass();
+		name = serviceClass.getSimpleName() + "." + methodName;
+		try {
+			Method method = serviceClass.getMethod(methodName, JSONObject.class);
+			handler = (Handler)_bind(serviceObject, method, Handler.class, MethodType.methodType(JSONObject.class, JSONObject.class));
+		} catch (NoSuchMethodException e) {
+			Method method = serviceClass.getMethod(methodName, JSONObject.class, RPCResponseStream.class);
+			streamingHandler = (StreamingHandler)_bind(serviceObject, method, StreamingHandler.class,
+					MethodType.methodType(JSONObject.class, JSONObject.class, RPCResponseStream.class));
+		}
+	}
+
+	public RPCCallableMethod(Handler handler) {
+		this.handler = handler;
+		name = handler.getClass().getName();
+	}
+
+	public RPCCallableMethod(StreamingHandler handler) {
+		streamingHandler = handler;
+		name = handler.getClass().getName();
+	}
+
+	/**
+	 * Wraps a plain function.  It can report failure only by throwing an unchecked exception.
+	 */
+	public static RPCCallableMethod of(final Function<JSONObject,JSONObject> function) {
+		RPCCallableMethod callable = new RPCCallableMethod(new Handler() {
+			@Override
+			public JSONObject handleCall(JSONObject args) {
+				return function.apply(args);
+			}
+		});
+		callable.name = function.getClass().getName();
+		return callable;
+	}
+
+	/**
+	 * Returns an implementation of handlerInterface, whose single method has type samType,
+	 * that calls method on serviceObject.  A class implementing the interface is generated
+	 * the same way the compiler does for a method reference, so the JIT can inline through it.
+	 * If that can't be done (the service class isn't public, say) the method is called
+	 * through a MethodHandle instead.  Either way, the lookup is done just once, here.
+	 */
+	private static Object _bind(Object serviceObject, Method method, Class<?> handlerInterface, MethodType samType) throws NoSuchMethodException {
+		MethodHandle target;
+		try {
+			target = MethodHandles.publicLookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new NoSuchMethodException("Can't access " + method + ": " + e.getMessage());
+		}
+		try {
+			CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "handleCall",
+					MethodType.methodType(handlerInterface, method.getDeclaringClass()),
+					samType, target, target.type().dropParameterTypes(0, 1));
+			return site.getTarget().invoke(serviceObject);
+		} catch (Throwable e) {
+			Log.d(TAG, "Calling " + method.getName() + "() through a MethodHandle: " + e.getMessage());
+		}
+		final MethodHandle bound = target.bindTo(serviceObject).asType(samType);
+		if ( handlerInterface == Handler.class ) {
+			return new Handler() {
+				@Override
+				public JSONObject handleCall(JSONObject args) throws Exception {
+					try {
+						return (JSONObject)bound.invokeExact(args);
+					} catch (Exception | Error e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new Exception(e);
+					}
+				}
+			};
+		}
+		return new StreamingHandler() {
+			@Override
+			public JSONObject handleCall(JSONObject args, RPCResponseStream stream) throws Exception {
+				try {
+					return (JSONObject)bound.invokeExact(args, stream);
+				} catch (Exception | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new Exception(e);
+				}
+			}
+		};
 	}
+
+	/**
+	 * True if the method sends its result through an RPCResponseStream.
+	 */
+	public boolean isStreaming() {
+		return streamingHandler != null;
+	}
+
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
 	 * @param args  The arguments to pass on this call
 	 * @return The JSONObject returned by the RPC handling method of the service
-	 * @throws Exception
+	 * @throws Exception Whatever the handling method threw.
 	 */
 	public JSONObject handleCall(JSONObject args) throws Exception {
+		return handleCall(args, null);
+	}
+
+	/**
+	 * Invokes the method, passing it stream if it's a streaming method.
+	 * @param args  The arguments to pass on this call
+	 * @param stream Where a streaming method sends its chunks.  Ignored if the method isn't streaming.
+	 * @return The JSONObject returned by the RPC handling method of the service
+	 * @throws Exception Whatever the handling method threw.
+	 */
+	public JSONObject handleCall(JSONObject args, RPCResponseStream stream) throws Exception {
 		try {
-			return (JSONObject)method.invoke(service, args);
+			if ( streamingHandler != null ) return streamingHandler.handleCall(args, stream);
+			return handler.handleCall(args);
 		} catch (Exception e) {
-			final Writer trace = new StringWriter();
-			final PrintWriter printWriter = new PrintWriter(trace);
-			e.printStackTrace(printWriter);
-			Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
-			printWriter.close();
-			trace.close();
+			// the caller gets the message in an error response; a stack trace here would only slow down a failing call
+			Log.w(TAG, name + " threw " + e.getClass().getSimpleName() + ": " + e.getMessage());
 			throw e;
 		}
 	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
 }
@@ -0,0 +1,480 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.BufferPool;
+import edu.uw.cs.cse461.util.LatencyHistogram;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The RPCService side of a single TCP connection from a caller.
+ * <p>
+ * The connection is non-blocking and is driven by the RPCService selector thread.
+ * Incoming bytes are assembled into messages using the same on-the-wire format as
+ * TCPMessageHandler (a 4-byte little endian length followed by that many bytes of data),
+ * and outgoing messages are queued and written as the socket becomes writable.
+ * <p>
+ * Responses may be queued by RPCService worker threads, so the write queue is synchronized.
+ * Only the selector thread reads, flushes, or changes the interest set.
+ * <p>
+ * The read buffer and outgoing frames come from the BufferPool, and are returned to it
+ * when the frame has been written or the connection is closed.  A frame bigger than the
+ * pool's largest buffer is queued as several pooled buffers, written one after another.
+ * <p>
+ * A message with attachments is followed on the wire by the attachments, one per frame.
+ * The connection holds on to such a message until all its attachments have been read.
+ * Messages are taken off the read buffer one at a time, so that once a message has been
+ * found to have attachments, the length of each is checked against what the rest may add
+ * up to before any space is allocated for it.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCCalleeConnection {
+	private static final String TAG="RPCCalleeConnection";
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int LENGTH_FIELD_SIZE = 4;
+
+	enum State {
+		FRESH, PERSISTENT, COMPLETED
+	}
+
+	private SocketChannel mChannel;
+	private SelectionKey mKey;
+	private volatile State mState;
+	private int mMaxReadLength;
+	private volatile long mLastActivity;
+	private String mRemoteAddress;
+	private InetAddress mRemoteHost;
+	private boolean mIsRefused = false;   // accepted only to tell the caller the service is full
+	private volatile boolean mAcceptsAttachments = false;
+	private volatile RPCCodec mCodec = RPCCodec.JSON;
+	
+	// answer to connect options that arrived with an invocation, until it's sent with the first response to that call
+	private volatile JSONObject mHandshakeAck;
+	private int mHandshakeCallid;
+
+	// read side: bytes off the wire, and the message currently being assembled (null while reading a length field)
+	private ByteBuffer mReadBuf;
+	private byte[] mMessage;
+	private int mMessageFilled;
+	
+	// a message waiting for its attachments to arrive, and the ones that have (used only by the selector thread)
+	private RPCMessage mAwaitingAttachments;
+	private List<ByteBuffer> mAttachments;     // null if they're being read only to be thrown away
+	private int mAttachmentsLeft;
+	private long mAttachmentAllowance;         // bytes the attachments still to come may add up to
+
+	// write side: length-prefixed messages waiting for the socket to become writable
+	private LinkedList<ByteBuffer> mWriteQueue = new LinkedList<ByteBuffer>();
+	private long mQueuedBytes = 0;         // guarded by mWriteQueue
+	private boolean mIsClosed = false;     // guarded by mWriteQueue
+	
+	// messages whose write time is being measured, in queue order (guarded by mWriteQueue)
+	private LinkedList<TimedWrite> mTimedWrites = new LinkedList<TimedWrite>();
+	private long mTotalQueuedBytes = 0;
+	private long mTotalWrittenBytes = 0;
+	
+	// invocations handed to a worker that haven't yet produced a response
+	private AtomicInteger mPendingCalls = new AtomicInteger();
+
+	RPCCalleeConnection(SocketChannel channel, SelectionKey key, int maxReadLength) {
+		mChannel = channel;
+		mKey = key;
+		mState = State.FRESH;
+		mMaxReadLength = maxReadLength;
+		mReadBuf = BufferPool.acquire(READ_BUFFER_SIZE);
+		mReadBuf.order(ByteOrder.LITTLE_ENDIAN);
+		mReadBuf.limit(0);   // holds unconsumed bytes between position and limit
+		mLastActivity = System.currentTimeMillis();
+		mRemoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+		mRemoteHost = channel.socket().getInetAddress();
+	}
+
+	State state() {
+		return mState;
+	}
+
+	void setState(State state) {
+		mState = state;
+	}
+
+	long lastActivity() {
+		return mLastActivity;
+	}
+
+	String remoteAddress() {
+		return mRemoteAddress;
+	}
+
+	/**
+	 * The caller's address, without its port.
+	 */
+	InetAddress remoteHost() {
+		return mRemoteHost;
+	}
+
+	/**
+	 * True if the connection was accepted when the service already had as many as it allows.  Its first
+	 * message is answered with an ERROR, and then it's closed.
+	 */
+	boolean isRefused() {
+		return mIsRefused;
+	}
+
+	void setRefused(boolean refused) {
+		mIsRefused = refused;
+	}
+	
+	/**
+	 * The encoding used for messages on this connection.  It's JSON until the connect handshake picks another.
+	 */
+	RPCCodec codec() {
+		return mCodec;
+	}
+	
+	void setCodec(RPCCodec codec) {
+		mCodec = codec;
+	}
+	
+	/**
+	 * Saves ack, the answer to connect options sent with invocation callid, to be sent with the first response to that call.
+	 */
+	synchronized void setHandshakeAck(int callid, JSONObject ack) {
+		mHandshakeCallid = callid;
+		mHandshakeAck = ack;
+	}
+	
+	/**
+	 * If callid is the call passed to setHandshakeAck(), returns the ack it was given.  Returns it only once.
+	 * @return The ack, or null.
+	 */
+	JSONObject takeHandshakeAck(int callid) {
+		if ( mHandshakeAck == null ) return null;
+		synchronized(this) {
+			if ( mHandshakeAck == null || mHandshakeCallid != callid ) return null;
+			JSONObject ack = mHandshakeAck;
+			mHandshakeAck = null;
+			return ack;
+		}
+	}
+	
+	/**
+	 * True if the caller said, when it connected, that it understands responses with attachments.
+	 */
+	boolean acceptsAttachments() {
+		return mAcceptsAttachments;
+	}
+	
+	void setAcceptsAttachments(boolean accepts) {
+		mAcceptsAttachments = accepts;
+	}
+	
+	/**
+	 * Holds on to msg until the attachments it announces have been read.  Each message read
+	 * after this is passed to addAttachment(), not treated as a message in its own right.
+	 * @param maxBytes The most the attachments may add up to.  The connection fails if they're longer.
+	 * @param keep False to read the attachments only to throw them away (e.g., because the call has been refused).
+	 */
+	void awaitAttachments(RPCMessage msg, long maxBytes, boolean keep) {
+		mAwaitingAttachments = msg;
+		mAttachments = keep ? new ArrayList<ByteBuffer>(msg.attachmentCount()) : null;
+		mAttachmentsLeft = msg.attachmentCount();
+		mAttachmentAllowance = maxBytes;
+	}
+	
+	boolean awaitingAttachments() {
+		return mAwaitingAttachments != null;
+	}
+	
+	/**
+	 * Adds an attachment to the message passed to awaitAttachments().
+	 * @return That message, with its attachments set, if this was its last attachment and they're
+	 *   being kept; otherwise null.
+	 */
+	RPCMessage addAttachment(byte[] attachment) throws JSONException {
+		if ( mAttachments != null ) mAttachments.add(ByteBuffer.wrap(attachment));
+		if ( --mAttachmentsLeft > 0 ) return null;
+		RPCMessage msg = mAttachments == null ? null : mAwaitingAttachments;
+		if ( msg != null ) msg.setAttachments(mAttachments);
+		mAwaitingAttachments = null;
+		mAttachments = null;
+		return msg;
+	}
+	
+	/**
+	 * Forgets the message waiting for its attachments, if there is one, and any attachments read for it.
+	 * @return True if there was one whose attachments were being kept.
+	 */
+	boolean abandonAttachments() {
+		boolean wasKeeping = mAttachments != null;
+		mAwaitingAttachments = null;
+		mAttachments = null;
+		return wasKeeping;
+	}
+
+	/**
+	 * Takes the next complete message off the connection, reading from the socket without blocking if
+	 * what has already been read doesn't complete one.  Messages are taken one at a time so that the
+	 * handling of each (awaitAttachments() in particular) applies to how the next is read.
+	 * @return The message, or null if the socket has nothing more for now.
+	 * @throws EOFException If the caller has closed its side of the connection.
+	 * @throws IOException If a message claims to be longer than the maximum read length, or than its
+	 *   message's remaining attachment allowance.
+	 */
+	byte[] nextMessage() throws IOException {
+		while ( true ) {
+			byte[] msg = _extractMessage();
+			if ( msg != null ) return msg;
+			mReadBuf.compact();
+			int len;
+			try {
+				len = mChannel.read(mReadBuf);
+			} finally {
+				mReadBuf.flip();
+			}
+			if ( len < 0 ) throw new EOFException("Connection closed by " + remoteAddress());
+			if ( len == 0 ) return null;
+			mLastActivity = System.currentTimeMillis();
+		}
+	}
+
+	// Moves bytes from mReadBuf into the message being assembled, returning it if it's now complete
+	private byte[] _extractMessage() throws IOException {
+		if ( mMessage == null ) {
+			if ( mReadBuf.remaining() < LENGTH_FIELD_SIZE ) return null;
+			int length = mReadBuf.getInt();
+			if ( length < 0 || length > mMaxReadLength )
+				throw new IOException("Bad message length " + length + " (max is " + mMaxReadLength + ")");
+			if ( mAwaitingAttachments != null ) {
+				if ( length > mAttachmentAllowance )
+					throw new IOException("Attachments of " + mAwaitingAttachments + " are longer than allowed");
+				mAttachmentAllowance -= length;
+			}
+			mMessage = new byte[length];
+			mMessageFilled = 0;
+		}
+		int n = Math.min(mReadBuf.remaining(), mMessage.length - mMessageFilled);
+		mReadBuf.get(mMessage, mMessageFilled, n);
+		mMessageFilled += n;
+		if ( mMessageFilled < mMessage.length ) return null;
+		byte[] msg = mMessage;
+		mMessage = null;
+		return msg;
+	}
+
+	void callStarted() {
+		mPendingCalls.incrementAndGet();
+	}
+	
+	void callFinished() {
+		mPendingCalls.decrementAndGet();
+	}
+	
+	int pendingCalls() {
+		return mPendingCalls.get();
+	}
+
+	/**
+	 * Queues a message for sending.  The caller must then arrange for enableWrite() to be
+	 * called on the selector thread.
+	 */
+	void send(byte[] buf) {
+		send(ByteBuffer.wrap(buf), Collections.<ByteBuffer>emptyList());
+	}
+	
+	/**
+	 * Queues a message and the attachments that follow it.  Nothing else is sent between them.
+	 * The remaining bytes of msg and of each attachment are copied before send() returns, so the
+	 * caller may reuse the buffers.  The attachments' positions aren't changed.
+	 */
+	void send(ByteBuffer msg, List<ByteBuffer> attachments) {
+		send(msg, attachments, null);
+	}
+	
+	/**
+	 * Like send(msg, attachments), but also records in writeTime how long it takes from now until
+	 * the message and its attachments have been written to the socket.
+	 * @param writeTime May be null.
+	 */
+	void send(ByteBuffer msg, List<ByteBuffer> attachments, LatencyHistogram writeTime) {
+		if ( attachments.isEmpty() && LENGTH_FIELD_SIZE + msg.remaining() <= BufferPool.MAX_POOLED_SIZE ) {
+			_enqueue(Collections.singletonList(_frame(msg)), writeTime);
+			return;
+		}
+		List<ByteBuffer> frames = new ArrayList<ByteBuffer>(1 + attachments.size());
+		_frame(msg, frames);
+		for ( ByteBuffer attachment : attachments ) _frame(attachment.duplicate(), frames);
+		_enqueue(frames, writeTime);
+	}
+	
+	private void _enqueue(List<ByteBuffer> frames, LatencyHistogram writeTime) {
+		synchronized(mWriteQueue) {
+			// a worker may finish a call after the connection has been closed
+			if ( mIsClosed ) {
+				for ( ByteBuffer frame : frames ) BufferPool.release(frame);
+				return;
+			}
+			for ( ByteBuffer frame : frames ) {
+				mWriteQueue.add(frame);
+				mQueuedBytes += frame.remaining();
+				mTotalQueuedBytes += frame.remaining();
+			}
+			if ( writeTime != null ) mTimedWrites.add(new TimedWrite(mTotalQueuedBytes, writeTime));
+		}
+	}
+	
+	// A message whose write time is being measured: it has been written once the total bytes written reaches endOffset
+	private static class TimedWrite {
+		final long endOffset;
+		final long queuedAt = System.nanoTime();
+		final LatencyHistogram histogram;
+		
+		TimedWrite(long endOffset, LatencyHistogram histogram) {
+			this.endOffset = endOffset;
+			this.histogram = histogram;
+		}
+	}
+	
+	// A pooled buffer holding data's remaining bytes, preceded by their length.  The frame must fit in a pooled buffer.
+	private static ByteBuffer _frame(ByteBuffer data) {
+		ByteBuffer frame = BufferPool.acquire(LENGTH_FIELD_SIZE + data.remaining());
+		frame.order(ByteOrder.LITTLE_ENDIAN);
+		frame.putInt(data.remaining());
+		frame.put(data);
+		frame.flip();
+		return frame;
+	}
+	
+	// Adds to frames pooled buffers holding data's remaining bytes, preceded by their length.  A frame too big for
+	// one pooled buffer is split over as many as it takes; the write queue sends them back to back.
+	private static void _frame(ByteBuffer data, List<ByteBuffer> frames) {
+		if ( LENGTH_FIELD_SIZE + data.remaining() <= BufferPool.MAX_POOLED_SIZE ) {
+			frames.add(_frame(data));
+			return;
+		}
+		ByteBuffer piece = BufferPool.acquire(BufferPool.MAX_POOLED_SIZE);
+		piece.order(ByteOrder.LITTLE_ENDIAN);
+		piece.putInt(data.remaining());
+		while ( true ) {
+			ByteBuffer part = data.duplicate();
+			part.limit(part.position() + Math.min(part.remaining(), piece.remaining()));
+			piece.put(part);
+			data.position(part.position());
+			piece.flip();
+			frames.add(piece);
+			if ( !data.hasRemaining() ) return;
+			piece = BufferPool.acquire(Math.min(data.remaining(), BufferPool.MAX_POOLED_SIZE));
+		}
+	}
+	
+	/**
+	 * Blocks the calling thread until fewer than maxQueuedBytes are waiting to be written.  Used by
+	 * threads producing a stream of messages to keep pace with the caller.  Must not be called
+	 * on the selector thread.
+	 * @return false if the connection was closed, or the queue didn't drain within timeout msec.
+	 * @throws InterruptedException
+	 */
+	boolean awaitQueuedBelow(long maxQueuedBytes, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(mWriteQueue) {
+			while ( !mIsClosed && mQueuedBytes >= maxQueuedBytes ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) return false;
+				mWriteQueue.wait(remaining);
+			}
+			return !mIsClosed;
+		}
+	}
+	
+	/**
+	 * Asks the selector to tell us when the socket is writable, if there is anything to write.
+	 */
+	void enableWrite() {
+		if ( mKey.isValid() && hasPendingWrites() ) mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes as much queued data as the socket will take without blocking.
+	 * @return true if the write queue has been drained.
+	 * @throws IOException
+	 */
+	boolean flush() throws IOException {
+		synchronized(mWriteQueue) {
+			while ( !mWriteQueue.isEmpty() ) {
+				ByteBuffer frame = mWriteQueue.getFirst();
+				int n = mChannel.write(frame);
+				mQueuedBytes -= n;
+				mTotalWrittenBytes += n;
+				if ( n > 0 ) {
+					mWriteQueue.notifyAll();
+					if ( !mTimedWrites.isEmpty() ) _recordWriteTimes();
+				}
+				if ( frame.hasRemaining() ) return false;
+				BufferPool.release(mWriteQueue.removeFirst());
+				mLastActivity = System.currentTimeMillis();
+			}
+			if ( mKey.isValid() ) mKey.interestOps(SelectionKey.OP_READ);
+		}
+		return true;
+	}
+
+	// Records the write time of each measured message that has now been completely written
+	private void _recordWriteTimes() {
+		long now = System.nanoTime();
+		while ( !mTimedWrites.isEmpty() && mTimedWrites.getFirst().endOffset <= mTotalWrittenBytes ) {
+			TimedWrite write = mTimedWrites.removeFirst();
+			write.histogram.recordNanos(now - write.queuedAt);
+		}
+	}
+
+	boolean isClosed() {
+		synchronized(mWriteQueue) {
+			return mIsClosed;
+		}
+	}
+
+	boolean hasPendingWrites() {
+		synchronized(mWriteQueue) {
+			return !mWriteQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * Closes the underlying channel and removes it from the selector.
+	 */
+	void close() {
+		mState = State.COMPLETED;
+		mKey.cancel();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Exception closing connection: " + e.getMessage());
+		}
+		synchronized(mWriteQueue) {
+			if ( mIsClosed ) return;
+			mIsClosed = true;
+			for ( ByteBuffer frame : mWriteQueue ) BufferPool.release(frame);
+			mWriteQueue.clear();
+			mTimedWrites.clear();
+			mQueuedBytes = 0;
+			mWriteQueue.notifyAll();
+			BufferPool.release(mReadBuf);
+			mReadBuf = null;
+		}
+	}
+}
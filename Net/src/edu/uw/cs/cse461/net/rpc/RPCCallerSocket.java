@@ -1,8 +1,18 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -12,6 +22,7 @@ import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.util.Log;
@@ -19,29 +30,457 @@ import edu.uw.cs.cse461.util.Log;
 /**
  * Implements a Socket to use in sending remote RPC invocations.  (It must engage
  * in the RPC handshake before sending the invocation request.)
+ * <p>
+ * Any number of threads may invoke() concurrently on one RPCCallerSocket.  Each invocation
+ * carries a unique id, and the invocations are pipelined onto the connection without waiting
+ * for earlier responses.  A reader thread owned by the socket matches each response to its
+ * call using the response's callid, so responses may arrive in any order.
+ * <p>
+ * invokeAsync() returns as soon as the invocation has been sent.  Response timeouts are
+ * enforced by a shared scheduler, not by the socket, so no thread waits for a response
+ * unless the caller chooses to.
+ * <p>
+ * A call to a streaming method may get any number of chunks before its final response.
+ * The reader thread hands each chunk to the call's RPCCall.ChunkReceiver as it arrives,
+ * and restarts the call's timeout, so a long stream is limited only by the gap between chunks.
+ * <p>
+ * The handshake offers to accept binary attachments.  If the remote side agrees, invocations
+ * may carry attachments, and responses and chunks may come with them.  It also offers the
+ * codecs listed in rpc.codecs; once the handshake is done, messages are encoded with
+ * whichever one the remote side picked, or JSON if it didn't pick one.
+ * <p>
+ * The handshake can instead be combined with the first call, saving a round trip on a new
+ * connection: the connect options are sent with the first invocation, and the remote side
+ * answers them in its response.  Until that response arrives nothing else may be sent on
+ * the socket, so it isn't shared until handshakeDone() completes.  A remote side that predates
+ * this ignores the options, treats the connection as non-persistent, and answers without them.
  * @author zahorjan
  *
  */
  class RPCCallerSocket extends Socket {
-	private static final String TAG = "RPCCallerSocket";	
-	
+	private static final String TAG = "RPCCallerSocket";
+
+	private TCPMessageHandler mHandler;
+	private String mRemote;
+	private volatile boolean mIsPersistent;
+	private volatile boolean mAcceptsAttachments;
+	private volatile RPCCodec mCodec = RPCCodec.JSON;
+	private String mCodecs;
+	private boolean mWantPersistent;
+	// completes with true once the remote side has answered our connect options, or false if it ignored them
+	private CompletableFuture<Boolean> mHandshake = new CompletableFuture<Boolean>();
+	private long mHandshakeStart;
+	private int mFirstCallid = 0;     // the call carrying the connect options, when there's no separate handshake
+	private volatile boolean mIsDiscarded = false;
+	private volatile long mLastActivity = System.currentTimeMillis();
+	private long mConnectNanos;
+	private long mHandshakeNanos;
+	private ScheduledExecutorService mTimeoutScheduler;
+	private ConcurrentHashMap<Integer, PendingCall> mPendingCalls = new ConcurrentHashMap<Integer, PendingCall>();
+
+	/**
+	 * A call that has been sent and is waiting for its response.
+	 */
+	private static class PendingCall {
+		private RPCCallMessage mRequest;
+		private RPCCall.ChunkReceiver mReceiver;
+		private List<ByteBuffer> mResultAttachments;
+		private int mTimeoutMsec;
+		private CompletableFuture<JSONObject> mResult = new CompletableFuture<JSONObject>();
+		private volatile ScheduledFuture<?> mTimeout;
+
+		PendingCall(RPCCallMessage request, RPCCall.ChunkReceiver receiver, List<ByteBuffer> resultAttachments, int timeoutMsec) {
+			mRequest = request;
+			mReceiver = receiver;
+			mResultAttachments = resultAttachments;
+			mTimeoutMsec = timeoutMsec;
+		}
+
+		void complete(RPCResponseMessage response) {
+			if ( mTimeout != null ) mTimeout.cancel(false);
+			try {
+				if ( response instanceof RPCErrorResponseMessage ) {
+					String message = "Error processing request " + mRequest + ": " + response.marshall().optString("message");
+					if ( ((RPCErrorResponseMessage)response).noSuchMethod() && mRequest instanceof RPCInvokeMessage )
+						mResult.completeExceptionally(new RPCNoSuchMethodException(((RPCInvokeMessage)mRequest).app(),
+								((RPCInvokeMessage)mRequest).method(), message));
+					else
+						mResult.completeExceptionally(new IOException(message));
+				} else {
+					if ( mResultAttachments != null ) mResultAttachments.addAll(response.attachments());
+					mResult.complete(((RPCNormalResponseMessage)response).value());
+				}
+			} catch (JSONException e) {
+				mResult.completeExceptionally(e);
+			}
+		}
+
+		void fail(Exception failure) {
+			if ( mTimeout != null ) mTimeout.cancel(false);
+			mResult.completeExceptionally(failure);
+		}
+	}
+
 	/**
 	 * Create a socket for sending RPC invocations, connecting it to the specified remote ip and port.
-	 * @param Remote host's name. In Project 3, it's not terribly meaningful - repeat the ip.
-	 *  In Project 4, it's intended to be the string name of the remote system, allowing a degree of sanity checking.
 	 * @param ip  Remote system IP address.
 	 * @param port Remote RPC service's port.
 	 * @param wantPersistent True if caller wants to try to establish a persistent connection, false otherwise
+	 * @param socketTimeout Max time to wait for the connection and the remote side's response to the handshake, in msec.
+	 * @param timeoutScheduler Used to time out invocations.
+	 * @param handshake True to do the connect handshake now.  If false, the connect options are sent with the first
+	 *   invocation, and the socket must not be used for anything else until handshakeDone() completes.
 	 * @throws IOException
 	 * @throws JSONException
 	 */
-	RPCCallerSocket(String ip, int port, boolean wantPersistent) throws IOException, JSONException {
-		super(ip, port);	
+	RPCCallerSocket(String ip, int port, boolean wantPersistent, int socketTimeout, ScheduledExecutorService timeoutScheduler,
+			boolean handshake) throws IOException, JSONException {
+		super();
+		mRemote = ip + ":" + port;
+		mTimeoutScheduler = timeoutScheduler;
+		long start = System.nanoTime();
+		try {
+			connect(new InetSocketAddress(ip, port), socketTimeout);
+		} catch (IOException e) {
+			super.close();
+			throw e;
+		}
+		mHandshakeStart = System.nanoTime();
+		mConnectNanos = mHandshakeStart - start;
+		setTcpNoDelay(true);
+		mHandler = new TCPMessageHandler(this);
+		mHandler.setMaxReadLength(NetBase.theNetBase().config().getAsInt("tcpmessagehandler.maxmsglength", 2097148));
+		mCodecs = NetBase.theNetBase().config().getProperty("rpc.codecs", RPCCodec.BINARY.name() + "," + RPCCodec.JSON.name());
+		mWantPersistent = wantPersistent;
+
+		if ( handshake ) {
+			try {
+				// The handshake is the only exchange done synchronously, before the reader thread exists.  It's always JSON.
+				setSoTimeout(socketTimeout);
+				RPCControlMessage connectMsg = new RPCControlMessage("connect", _connectOptions(wantPersistent));
+				mHandler.sendMessage(connectMsg.marshall());
+				RPCMessage response = RPCMessage.unmarshall(mHandler.readMessageAsString());
+				if ( !(response instanceof RPCNormalResponseMessage) )
+					throw new IOException("Connection refused by " + mRemote + ": " + response);
+				_finishHandshake(((RPCNormalResponseMessage)response).value());
+				// from here on, reads are done by the reader thread, which waits as long as the connection is open
+				setSoTimeout(0);
+			} catch (IOException e) {
+				super.close();
+				throw e;
+			}
+		}
+
+		Thread reader = new Thread("RPCCallerSocket " + mRemote) {
+			@Override
+			public void run() {
+				_readResponses();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sets up the connection as the remote side's answer to our connect options says.
+	 * @param value The answer: the value of the response to a connect control message, or the options of the
+	 *   response to a first call that carried connect options.  Null if the remote side didn't answer.
+	 */
+	private void _finishHandshake(JSONObject value) throws IOException, JSONException {
+		mIsPersistent = value != null && "keep-alive".equalsIgnoreCase(value.optString("connection"));
+		mAcceptsAttachments = value != null && "1".equals(value.optString("attachments"));
+		if ( value != null && value.has("codec") ) {
+			RPCCodec codec = RPCCodec.forName(value.getString("codec"));
+			if ( codec == null ) throw new IOException(mRemote + " chose unknown codec " + value.getString("codec"));
+			mCodec = codec;
+		}
+		mHandshakeNanos = System.nanoTime() - mHandshakeStart;
+		mHandshake.complete(value != null);
+	}
+
+	/**
+	 * Completes once the connect handshake is done, with true if the remote side answered the connect options.
+	 * A remote side that doesn't understand options sent with a call completes it with false.  Completes
+	 * exceptionally if the connection fails first.
+	 */
+	CompletableFuture<Boolean> handshakeDone() {
+		return mHandshake;
+	}
+
+	private JSONObject _connectOptions(boolean wantPersistent) throws JSONException {
+		JSONObject options = new JSONObject().put("attachments", "1").put("codecs", mCodecs);
+		if ( wantPersistent ) options.put("connection", "keep-alive");
+		return options;
+	}
+
+	/**
+	 * How long the TCP connect took, in nanoseconds.
+	 */
+	long connectTime() {
+		return mConnectNanos;
+	}
+	
+	/**
+	 * How long the connect handshake took, once the TCP connection was open, in nanoseconds.  When the connect
+	 * options went with the first call, this includes the call's round trip.
+	 */
+	long handshakeTime() {
+		return mHandshakeNanos;
+	}
+
+	/**
+	 * True if the remote side agreed to keep the connection open for further calls.
+	 */
+	boolean isPersistent() {
+		return mIsPersistent;
+	}
+
+	/**
+	 * The codec used for messages after the handshake.
+	 */
+	RPCCodec codec() {
+		return mCodec;
+	}
+
+	/**
+	 * True if the remote side agreed to exchange binary attachments.
+	 */
+	boolean acceptsAttachments() {
+		return mAcceptsAttachments;
+	}
+
+	/**
+	 * True once the connection has failed or been closed.  A discarded socket can't be used for calls.
+	 */
+	boolean isDiscarded() {
+		return mIsDiscarded;
+	}
+
+	/**
+	 * Number of calls that have been sent but haven't yet had a response.
+	 */
+	int outstandingCalls() {
+		return mPendingCalls.size();
+	}
+
+	/**
+	 * Time (as System.currentTimeMillis()) an invocation was last sent or a response to one last received.
+	 * Probes don't count as activity.
+	 */
+	long lastActivity() {
+		return mLastActivity;
+	}
+
+	/**
+	 * Sends an invocation without waiting for its response.  Other threads may be using this socket at the same time.
+	 * @param socketTimeout Max time to wait for the response, in msec.
+	 * @return A future for the value returned by the remote method (which can be null).  It completes exceptionally
+	 *  with a SocketTimeoutException if no response arrives in time (the connection remains usable), an IOException
+	 *  if the remote side returns an error, or a SocketException if the connection fails (and the socket is discarded).
+	 */
+	CompletableFuture<JSONObject> invokeAsync(String serviceName, String method, JSONObject userRequest, int socketTimeout) {
+		return invokeAsync(serviceName, method, userRequest, null, null, null, socketTimeout);
+	}
+
+	/**
+	 * Sends an invocation of a method that may stream its result.  receiver is called on the socket's
+	 * reader thread for each chunk, in order, so it holds up other calls' responses for as long as it runs.
+	 * If it throws, the call fails with that exception and the remaining chunks are ignored.
+	 * @param attachments Binary data to send with the arguments, or null.  The remaining bytes of each are sent;
+	 *   they mustn't be changed until the future completes.
+	 * @param receiver Where chunks go.  If null, a chunk fails the call.
+	 * @param resultAttachments If not null, the final response's attachments are added to it.
+	 * @param socketTimeout Max time to wait for the first chunk, between chunks, and for the final response, in msec.
+	 * @return A future for the final value returned by the remote method, as for invokeAsync().  It completes
+	 *   exceptionally with an IOException if there are attachments and the remote side doesn't accept them.
+	 */
+	CompletableFuture<JSONObject> invokeAsync(String serviceName, String method, JSONObject userRequest, List<ByteBuffer> attachments,
+			RPCCall.ChunkReceiver receiver, List<ByteBuffer> resultAttachments, int socketTimeout) {
+		try {
+			RPCInvokeMessage invokeMsg = new RPCInvokeMessage(serviceName, method, userRequest);
+			if ( attachments != null && !attachments.isEmpty() ) {
+				if ( !mAcceptsAttachments ) throw new IOException(mRemote + " doesn't accept attachments");
+				invokeMsg.setAttachments(attachments);
+			}
+			return _send(invokeMsg, receiver, resultAttachments, socketTimeout);
+		} catch (IOException | JSONException e) {
+			CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	/**
+	 * Checks that the remote RPC service is still answering on this connection by repeating the
+	 * connect control message.
+	 * @return A future that completes exceptionally if the probe fails.  If the connection fails, the socket is discarded.
+	 */
+	CompletableFuture<JSONObject> probeAsync(int socketTimeout) {
+		try {
+			return _send(new RPCControlMessage("connect", _connectOptions(mIsPersistent)), null, null, socketTimeout);
+		} catch (JSONException e) {
+			CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	private CompletableFuture<JSONObject> _send(RPCCallMessage callMsg, RPCCall.ChunkReceiver receiver, List<ByteBuffer> resultAttachments,
+			int socketTimeout) throws JSONException {
+		final int id = callMsg.id();
+		final PendingCall call = new PendingCall(callMsg, receiver, resultAttachments, socketTimeout);
+		if ( mIsDiscarded ) {
+			call.fail(new SocketException("Connection to " + mRemote + " has been closed"));
+			return call.mResult;
+		}
+		if ( !mHandshake.isDone() ) {
+			// the first call made without a handshake carries the connect options; nothing may follow it until they're answered
+			synchronized(this) {
+				if ( mFirstCallid != 0 || !(callMsg instanceof RPCInvokeMessage) ) {
+					call.fail(new IOException("Connection to " + mRemote + " is still being set up"));
+					return call.mResult;
+				}
+				mFirstCallid = id;
+			}
+			callMsg.setOptions(_connectOptions(mWantPersistent));
+		}
+		ByteBuffer encoded;
+		try {
+			encoded = mCodec.encodeShared(callMsg.marshall());
+		} catch (IOException e) {
+			call.fail(e);
+			return call.mResult;
+		}
+
+		mPendingCalls.put(id, call);
+		// a discard() since the check above may have emptied mPendingCalls before the put
+		if ( mIsDiscarded ) {
+			if ( mPendingCalls.remove(id) != null ) call.fail(new SocketException("Connection to " + mRemote + " has been closed"));
+			return call.mResult;
+		}
+		if ( callMsg instanceof RPCInvokeMessage ) mLastActivity = System.currentTimeMillis();
+		_startTimeout(id, call);
+		try {
+			List<ByteBuffer> attachments = callMsg.attachments();
+			if ( attachments.isEmpty() ) {
+				synchronized(mHandler) {
+					mHandler.sendMessage(encoded);
+				}
+			} else {
+				// the attachments must immediately follow the message they belong to
+				List<ByteBuffer> frames = new ArrayList<ByteBuffer>(1 + attachments.size());
+				frames.add(encoded);
+				for ( ByteBuffer attachment : attachments ) frames.add(attachment.duplicate());
+				synchronized(mHandler) {
+					mHandler.sendMessages(frames);
+				}
+			}
+		} catch (IOException e) {
+			// a failed send means the connection is no good for anyone
+			discard(e);
+		}
+		return call.mResult;
+	}
+
+	// (Re)starts the timer that fails call if nothing more arrives for it within its timeout
+	private void _startTimeout(final int id, final PendingCall call) {
+		if ( call.mTimeout != null ) call.mTimeout.cancel(false);
+		call.mTimeout = mTimeoutScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if ( mPendingCalls.remove(id) != null )
+					call.fail(new SocketTimeoutException("No response from " + mRemote + " within " + call.mTimeoutMsec + " msec."));
+			}
+		}, call.mTimeoutMsec, TimeUnit.MILLISECONDS);
+	}
+
+	// Hands one chunk of a streamed response to the call's receiver, leaving the call outstanding
+	private void _deliverChunk(int id, PendingCall call, RPCNormalResponseMessage chunk) {
+		try {
+			if ( call.mReceiver == null ) throw new IOException("Unexpected streamed response from " + mRemote + " to " + call.mRequest);
+			call.mReceiver.chunk(chunk.value(), chunk.attachments());
+		} catch (Exception e) {
+			// a SocketException here is the receiver's, and mustn't be taken to mean this connection failed
+			if ( e instanceof SocketException ) e = new IOException("Couldn't consume streamed response: " + e.getMessage(), e);
+			if ( mPendingCalls.remove(id) != null ) call.fail(e);
+		}
+	}
+
+	/**
+	 * Executed by the reader thread.  Delivers each response to the call waiting for it
+	 * until the connection fails or is closed.
+	 */
+	private void _readResponses() {
+		try {
+			while ( !mIsDiscarded ) {
+				RPCMessage msg = RPCMessage.unmarshall(mCodec.decode(mHandler.readMessageAsBytes()));
+				if ( !(msg instanceof RPCResponseMessage) ) throw new IOException("Unexpected message from " + mRemote + ": " + msg);
+				RPCResponseMessage response = (RPCResponseMessage)msg;
+				// the response to a call that carried the connect options answers them; switch codecs before reading more
+				if ( !mHandshake.isDone() && response.callid() == mFirstCallid ) {
+					// a refusal (the remote side may be too busy to look at the options) says nothing about whether it understands them
+					if ( response instanceof RPCErrorResponseMessage && response.options() == null )
+						mHandshake.completeExceptionally(new IOException(mRemote + " refused the call that carried the connect options"));
+					_finishHandshake(response.options());
+				}
+				int nAttachments = response.attachmentCount();
+				if ( nAttachments > 0 ) {
+					List<ByteBuffer> attachments = new ArrayList<ByteBuffer>(nAttachments);
+					for ( int i = 0; i < nAttachments; i++ ) attachments.add(ByteBuffer.wrap(mHandler.readMessageAsBytes()));
+					response.setAttachments(attachments);
+				}
+				if ( response instanceof RPCNormalResponseMessage && ((RPCNormalResponseMessage)response).moreToCome() ) {
+					int id = response.callid();
+					PendingCall call = mPendingCalls.get(id);
+					if ( call == null ) {
+						Log.d(TAG, "Discarding chunk for abandoned call " + id + " from " + mRemote);
+						continue;
+					}
+					mLastActivity = System.currentTimeMillis();
+					_startTimeout(id, call);
+					_deliverChunk(id, call, (RPCNormalResponseMessage)response);
+					continue;
+				}
+				PendingCall call = mPendingCalls.remove(response.callid());
+				if ( call != null && call.mRequest instanceof RPCInvokeMessage ) mLastActivity = System.currentTimeMillis();
+				if ( call != null ) call.complete(response);
+				else Log.d(TAG, "Discarding response to abandoned call " + response.callid() + " from " + mRemote);
+			}
+		} catch (Exception e) {
+			discard(e instanceof IOException ? (IOException)e : new IOException(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Close this socket, failing any calls still waiting for a response.
+	 */
+	void discard(IOException reason) {
+		synchronized(this) {
+			if ( mIsDiscarded ) return;
+			mIsDiscarded = true;
+		}
+		try {
+			super.close();
+		} catch (IOException e) {
+			// Do nothing.
+		}
+		mHandshake.completeExceptionally(new SocketException("Connection to " + mRemote + " lost: " + reason.getMessage()));
+		// each call is failed by whoever removes it, here or in a racing _send()
+		for ( Integer id : mPendingCalls.keySet() ) {
+			PendingCall call = mPendingCalls.remove(id);
+			if ( call != null ) call.fail(new SocketException("Connection to " + mRemote + " lost: " + reason.getMessage()));
+		}
 	}
 
 	/**
 	 * Close this socket.
 	 */
 	synchronized public void discard() {
+		discard(new SocketException("socket closed"));
+	}
+
+	@Override
+	public void close() {
+		discard();
 	}
 }
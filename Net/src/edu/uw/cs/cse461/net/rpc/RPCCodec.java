@@ -0,0 +1,104 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Converts RPC messages between their JSONObject form and the bytes sent on the wire.
+ * <p>
+ * Every connection starts out using JSON text, the original encoding, and the connect
+ * handshake is always sent that way.  The caller lists the codecs it can use, in order
+ * of preference, in the "codecs" option of its connect message; the callee answers with
+ * the first of those it also knows in the "codec" field of its response, and both sides
+ * switch to it for everything that follows.  A peer that doesn't know about codecs
+ * ignores the option, and the connection simply stays with JSON.
+ * <p>
+ * JSON and BINARY are built in.  Other codecs can be added with register(); both sides
+ * must have registered a codec under the same name for it to be chosen.
+ * <p>
+ * Codecs must be safe for use by multiple threads at once.
+ *
+ * @author zahorjan
+ *
+ */
+public abstract class RPCCodec {
+	private static final Map<String, RPCCodec> mCodecs = new LinkedHashMap<String, RPCCodec>();
+
+	/**
+	 * JSON text, as produced by JSONObject.toString().
+	 */
+	public static final RPCCodec JSON = register(new RPCJSONCodec());
+
+	/**
+	 * A compact binary encoding of the same JSON values.  See RPCBinaryCodec.
+	 */
+	public static final RPCCodec BINARY = register(new RPCBinaryCodec());
+
+	/**
+	 * The name the codec is negotiated by.
+	 */
+	public abstract String name();
+
+	public abstract byte[] encode(JSONObject msg) throws IOException;
+
+	/**
+	 * Like encode(), but may return a buffer owned by the calling thread, which is reused by the
+	 * thread's next call to encodeShared().  The caller must be done with the buffer before then.
+	 * This saves allocating a new array for every message sent.
+	 */
+	public ByteBuffer encodeShared(JSONObject msg) throws IOException {
+		return ByteBuffer.wrap(encode(msg));
+	}
+
+	/**
+	 * @throws IOException If buf isn't a valid encoding.
+	 */
+	public abstract JSONObject decode(byte[] buf) throws IOException;
+
+	/**
+	 * Makes a codec available for negotiation, replacing any existing codec with the same name.
+	 * @return codec
+	 */
+	public static RPCCodec register(RPCCodec codec) {
+		synchronized(mCodecs) {
+			mCodecs.put(codec.name(), codec);
+		}
+		return codec;
+	}
+
+	/**
+	 * Returns the registered codec with the given name, or null.
+	 */
+	public static RPCCodec forName(String name) {
+		synchronized(mCodecs) {
+			return mCodecs.get(name);
+		}
+	}
+
+	/**
+	 * Picks the codec to use on a connection.
+	 * @param offered The caller's comma separated list of codec names, most preferred first.  May be null.
+	 * @param allowed The comma separated list of codec names this side is willing to use.
+	 * @return The first offered codec that is allowed and registered, or null if there isn't one.
+	 */
+	static RPCCodec choose(String offered, String allowed) {
+		if ( offered == null || allowed == null ) return null;
+		String allowedList = "," + allowed.replace(" ", "") + ",";
+		for ( String name : offered.split(",") ) {
+			name = name.trim();
+			if ( !allowedList.contains("," + name + ",") ) continue;
+			RPCCodec codec = forName(name);
+			if ( codec != null ) return codec;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+}
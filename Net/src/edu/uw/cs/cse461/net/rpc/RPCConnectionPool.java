@@ -0,0 +1,300 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The persistent connections RPCCall keeps open to a single remote RPC service.
+ * <p>
+ * The pool holds between minConnections and maxConnections RPCCallerSockets.  Calls are
+ * sent on whichever healthy connection has the fewest calls outstanding.  When every
+ * connection is busy and the pool isn't full, another connection is opened in the
+ * background; meanwhile the call is pipelined on the least busy existing one.
+ * <p>
+ * A call that finds the pool empty opens a connection only if that keeps the pool within
+ * maxConnections, counting those already being opened.  Otherwise it waits for one of those
+ * to join the pool.
+ * <p>
+ * A connection opened for a waiting call can skip the connect handshake, sending the connect
+ * options with the call instead (see RPCCallerSocket).  It joins the pool once the remote side has
+ * answered them.  If the remote side turns out not to understand that, later connections go
+ * back to doing the handshake first.
+ * <p>
+ * All methods may be called by any thread.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCConnectionPool {
+	private static final String TAG="RPCConnectionPool";
+
+	private String mIP;
+	private int mPort;
+	private int mMinConnections;
+	private int mMaxConnections;
+	private int mConnectTimeout;
+	private Executor mConnector;
+	private ScheduledExecutorService mTimeoutScheduler;
+	private RPCDestinationStats mStats;
+
+	private CopyOnWriteArrayList<RPCCallerSocket> mConnections = new CopyOnWriteArrayList<RPCCallerSocket>();
+	// connections being opened in the background
+	private AtomicInteger mNOpening = new AtomicInteger();
+	// calls waiting for a connection being opened to join the pool
+	private ConcurrentLinkedQueue<CompletableFuture<RPCCallerSocket>> mWaiting = new ConcurrentLinkedQueue<CompletableFuture<RPCCallerSocket>>();
+	// false once the remote side has ignored connect options sent with a call
+	private volatile boolean mZeroRTT = true;
+
+	/**
+	 * @param connectTimeout Max time to wait for a new connection, and for a response to a probe, in msec.
+	 * @param connector Runs connection attempts.
+	 * @param timeoutScheduler Used by the pool's sockets to time out calls.
+	 * @param stats Where connection times and failures are recorded.
+	 */
+	RPCConnectionPool(String ip, int port, int minConnections, int maxConnections, int connectTimeout,
+			Executor connector, ScheduledExecutorService timeoutScheduler, RPCDestinationStats stats) {
+		mIP = ip;
+		mPort = port;
+		mMaxConnections = Math.max(1, maxConnections);
+		mMinConnections = Math.max(1, Math.min(minConnections, mMaxConnections));
+		mConnectTimeout = connectTimeout;
+		mConnector = connector;
+		mTimeoutScheduler = timeoutScheduler;
+		mStats = stats;
+	}
+
+	/**
+	 * Returns the healthy connection with the fewest outstanding calls, or null if there isn't one.
+	 * If that connection is busy, starts opening another (if the pool isn't full).
+	 */
+	RPCCallerSocket leastLoaded() {
+		RPCCallerSocket best = _leastLoaded();
+		if ( best != null && best.outstandingCalls() > 0 ) _grow(1);
+		return best;
+	}
+
+	private RPCCallerSocket _leastLoaded() {
+		RPCCallerSocket best = null;
+		for ( RPCCallerSocket sock : mConnections ) {
+			if ( sock.isDiscarded() ) {
+				mConnections.remove(sock);
+				continue;
+			}
+			if ( best == null || sock.outstandingCalls() < best.outstandingCalls() ) best = sock;
+		}
+		return best;
+	}
+
+	/**
+	 * Opens a new connection, adding it to the pool if it's persistent and there's room.
+	 * The first connection made also starts the pool warming up to its minimum size.
+	 * If the connections already being opened would fill the pool, waits for one of them to join it instead.
+	 * @param zeroRTT True to skip the connect handshake, if the remote side has not shown that it needs it.
+	 *   The caller must then send a single invocation on the new connection, and nothing else until
+	 *   its response arrives.  The connection joins the pool when it does.
+	 * @return A future for the new connection, or for a pooled one.  The caller must discard() it if
+	 *  contains() is false once the caller is done with it.
+	 */
+	CompletableFuture<RPCCallerSocket> connect(boolean zeroRTT) {
+		while ( true ) {
+			int opening = mNOpening.get();
+			if ( mConnections.size() + opening >= mMaxConnections ) break;
+			if ( mNOpening.compareAndSet(opening, opening + 1) ) return _open(zeroRTT && mZeroRTT);
+		}
+		CompletableFuture<RPCCallerSocket> waiter = new CompletableFuture<RPCCallerSocket>();
+		mWaiting.add(waiter);
+		_serveWaiting(null);
+		return waiter;
+	}
+
+	/**
+	 * Hands the least loaded pooled connection to each waiting call.  Called whenever a connection
+	 * being opened joins the pool or fails, and after a call starts waiting.
+	 * @param failure Why an open just failed, or null.  If nothing is left in the pool or being opened,
+	 *   the waiting calls fail with it.
+	 */
+	private void _serveWaiting(Throwable failure) {
+		CompletableFuture<RPCCallerSocket> waiter;
+		while ( (waiter = mWaiting.peek()) != null ) {
+			RPCCallerSocket sock = _leastLoaded();
+			if ( sock != null ) {
+				if ( mWaiting.remove(waiter) ) waiter.complete(sock);
+				continue;
+			}
+			// served when the connections being opened finish
+			if ( mNOpening.get() > 0 ) return;
+			if ( !mWaiting.remove(waiter) ) continue;
+			if ( failure != null ) {
+				waiter.completeExceptionally(failure);
+				continue;
+			}
+			// the connections opened didn't join the pool (they weren't persistent, or were dropped): open one for this call
+			final CompletableFuture<RPCCallerSocket> theWaiter = waiter;
+			mNOpening.incrementAndGet();
+			_open(false).whenComplete((newSock, openFailure) -> {
+				if ( openFailure != null ) theWaiter.completeExceptionally(openFailure);
+				else theWaiter.complete(newSock);
+			});
+		}
+	}
+
+	// Opens a connection on a connector thread.  The caller must already have counted it in mNOpening.
+	private CompletableFuture<RPCCallerSocket> _open(final boolean zeroRTT) {
+		final CompletableFuture<RPCCallerSocket> result = new CompletableFuture<RPCCallerSocket>();
+		mConnector.execute(new Runnable() {
+			@Override
+			public void run() {
+				final RPCCallerSocket sock;
+				try {
+					sock = new RPCCallerSocket(mIP, mPort, true, mConnectTimeout, mTimeoutScheduler, !zeroRTT);
+				} catch (Exception e) {
+					mNOpening.decrementAndGet();
+					mStats.connectFailures.increment();
+					result.completeExceptionally(e);
+					_serveWaiting(e);
+					return;
+				}
+				mStats.connectTime.recordNanos(sock.connectTime());
+				if ( !zeroRTT ) {
+					mStats.handshakeTime.recordNanos(sock.handshakeTime());
+					_added(sock);
+				} else {
+					// runs on the reader thread, before the first call's result is delivered
+					sock.handshakeDone().whenComplete((answered, failure) -> {
+						if ( failure != null ) {
+							mNOpening.decrementAndGet();
+							_serveWaiting(failure);
+							return;
+						}
+						if ( !answered ) {
+							Log.i(TAG, mIP + ":" + mPort + " doesn't take connect options with a call; handshaking first from now on");
+							mZeroRTT = false;
+						}
+						_added(sock);
+					});
+				}
+				result.complete(sock);
+			}
+		});
+		return result;
+	}
+
+	// Adds a newly opened connection to the pool, if it's persistent and there's room, ends its count in mNOpening,
+	// and hands it to any waiting calls
+	private void _added(RPCCallerSocket sock) {
+		boolean wasEmpty = mConnections.isEmpty();
+		synchronized(mConnections) {
+			if ( sock.isPersistent() && mConnections.size() < mMaxConnections ) mConnections.add(sock);
+		}
+		mNOpening.decrementAndGet();
+		_serveWaiting(null);
+		if ( wasEmpty && contains(sock) ) _grow(mMinConnections - 1);
+	}
+
+	// Opens up to n more connections in the background, staying under the pool's max size
+	private void _grow(int n) {
+		int nStarted = 0;
+		while ( nStarted < n ) {
+			int opening = mNOpening.get();
+			if ( mConnections.size() + opening >= mMaxConnections ) return;
+			if ( !mNOpening.compareAndSet(opening, opening + 1) ) continue;
+			nStarted++;
+			_open(false).whenComplete((sock, failure) -> {
+				if ( failure != null ) Log.d(TAG, "Couldn't add connection to " + mIP + ":" + mPort + ": " + failure.getMessage());
+				else if ( !contains(sock) ) sock.discard();
+			});
+		}
+	}
+
+	boolean contains(RPCCallerSocket sock) {
+		return mConnections.contains(sock);
+	}
+
+	/**
+	 * Removes sock from the pool and closes it.
+	 */
+	void remove(RPCCallerSocket sock) {
+		mConnections.remove(sock);
+		sock.discard();
+	}
+
+	/**
+	 * Closes connections that have no outstanding calls and haven't been used since idleSince.
+	 * Connections beyond the pool's minimum size are closed individually; the minimum set is
+	 * closed only when every connection in the pool is idle.
+	 * @return The number of connections closed.
+	 */
+	int reapIdle(long idleSince) {
+		int nReaped = 0;
+		boolean allIdle = true;
+		for ( RPCCallerSocket sock : mConnections ) {
+			if ( sock.outstandingCalls() > 0 || sock.lastActivity() > idleSince ) {
+				allIdle = false;
+			} else if ( mConnections.size() > mMinConnections && mConnections.remove(sock) ) {
+				sock.discard();
+				nReaped++;
+			}
+		}
+		if ( allIdle ) {
+			for ( RPCCallerSocket sock : mConnections ) {
+				// a call that picked up sock just before it was removed fails and is retried on a new connection
+				if ( mConnections.remove(sock) ) {
+					sock.discard();
+					nReaped++;
+				}
+			}
+		}
+		return nReaped;
+	}
+
+	/**
+	 * Sends a probe on each connection that has no calls outstanding and hasn't been used since idleSince,
+	 * dropping those that fail to answer.
+	 */
+	void probeIdle(long idleSince) {
+		for ( final RPCCallerSocket sock : mConnections ) {
+			if ( sock.outstandingCalls() > 0 || sock.lastActivity() > idleSince ) continue;
+			sock.probeAsync(mConnectTimeout).whenComplete((JSONObject value, Throwable failure) -> {
+				if ( failure != null ) {
+					Log.i(TAG, "Dropping connection to " + mIP + ":" + mPort + ": probe failed: " + failure.getMessage());
+					remove(sock);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes all connections.
+	 */
+	void close() {
+		for ( RPCCallerSocket sock : mConnections ) remove(sock);
+	}
+
+	boolean isEmpty() {
+		return mConnections.isEmpty() && mNOpening.get() == 0;
+	}
+
+	int size() {
+		return mConnections.size();
+	}
+
+	int outstandingCalls() {
+		int n = 0;
+		for ( RPCCallerSocket sock : mConnections ) n += sock.outstandingCalls();
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return mIP + ":" + mPort + ": " + mConnections.size() + " connections (min " + mMinConnections + ", max " +
+				mMaxConnections + "), " + outstandingCalls() + " calls outstanding";
+	}
+}
@@ -0,0 +1,124 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.LatencyHistogram;
+
+/**
+ * What RPCCall has measured about the calls it has made to one remote RPC service: how long
+ * connections took to open, how often a call found a persistent connection it could use, and
+ * the round trip time of each method called.  Used to judge settings like rpc.persistence.timeout
+ * and rpc.pool.min.
+ * <p>
+ * Everything here may be updated by many threads at once without locking.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCDestinationStats {
+	final LatencyHistogram connectTime = new LatencyHistogram();     // TCP connect
+	final LatencyHistogram handshakeTime = new LatencyHistogram();   // connect control message and its response
+	final LongAdder connectFailures = new LongAdder();
+	final LongAdder hits = new LongAdder();           // calls sent on an already open connection
+	final LongAdder misses = new LongAdder();         // calls that had to wait for a new connection
+	final LongAdder retries = new LongAdder();        // calls repeated because a persistent connection had failed
+	final LongAdder evictions = new LongAdder();      // connections closed for being idle
+
+	// app name -> method name -> stats.  Nested, so that finding a call's stats joins no strings and
+	// allocates nothing, and no two (app, method) pairs share a key.
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, MethodStats>> mMethods =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, MethodStats>>();
+
+	/**
+	 * Per-method counts and round trip times.  The round trip is from sending the invocation until
+	 * its response arrives, and is recorded only for calls that succeed.
+	 */
+	static class MethodStats {
+		final LongAdder calls = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LatencyHistogram roundTripTime = new LatencyHistogram();
+
+		JSONObject toJSON() throws JSONException {
+			return new JSONObject().put("calls", calls.sum())
+								   .put("failures", failures.sum())
+								   .put("rtt", RPCMethodStats.histogramToJSON(roundTripTime.snapshot()));
+		}
+
+		@Override
+		public String toString() {
+			return calls.sum() + " calls, " + failures.sum() + " failures, rtt usec " + roundTripTime;
+		}
+	}
+
+	/**
+	 * Returns the stats for app's method, creating them if this is its first call.
+	 */
+	MethodStats method(String app, String method) {
+		ConcurrentHashMap<String, MethodStats> appMethods = mMethods.get(app);
+		if ( appMethods == null ) {
+			ConcurrentHashMap<String, MethodStats> newMethods = new ConcurrentHashMap<String, MethodStats>();
+			appMethods = mMethods.putIfAbsent(app, newMethods);
+			if ( appMethods == null ) appMethods = newMethods;
+		}
+		MethodStats stats = appMethods.get(method);
+		if ( stats == null ) {
+			MethodStats newStats = new MethodStats();
+			stats = appMethods.putIfAbsent(method, newStats);
+			if ( stats == null ) stats = newStats;
+		}
+		return stats;
+	}
+
+	/**
+	 * The fraction of calls that found an open connection, or 0 if there haven't been any calls.
+	 */
+	double hitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 0.0 : (double)hitCount / total;
+	}
+
+	/**
+	 * The current values, as
+	 * {"hits":n, "misses":n, "hitrate":f, "retries":n, "evictions":n, "connectfailures":n, "connect":{...},
+	 *  "handshake":{...}, "methods":{"app":{"method":{"calls":n, "failures":n, "rtt":{...}}, ...}, ...}}
+	 * where each histogram is {"count":n, "mean":usec, "p50":usec, "p99":usec, "p999":usec, "max":usec}.
+	 */
+	JSONObject toJSON() throws JSONException {
+		JSONObject methods = new JSONObject();
+		for ( Map.Entry<String, ConcurrentHashMap<String, MethodStats>> app : mMethods.entrySet() ) {
+			JSONObject appMethods = new JSONObject();
+			for ( Map.Entry<String, MethodStats> entry : app.getValue().entrySet() ) appMethods.put(entry.getKey(), entry.getValue().toJSON());
+			methods.put(app.getKey(), appMethods);
+		}
+		return new JSONObject().put("hits", hits.sum())
+							   .put("misses", misses.sum())
+							   .put("hitrate", hitRate())
+							   .put("retries", retries.sum())
+							   .put("evictions", evictions.sum())
+							   .put("connectfailures", connectFailures.sum())
+							   .put("connect", RPCMethodStats.histogramToJSON(connectTime.snapshot()))
+							   .put("handshake", RPCMethodStats.histogramToJSON(handshakeTime.snapshot()))
+							   .put("methods", methods);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("hit rate %.1f%% (%d hits, %d misses), %d retries, %d evictions, %d failed connects\n",
+				100.0 * hitRate(), hits.sum(), misses.sum(), retries.sum(), evictions.sum(), connectFailures.sum()));
+		sb.append("\t\tconnect usec:   ").append(connectTime).append("\n");
+		sb.append("\t\thandshake usec: ").append(handshakeTime).append("\n");
+		for ( Map.Entry<String, ConcurrentHashMap<String, MethodStats>> app : mMethods.entrySet() ) {
+			for ( Map.Entry<String, MethodStats> entry : app.getValue().entrySet() ) {
+				sb.append("\t\t").append(app.getKey()).append(".").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,41 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * The key of an RPC handler registration: the (app, method) pair itself, since any string made
+ * by joining the names could be made by other pairs too.
+ * <p>
+ * An RPCInvokeMessage builds its key once, when it's decoded, and RPCService looks its handler
+ * up with that, so the hash is worked out once per call.
+ *
+ * @author zahorjan
+ *
+ */
+final class RPCHandlerKey {
+	final String app;
+	final String methodName;
+	private final int mHash;
+	
+	RPCHandlerKey(String app, String methodName) {
+		this.app = app;
+		this.methodName = methodName;
+		mHash = app.hashCode() * 31 + methodName.hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if ( this == o ) return true;
+		if ( !(o instanceof RPCHandlerKey) ) return false;
+		RPCHandlerKey other = (RPCHandlerKey)o;
+		return mHash == other.mHash && app.equals(other.app) && methodName.equals(other.methodName);
+	}
+	
+	@Override
+	public int hashCode() {
+		return mHash;
+	}
+	
+	@Override
+	public String toString() {
+		return app + "." + methodName + "()";
+	}
+}
@@ -0,0 +1,392 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The original RPC encoding: each message is the text of a JSONObject.
+ * <p>
+ * Messages are written straight from the JSONObject into a byte buffer that each thread
+ * reuses, rather than built up as a String and then converted.  Anything outside ASCII is
+ * written as a \\u escape, so the text is the same in every character set.  Incoming
+ * messages are parsed straight from their bytes; text the fast parser doesn't handle,
+ * such as the non-standard forms org.json accepts, is handed to org.json instead.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCJSONCodec extends RPCCodec {
+	private static final int MAX_DEPTH = 64;     // deepest nesting the fast parser will follow
+	private static final int MAX_RETAINED_BUFFER = 256 * 1024;    // bigger encode buffers aren't kept for reuse
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static ThreadLocal<Writer> mWriters = new ThreadLocal<Writer>() {
+		@Override
+		protected Writer initialValue() {
+			return new Writer();
+		}
+	};
+
+	@Override
+	public String name() {
+		return "json";
+	}
+
+	@Override
+	public byte[] encode(JSONObject msg) throws IOException {
+		Writer out = _encode(msg);
+		return Arrays.copyOf(out.mBuf, out.mLen);
+	}
+
+	@Override
+	public ByteBuffer encodeShared(JSONObject msg) throws IOException {
+		Writer out = _encode(msg);
+		return ByteBuffer.wrap(out.mBuf, 0, out.mLen);
+	}
+
+	// Writes msg into the calling thread's writer
+	private Writer _encode(JSONObject msg) throws IOException {
+		Writer out = mWriters.get();
+		out.reset();
+		try {
+			out.value(msg);
+		} catch (JSONException e) {
+			throw new IOException("Can't encode message: " + e.getMessage());
+		}
+		return out;
+	}
+
+	@Override
+	public JSONObject decode(byte[] buf) throws IOException {
+		try {
+			Reader in = new Reader(buf);
+			in.skipSpace();
+			if ( in.mBuf[in.mPos] != '{' ) throw new IOException("Message isn't an object");
+			JSONObject msg = in.object(0);
+			in.skipSpace();
+			if ( in.mPos == buf.length ) return msg;
+		} catch (Exception e) {
+			// fall through to the slow, lenient parser
+		}
+		String str = new String(buf);
+		try {
+			return new JSONObject(str);
+		} catch (JSONException e) {
+			throw new IOException("Unparsable message: '" + str + "'");
+		}
+	}
+
+	//----------------------------------------------------------------------------------
+
+	private static class Writer {
+		private byte[] mBuf = new byte[256];
+		private int mLen = 0;
+
+		void reset() {
+			if ( mBuf.length > MAX_RETAINED_BUFFER ) mBuf = new byte[256];
+			mLen = 0;
+		}
+
+		void value(Object v) throws JSONException {
+			if ( v == null || v == JSONObject.NULL ) {
+				_ascii("null");
+			} else if ( v instanceof String ) {
+				_string((String)v);
+			} else if ( v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte ) {
+				_long(((Number)v).longValue());
+			} else if ( v instanceof Number ) {
+				_ascii(JSONObject.numberToString((Number)v));
+			} else if ( v instanceof Boolean ) {
+				_ascii(((Boolean)v) ? "true" : "false");
+			} else if ( v instanceof JSONObject ) {
+				JSONObject obj = (JSONObject)v;
+				_byte('{');
+				Iterator<?> keys = obj.keys();
+				boolean first = true;
+				while ( keys.hasNext() ) {
+					String key = (String)keys.next();
+					if ( !first ) _byte(',');
+					first = false;
+					_string(key);
+					_byte(':');
+					value(obj.get(key));
+				}
+				_byte('}');
+			} else if ( v instanceof JSONArray ) {
+				JSONArray array = (JSONArray)v;
+				_byte('[');
+				for ( int i = 0; i < array.length(); i++ ) {
+					if ( i > 0 ) _byte(',');
+					value(array.get(i));
+				}
+				_byte(']');
+			} else {
+				// anything else is written the way JSONObject.toString() would write it
+				_ascii(JSONObject.valueToString(v));
+			}
+		}
+
+		private void _string(String s) {
+			int n = s.length();
+			_ensure(n + 2);
+			mBuf[mLen++] = '"';
+			for ( int i = 0; i < n; i++ ) {
+				char c = s.charAt(i);
+				if ( c >= 0x20 && c < 0x80 && c != '"' && c != '\\' ) {
+					if ( mLen == mBuf.length ) _ensure(n - i + 1);
+					mBuf[mLen++] = (byte)c;
+					continue;
+				}
+				_ensure(6 + n - i);
+				switch ( c ) {
+				case '"':  mBuf[mLen++] = '\\'; mBuf[mLen++] = '"'; break;
+				case '\\': mBuf[mLen++] = '\\'; mBuf[mLen++] = '\\'; break;
+				case '\n': mBuf[mLen++] = '\\'; mBuf[mLen++] = 'n'; break;
+				case '\r': mBuf[mLen++] = '\\'; mBuf[mLen++] = 'r'; break;
+				case '\t': mBuf[mLen++] = '\\'; mBuf[mLen++] = 't'; break;
+				default:
+					mBuf[mLen++] = '\\';
+					mBuf[mLen++] = 'u';
+					mBuf[mLen++] = HEX[(c >> 12) & 0xF];
+					mBuf[mLen++] = HEX[(c >> 8) & 0xF];
+					mBuf[mLen++] = HEX[(c >> 4) & 0xF];
+					mBuf[mLen++] = HEX[c & 0xF];
+				}
+			}
+			_ensure(1);
+			mBuf[mLen++] = '"';
+		}
+
+		// Writes n in decimal without making a String of it
+		private void _long(long n) {
+			if ( n == Long.MIN_VALUE ) {
+				_ascii(Long.toString(n));
+				return;
+			}
+			_ensure(20);
+			if ( n < 0 ) {
+				mBuf[mLen++] = '-';
+				n = -n;
+			}
+			int start = mLen;
+			do {
+				mBuf[mLen++] = (byte)('0' + n % 10);
+				n /= 10;
+			} while ( n != 0 );
+			for ( int i = start, j = mLen - 1; i < j; i++, j-- ) {
+				byte t = mBuf[i];
+				mBuf[i] = mBuf[j];
+				mBuf[j] = t;
+			}
+		}
+
+		// Writes JSON text, escaping anything outside ASCII (which can only occur inside strings)
+		private void _ascii(String s) {
+			int n = s.length();
+			_ensure(n);
+			for ( int i = 0; i < n; i++ ) {
+				char c = s.charAt(i);
+				if ( c < 0x80 ) {
+					if ( mLen == mBuf.length ) _ensure(n - i);
+					mBuf[mLen++] = (byte)c;
+				} else {
+					_ensure(6 + n - i);
+					mBuf[mLen++] = '\\';
+					mBuf[mLen++] = 'u';
+					mBuf[mLen++] = HEX[(c >> 12) & 0xF];
+					mBuf[mLen++] = HEX[(c >> 8) & 0xF];
+					mBuf[mLen++] = HEX[(c >> 4) & 0xF];
+					mBuf[mLen++] = HEX[c & 0xF];
+				}
+			}
+		}
+
+		private void _byte(char b) {
+			_ensure(1);
+			mBuf[mLen++] = (byte)b;
+		}
+
+		private void _ensure(int n) {
+			if ( mLen + n > mBuf.length ) mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mLen + n));
+		}
+	}
+
+	/**
+	 * Parses standard JSON directly from bytes (UTF-8).  Throws on anything it doesn't understand,
+	 * including running off the end of the buffer.
+	 */
+	private static class Reader {
+		private byte[] mBuf;
+		private int mPos = 0;
+
+		Reader(byte[] buf) {
+			mBuf = buf;
+		}
+
+		void skipSpace() {
+			while ( mPos < mBuf.length ) {
+				byte b = mBuf[mPos];
+				if ( b != ' ' && b != '\n' && b != '\r' && b != '\t' ) return;
+				mPos++;
+			}
+		}
+
+		Object value(int depth) throws IOException, JSONException {
+			skipSpace();
+			switch ( mBuf[mPos] ) {
+			case '{':
+				return object(depth + 1);
+			case '[':
+				return _array(depth + 1);
+			case '"':
+				return _string();
+			case 't':
+				_expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				_expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				_expect("null");
+				return JSONObject.NULL;
+			default:
+				return _number();
+			}
+		}
+
+		// Reads an object, starting at its opening brace
+		JSONObject object(int depth) throws IOException, JSONException {
+			if ( depth > MAX_DEPTH ) throw new IOException("Message nested more than " + MAX_DEPTH + " deep");
+			mPos++;
+			JSONObject obj = new JSONObject();
+			skipSpace();
+			if ( mBuf[mPos] == '}' ) {
+				mPos++;
+				return obj;
+			}
+			while ( true ) {
+				skipSpace();
+				if ( mBuf[mPos] != '"' ) throw new IOException("Expected a name at offset " + mPos);
+				String key = _string();
+				skipSpace();
+				if ( mBuf[mPos++] != ':' ) throw new IOException("Expected ':' at offset " + (mPos - 1));
+				obj.put(key, value(depth));
+				skipSpace();
+				byte b = mBuf[mPos++];
+				if ( b == '}' ) return obj;
+				if ( b != ',' ) throw new IOException("Expected ',' or '}' at offset " + (mPos - 1));
+			}
+		}
+
+		private JSONArray _array(int depth) throws IOException, JSONException {
+			if ( depth > MAX_DEPTH ) throw new IOException("Message nested more than " + MAX_DEPTH + " deep");
+			mPos++;
+			JSONArray array = new JSONArray();
+			skipSpace();
+			if ( mBuf[mPos] == ']' ) {
+				mPos++;
+				return array;
+			}
+			while ( true ) {
+				array.put(value(depth));
+				skipSpace();
+				byte b = mBuf[mPos++];
+				if ( b == ']' ) return array;
+				if ( b != ',' ) throw new IOException("Expected ',' or ']' at offset " + (mPos - 1));
+			}
+		}
+
+		// Reads a string, starting at its opening quote
+		private String _string() throws IOException {
+			int start = ++mPos;
+			// the common case: plain ASCII, no escapes
+			while ( true ) {
+				byte b = mBuf[mPos];
+				if ( b == '"' ) {
+					mPos++;
+					return new String(mBuf, start, mPos - 1 - start, StandardCharsets.ISO_8859_1);
+				}
+				if ( b == '\\' || b < 0x20 ) break;  // (b < 0 for bytes of multi-byte UTF-8 characters)
+				mPos++;
+			}
+
+			StringBuilder sb = new StringBuilder(mPos - start + 16);
+			int run = start;
+			while ( true ) {
+				byte b = mBuf[mPos];
+				if ( b == '"' || b == '\\' ) {
+					if ( mPos > run ) sb.append(new String(mBuf, run, mPos - run, StandardCharsets.UTF_8));
+					mPos++;
+					if ( b == '"' ) return sb.toString();
+					byte e = mBuf[mPos++];
+					switch ( e ) {
+					case '"':  sb.append('"'); break;
+					case '\\': sb.append('\\'); break;
+					case '/':  sb.append('/'); break;
+					case 'b':  sb.append('\b'); break;
+					case 'f':  sb.append('\f'); break;
+					case 'n':  sb.append('\n'); break;
+					case 'r':  sb.append('\r'); break;
+					case 't':  sb.append('\t'); break;
+					case 'u':
+						sb.append((char)Integer.parseInt(new String(mBuf, mPos, 4, StandardCharsets.ISO_8859_1), 16));
+						mPos += 4;
+						break;
+					default:
+						throw new IOException("Bad escape at offset " + (mPos - 1));
+					}
+					run = mPos;
+				} else if ( b >= 0 && b < 0x20 ) {
+					throw new IOException("Control character in string at offset " + mPos);
+				} else {
+					mPos++;
+				}
+			}
+		}
+
+		private Object _number() throws IOException {
+			int start = mPos;
+			boolean integral = true;
+			while ( mPos < mBuf.length ) {
+				byte b = mBuf[mPos];
+				if ( b == '.' || b == 'e' || b == 'E' ) integral = false;
+				else if ( (b < '0' || b > '9') && b != '-' && b != '+' ) break;
+				mPos++;
+			}
+			int len = mPos - start;
+			if ( len == 0 ) throw new IOException("Unexpected character at offset " + start);
+			// integers that can't overflow are converted here; anything else the way org.json does it
+			if ( integral && len < 19 ) {
+				int i = start;
+				boolean negative = mBuf[i] == '-';
+				if ( negative ) i++;
+				if ( i == mPos ) throw new IOException("Bad number at offset " + start);
+				long n = 0;
+				for ( ; i < mPos; i++ ) {
+					byte b = mBuf[i];
+					if ( b < '0' || b > '9' ) throw new IOException("Bad number at offset " + start);
+					n = n * 10 + (b - '0');
+				}
+				if ( negative ) n = -n;
+				if ( n == (int)n ) return Integer.valueOf((int)n);
+				return Long.valueOf(n);
+			}
+			Object value = JSONObject.stringToValue(new String(mBuf, start, len, StandardCharsets.ISO_8859_1));
+			if ( !(value instanceof Number) ) throw new IOException("Bad number at offset " + start);
+			return value;
+		}
+
+		private void _expect(String word) throws IOException {
+			for ( int i = 0; i < word.length(); i++ ) {
+				if ( mBuf[mPos++] != word.charAt(i) ) throw new IOException("Expected " + word + " at offset " + (mPos - i - 1));
+			}
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,17 +20,24 @@ import edu.uw.cs.cse461.util.Log;
  * The message class hierarchy facilitates marshalling (encoding into the on-the-wire format)
  * and unmarshalling (decoding from the on-the-wire back to a Java object).  (This is also
  * called serialization, and is related to Java's specific notion of serialization.)
+ * <p>
+ * Invocations and responses may carry binary attachments.  The marshalled message records only
+ * how many there are, in its "attachments" field; the attachments themselves travel as raw
+ * messages immediately after it on the same connection, so they're never Base64 encoded or
+ * parsed as JSON.  Attachments are sent only to peers that accepted them during the
+ * connect handshake.
  * @author zahorjan
  *
  */
 class RPCMessage {
 	private static final String TAG="RPCMessage";
-	static int mNextRPCId = 0;
+	static AtomicInteger mNextRPCId = new AtomicInteger();
 	
 	protected JSONObject mObject;
+	private List<ByteBuffer> mAttachments;
 
-	private static synchronized int _nextRequestId() {
-		return ++mNextRPCId;
+	private static int _nextRequestId() {
+		return mNextRPCId.incrementAndGet();
 	}
 	
 	protected RPCMessage() throws JSONException {
@@ -34,9 +45,15 @@ class RPCMessage {
                                   .put("id", _nextRequestId());
 	}
 	
+	/**
+	 * Makes a message of obj, which was just decoded and isn't used for anything else.  The message
+	 * takes obj over rather than copying it, after checking that the fields the message needs are there.
+	 */
 	protected RPCMessage(JSONObject obj) throws JSONException {
-		mObject = new JSONObject().put("host", obj.getString("host"))
-                                  .put("id", obj.getInt("id"));
+		obj.getString("host");
+		obj.getInt("id");
+		if ( obj.has("attachments") ) obj.getInt("attachments");
+		mObject = obj;
 	}
 
 	int id() throws JSONException {
@@ -55,6 +72,41 @@ class RPCMessage {
 		return mObject;
 	}
 	
+	/**
+	 * The number of attachments following this message on the wire.
+	 */
+	int attachmentCount() {
+		return mObject.optInt("attachments", 0);
+	}
+	
+	/**
+	 * The message's attachments, or an empty list.  For a message that has been unmarshalled, they're
+	 * available only once whoever read the message has read them as well and called setAttachments().
+	 */
+	List<ByteBuffer> attachments() {
+		if ( mAttachments == null ) return Collections.emptyList();
+		return mAttachments;
+	}
+	
+	void setAttachments(List<ByteBuffer> attachments) throws JSONException {
+		mAttachments = attachments;
+		if ( attachments == null || attachments.isEmpty() ) mObject.remove("attachments");
+		else mObject.put("attachments", attachments.size());
+	}
+	
+	/**
+	 * The connection options carried by the message, or null.  Control messages carry them, and so
+	 * may the first invocation on a connection and the response to it (see RPCService).
+	 */
+	JSONObject options() {
+		return mObject.optJSONObject("options");
+	}
+	
+	void setOptions(JSONObject options) throws JSONException {
+		if ( options == null ) mObject.remove("options");
+		else mObject.put("options", options);
+	}
+	
 	@Override
 	public String toString() {
 		return mObject.toString();
@@ -63,22 +115,32 @@ class RPCMessage {
 	static RPCMessage unmarshall(String jsonFormatString) throws IOException {
 		if ( jsonFormatString == null ) throw new IOException("RPCMessage.stringToMessage was passed null");
 
+		JSONObject jsonObj;
+		try {
+			jsonObj = new JSONObject(jsonFormatString);
+		} catch (JSONException je) {
+			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
+		}
+		return unmarshall(jsonObj);
+	}
+	
+	/**
+	 * Builds the message represented by jsonObj, which has been decoded by an RPCCodec.
+	 */
+	static RPCMessage unmarshall(JSONObject jsonObj) throws IOException {
 		try {
-			JSONObject jsonObj = new JSONObject(jsonFormatString);
-			
 			String type = jsonObj.getString("type"); 
 			if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
 			if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
 			if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
 			if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
-			String msg = "Got unrecognized type in message: " + type + " [" + jsonFormatString + "]"; 
+			String msg = "Got unrecognized type in message: " + type + " [" + jsonObj + "]"; 
 			Log.e(TAG, msg );
 			throw new IOException(msg);
 
 		} catch (JSONException je) {
-			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
+			throw new IOException("Malformed message: '" + jsonObj + "': " + je.getMessage());
 		}
-		
 	}
 	
 	//---------------------------------------------------------
@@ -97,6 +159,13 @@ class RPCMessage {
 			if ( mObject.has("args") ) return mObject.getJSONObject("args");
 			return null;
 		}
+		
+		public String getOption(String fieldName) { 
+			JSONObject optionObj = options();
+			if ( optionObj == null ) return null;
+			return optionObj.optString(fieldName);
+		}
+		
 		/**
 		 * For sending RPCService -> RPCService control messages.
 		 * @author zahorjan
@@ -117,20 +186,13 @@ class RPCMessage {
 			
 			RPCControlMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
-				mObject.put("type", "control");
-				mObject.put("action", jsonObject.get("action"));
-				if ( jsonObject.has("options") ) mObject.put("options", jsonObject.getJSONObject("options"));
+				jsonObject.get("action");
+				if ( jsonObject.has("options") ) jsonObject.getJSONObject("options");
 			}
 			
 			public String action() throws JSONException {
 				return mObject.getString("action");
 			}
-			
-			public String getOption(String fieldName) { 
-				JSONObject optionObj = mObject.optJSONObject("options");
-				if ( optionObj == null ) return null;
-				return optionObj.optString(fieldName);
-			}
 		}
 
 		/**
@@ -139,27 +201,33 @@ class RPCMessage {
 		 *
 		 */
 		static public class RPCInvokeMessage extends RPCCallMessage {
+			// the registration this call is for, built once from the names it already holds
+			private final RPCHandlerKey mHandlerKey;
+			
 			RPCInvokeMessage(String service, String method, JSONObject args) throws JSONException {
 				mObject.put("type", "invoke")
 					   .put("app", service)
 					   .put("method", method);
 				if ( args != null ) mObject.put("args", args);
+				mHandlerKey = new RPCHandlerKey(service, method);
 			}
 			
 			RPCInvokeMessage(JSONObject jsonObject) throws JSONException {
 				super(jsonObject);
-				mObject.put("type", "invoke")
-				       .put("app", jsonObject.getString("app"))
-				       .put("method", jsonObject.getString("method"));
-				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+				mHandlerKey = new RPCHandlerKey(jsonObject.getString("app"), jsonObject.getString("method"));
+				if ( jsonObject.has("args") ) jsonObject.getJSONObject("args");
 			}
 			
-			String app() throws JSONException {
-				return mObject.getString("app");
+			String app() {
+				return mHandlerKey.app;
 			}
 			
-			String method() throws JSONException {
-				return mObject.getString("method");
+			String method() {
+				return mHandlerKey.methodName;
+			}
+			
+			RPCHandlerKey handlerKey() {
+				return mHandlerKey;
 			}
 		}
 	}
@@ -179,7 +247,7 @@ class RPCMessage {
 		
 		RPCResponseMessage(JSONObject jsonObj) throws JSONException {
 			super(jsonObj);
-			mObject.put("callid", jsonObj.getInt("callid") );
+			jsonObj.getInt("callid");
 		}
 		
 		int callid() throws JSONException {
@@ -193,11 +261,26 @@ class RPCMessage {
 				if ( retval != null ) mObject.put("value", retval);
 			}
 			
+			/**
+			 * Creates one chunk of a streamed response.  Any number of chunks may be sent for a call
+			 * before its final response, which is an ordinary RPCNormalResponseMessage or an error.
+			 */
+			RPCNormalResponseMessage(int callid, JSONObject chunk, boolean moreToCome) throws JSONException {
+				this(callid, chunk);
+				if ( moreToCome ) mObject.put("stream", "more");
+			}
+			
 			RPCNormalResponseMessage(JSONObject jsonObj ) throws JSONException {
 				super(jsonObj);
-				mObject.put("type", "OK");
-				// JSONObject throws an exception for almost every kind of read if the key exists but the value is null
-				if ( jsonObj.has("value") && jsonObj.get("value") != null ) mObject.put("value", jsonObj.getJSONObject("value"));
+				if ( jsonObj.has("value") ) jsonObj.getJSONObject("value");
+				if ( jsonObj.has("stream") ) jsonObj.getString("stream");
+			}
+			
+			/**
+			 * True if this is a chunk of a streamed response, rather than the call's final response.
+			 */
+			boolean moreToCome() {
+				return "more".equals(mObject.optString("stream"));
 			}
 			
 			public JSONObject value() throws JSONException {
@@ -221,9 +304,38 @@ class RPCMessage {
 			
 			RPCErrorResponseMessage(JSONObject jsonObj) throws JSONException {
 				super(jsonObj);
-				mObject.put("type", "ERROR");
-				mObject.put("message", jsonObj.getString("message") );
-				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				// callargs, if it's there, is the call's arguments, or "unrecognizable" if the service couldn't say what the call was
+				jsonObj.getString("message");
+			}
+			
+			/**
+			 * Tells the caller that the call was refused because the service is busy, and how long to wait before trying again.
+			 */
+			RPCErrorResponseMessage setRetryAfter(long msec) throws JSONException {
+				mObject.put("retryafter", msec);
+				return this;
+			}
+			
+			/**
+			 * The msec. the service asked the caller to wait before trying again, or -1 if it didn't say.
+			 */
+			long retryAfter() {
+				return mObject.optLong("retryafter", -1);
+			}
+			
+			/**
+			 * Tells the caller that the call failed because no handler is registered for its app and method.
+			 */
+			RPCErrorResponseMessage setNoSuchMethod() throws JSONException {
+				mObject.put("nomethod", true);
+				return this;
+			}
+			
+			/**
+			 * True if the service said it has no handler for the call's app and method.
+			 */
+			boolean noSuchMethod() {
+				return mObject.optBoolean("nomethod", false);
 			}
 		}
 	}
@@ -0,0 +1,70 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms for one registered RPC method, kept by RPCService.
+ * <p>
+ * A call's time on the service is split into three parts:
+ * <ul>
+ * <li>queue: from being read off the connection until a worker picks it up
+ * <li>handler: running the registered handler, including sending any streamed chunks
+ * <li>write: from the response being queued until its last byte has been written to the socket
+ * </ul>
+ * Everything here may be updated by many threads at once without locking.
+ *
+ * @author zahorjan
+ *
+ */
+class RPCMethodStats {
+	final LongAdder calls = new LongAdder();         // calls whose handler has returned or thrown
+	final LongAdder errors = new LongAdder();        // calls whose handler threw
+	final LongAdder rejected = new LongAdder();      // calls refused because the service, app, connection or client was at its limit
+	final LongAdder shed = new LongAdder();          // calls dropped after waiting too long for a worker
+	final AtomicInteger inFlight = new AtomicInteger();
+	final LatencyHistogram queueTime = new LatencyHistogram();
+	final LatencyHistogram handlerTime = new LatencyHistogram();
+	final LatencyHistogram writeTime = new LatencyHistogram();
+
+	/**
+	 * The current values, as
+	 * {"calls":n, "errors":n, "rejected":n, "shed":n, "inflight":n, "queue":{...}, "handler":{...}, "write":{...}}
+	 * where each histogram is {"count":n, "mean":usec, "p50":usec, "p99":usec, "p999":usec, "max":usec}.
+	 */
+	JSONObject toJSON() throws JSONException {
+		return new JSONObject().put("calls", calls.sum())
+							   .put("errors", errors.sum())
+							   .put("rejected", rejected.sum())
+							   .put("shed", shed.sum())
+							   .put("inflight", inFlight.get())
+							   .put("queue", histogramToJSON(queueTime.snapshot()))
+							   .put("handler", histogramToJSON(handlerTime.snapshot()))
+							   .put("write", histogramToJSON(writeTime.snapshot()));
+	}
+
+	/**
+	 * A histogram summary, as {"count":n, "mean":usec, "p50":usec, "p99":usec, "p999":usec, "max":usec}.
+	 */
+	static JSONObject histogramToJSON(LatencyHistogram.Snapshot snapshot) throws JSONException {
+		return new JSONObject().put("count", snapshot.count())
+							   .put("mean", snapshot.mean())
+							   .put("p50", snapshot.percentile(0.5))
+							   .put("p99", snapshot.percentile(0.99))
+							   .put("p999", snapshot.percentile(0.999))
+							   .put("max", snapshot.max());
+	}
+
+	@Override
+	public String toString() {
+		return calls.sum() + " calls, " + errors.sum() + " errors, " + rejected.sum() + " rejected, " + shed.sum() + " shed, " + inFlight.get() + " in progress\n" +
+				"\tqueue usec:   " + queueTime + "\n" +
+				"\thandler usec: " + handlerTime + "\n" +
+				"\twrite usec:   " + writeTime;
+	}
+}
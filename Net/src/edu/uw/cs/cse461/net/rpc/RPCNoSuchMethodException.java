@@ -0,0 +1,32 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a call whose remote RPC service has no handler registered for the app and method
+ * called.  The service says so with a "nomethod" member in its ERROR response, so callers can
+ * tell this failure from others without reading the message.
+ *
+ * @author zahorjan
+ *
+ */
+public class RPCNoSuchMethodException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final String mApp;
+	private final String mMethod;
+
+	RPCNoSuchMethodException(String app, String method, String message) {
+		super(message);
+		mApp = app;
+		mMethod = method;
+	}
+
+	public String app() {
+		return mApp;
+	}
+
+	public String method() {
+		return mMethod;
+	}
+}
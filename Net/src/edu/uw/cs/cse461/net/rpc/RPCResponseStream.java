@@ -0,0 +1,120 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+
+/**
+ * Passed to a streaming RPC handler, which uses it to send its result in pieces rather than as
+ * one large return value.
+ * <p>
+ * Each call to send() delivers one chunk to the caller, tagged with the call's id.  The value
+ * the handler returns is sent after the last chunk and completes the call.  send() blocks while
+ * the connection already has maxQueuedBytes waiting to be written, so a handler can't get
+ * more than that far ahead of the caller, and the memory a stream uses stays proportional
+ * to its chunk size rather than to its total length.
+ * <p>
+ * The stream also carries binary attachments: those sent with the invocation, and those the
+ * handler attaches to its chunks and to its response.  Attachments are sent as raw bytes
+ * following the JSON they belong to, so they cost no Base64 encoding or JSON parsing.  A caller
+ * that didn't offer to accept them when it connected can't be sent any.
+ * <p>
+ * See DataXferRPCService for an example of its use.
+ * @author zahorjan
+ *
+ */
+public class RPCResponseStream {
+	private RPCService mService;
+	private RPCCalleeConnection mConn;
+	private int mCallid;
+	private List<ByteBuffer> mRequestAttachments;
+	private List<ByteBuffer> mResponseAttachments = new ArrayList<ByteBuffer>();
+	private long mMaxQueuedBytes;
+	private int mTimeout;
+	private int mNChunks = 0;
+
+	/**
+	 * @param maxQueuedBytes send() waits while at least this many bytes are queued on the connection.
+	 * @param timeout Max time send() waits for the caller to make room, in msec.
+	 */
+	RPCResponseStream(RPCService service, RPCCalleeConnection conn, int callid, List<ByteBuffer> requestAttachments,
+			long maxQueuedBytes, int timeout) {
+		mService = service;
+		mConn = conn;
+		mCallid = callid;
+		mRequestAttachments = requestAttachments;
+		mMaxQueuedBytes = maxQueuedBytes;
+		mTimeout = timeout;
+	}
+
+	/**
+	 * The binary attachments sent with the invocation, in the order they were sent.  Possibly empty.
+	 */
+	public List<ByteBuffer> requestAttachments() {
+		return mRequestAttachments;
+	}
+
+	/**
+	 * True if the caller can be sent attachments.
+	 */
+	public boolean acceptsAttachments() {
+		return mConn.acceptsAttachments();
+	}
+
+	/**
+	 * Adds an attachment to the response the handler returns.  The attachment's remaining bytes
+	 * are sent once the handler has returned, so it mustn't be modified before then.
+	 * @throws IOException If the caller doesn't accept attachments.
+	 */
+	public void attach(ByteBuffer attachment) throws IOException {
+		_checkAcceptsAttachments();
+		mResponseAttachments.add(attachment);
+	}
+
+	List<ByteBuffer> responseAttachments() {
+		return mResponseAttachments;
+	}
+
+	/**
+	 * Sends one chunk of the response, followed by its attachments.  The attachments' remaining
+	 * bytes are copied before send() returns.
+	 * @throws SocketException If the connection to the caller has been closed.
+	 * @throws SocketTimeoutException If the caller stopped reading.
+	 * @throws IOException If interrupted while waiting to send, or there are attachments and the caller doesn't accept them.
+	 */
+	public void send(JSONObject chunk, ByteBuffer... attachments) throws IOException, JSONException {
+		if ( attachments.length > 0 ) _checkAcceptsAttachments();
+		try {
+			if ( !mConn.awaitQueuedBelow(mMaxQueuedBytes, mTimeout) ) {
+				if ( mConn.isClosed() ) throw new SocketException("Connection from " + mConn.remoteAddress() + " closed");
+				throw new SocketTimeoutException("Caller " + mConn.remoteAddress() + " not reading; gave up after " + mTimeout + " msec.");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while sending chunk " + mNChunks + " of call " + mCallid);
+		}
+		RPCNormalResponseMessage msg = new RPCNormalResponseMessage(mCallid, chunk, true);
+		msg.setAttachments(Arrays.asList(attachments));
+		mService._respond(mConn, msg);
+		mNChunks++;
+	}
+
+	private void _checkAcceptsAttachments() throws IOException {
+		if ( !mConn.acceptsAttachments() ) throw new IOException("Caller " + mConn.remoteAddress() + " doesn't accept attachments");
+	}
+
+	/**
+	 * The number of chunks sent so far.
+	 */
+	public int chunksSent() {
+		return mNChunks;
+	}
+}
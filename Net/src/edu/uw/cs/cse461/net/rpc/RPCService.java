@@ -1,48 +1,110 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
-import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.util.BoundedExecutor;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
+import edu.uw.cs.cse461.util.LatencyHistogram;
 import edu.uw.cs.cse461.util.Log;
 
 
 /**
  * Implements the side of RPC that receives remote invocation requests.
+ * <p>
+ * All connections are serviced by a single thread using a Selector, so an idle or slow
+ * caller never holds up any other caller.  Each connection is an RPCCalleeConnection,
+ * which assembles incoming messages without blocking.
+ * <p>
+ * Invocations are not run on the selector thread.  They are handed to a bounded pool of
+ * worker threads (sized by rpc.server.workers and rpc.server.queuedepth), so a slow
+ * handler delays only its own caller.  When the queue is full, or an app already has
+ * rpc.server.app.maxconcurrent calls outstanding, the caller gets an ERROR response
+ * right away instead of waiting.
+ * <p>
+ * RPCAdmissionControl adds further limits: on open connections, on calls outstanding on one
+ * connection, and on the rate of calls from one client.  It also sheds calls that have waited
+ * too long for a worker, and runs the queue newest first while the service is overloaded.
+ * Refusals are ERROR responses carrying a "retryafter" hint, in msec.  A call to a method with
+ * no registered handler gets an ERROR response whose "nomethod" member is true.
+ * <p>
+ * A caller may send several invocations on one connection without waiting for their
+ * responses.  Each response is sent as soon as its call completes, so responses can
+ * arrive out of order; the caller matches them up by callid.
+ * <p>
+ * A handler registered as a streaming method (see RPCCallableMethod) may send any number
+ * of chunks of its result, each tagged with the call's id, before its final response.
+ * Through its RPCResponseStream it also gets the invocation's binary attachments, and may
+ * attach binary data to its chunks and response if the caller accepts attachments.
+ * Only callers that agreed to attachments when connecting may send them, and RPCAdmissionControl
+ * limits how many bytes of them are held, per call and in all.
+ * <p>
+ * Messages are JSON text unless the caller and the service agree on a more compact
+ * RPCCodec when the connection is set up.  rpc.codecs lists the codecs the service will agree to.
  * 
  * @author zahorjan
  *
  */
 public class RPCService extends NetLoadableService implements Runnable, RPCServiceInterface {
 	private static final String TAG="RPCService";
+	private static final int MAX_ATTACHMENTS = 1024;      // per message
 	private int rpcPort;
-	private ServerSocket serverSocket;
-	private HashMap<String, HashMap<String, RPCCallableMethod>> callableMethodStorage;
-	private enum SocketState {
-    	FRESH, PERSISTENT, WAITING, COMPLETED
-	}	
-	private List<TCPMessageHandler> socketList = new ArrayList<TCPMessageHandler>();
-	private List<SocketState> socketStateList = new ArrayList<SocketState>();
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private Set<RPCCalleeConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<RPCCalleeConnection, Boolean>());
+	
+	// registered handlers.  The map is never modified once published: registration replaces it with
+	// an updated copy, so the selector thread can look up a handler without locking.
+	private volatile Map<RPCHandlerKey, Registration> handlers = Collections.emptyMap();
 	private ConfigManager config = NetBase.theNetBase().config();
-	private String host = config.getProperty("net.host.name", "");
-	private int id;
 	private String serverIP;
-	private int numOfCurrentPersistentConnection;
+	private int granularity;
+	private int freshTimeout;
+	private int persistenceTimeout;
+	private int maxReadLength;
+	private int streamMaxQueued;
+	private String allowedCodecs;
+	private Thread selectorThread;
+	
+	// invocations are run by the dispatcher; their responses come back to the selector thread through writeReady
+	private BoundedExecutor dispatcher;
+	private int appMaxConcurrent;
+	private ConcurrentHashMap<String, AtomicInteger> appInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+	private ConcurrentLinkedQueue<RPCCalleeConnection> writeReady = new ConcurrentLinkedQueue<RPCCalleeConnection>();
+	private RPCAdmissionControl admission;
+	private int nRefusedOpen = 0;      // refused connections still open (used only by the selector thread)
 	
 	/**
-	 * Constructor.  Creates the Java ServerSocket and binds it to a port.
+	 * Constructor.  Creates the Java ServerSocketChannel and binds it to a port.
 	 * If the config file specifies an rpc.server.port value, it should be bound to that port.
 	 * Otherwise, you should specify port 0, meaning the operating system should choose a currently unused port.
 	 * <p>
@@ -52,182 +114,498 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 */
 	public RPCService() throws Exception {
 		super("rpc");
-		callableMethodStorage = new HashMap<String, HashMap<String, RPCCallableMethod>>();
-		rpcPort = config.getAsInt("rpc.server.port", 0);
 		serverIP = IPFinder.localIP();
-		serverSocket = new ServerSocket();
-		serverSocket.bind(new InetSocketAddress(serverIP, rpcPort));
-		serverSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-		id = 0;
-		numOfCurrentPersistentConnection = 0;
-		Thread thread = new Thread(this, "RPCService");
-		thread.start();
+		granularity = config.getAsInt("net.timeout.granularity", 500, 1);
+		// connections that haven't asked to be persisted get the normal socket timeout; persistent ones are
+		// closed once they've been idle for rpc.persistence.timeout
+		freshTimeout = config.getAsInt("net.timeout.socket", 2000, 1);
+		persistenceTimeout = config.getAsInt("rpc.persistence.timeout", freshTimeout, 1);
+		maxReadLength = config.getAsInt("tcpmessagehandler.maxmsglength", 2097148, 0);
+		// how far a streaming handler may get ahead of its caller
+		streamMaxQueued = config.getAsInt("rpc.stream.maxqueued", 262144, 1);
+		allowedCodecs = config.getProperty("rpc.codecs", RPCCodec.BINARY.name() + "," + RPCCodec.JSON.name());
+		
+		dispatcher = new BoundedExecutor("RPCService-worker",
+				config.getAsInt("rpc.server.workers", 8, 1),
+				config.getAsInt("rpc.server.queuedepth", 64, 0),
+				config.getAsInt("rpc.server.workers.virtual", 0) != 0);
+		appMaxConcurrent = config.getAsInt("rpc.server.app.maxconcurrent", 0, 0);  // 0 means no per-app limit
+		admission = new RPCAdmissionControl(config, dispatcher, freshTimeout);
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(serverIP, config.getAsInt("rpc.server.port", 0)));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		rpcPort = serverChannel.socket().getLocalPort();
+
+		selectorThread = new Thread(this, "RPCService");
+		selectorThread.start();
 	}
 	
 	/**
-	 * Executed by an RPCService-created thread.  Sits in loop waiting for
-	 * connections, then creates an RPCCalleeSocket to handle each one.
+	 * Executed by an RPCService-created thread.  Sits in a loop waiting for the selector
+	 * to report a new connection, data to read, or room to write, and handles each
+	 * connection's event without blocking.  Also closes connections that have gone idle.
 	 */
 	@Override
 	public void run() {
 		try {
 			while(!mAmShutdown) {
-				while(true){
-					try {
-						// Add the TCPMessageHandler to the socketList. and also the respective	
-						socketList.add(new TCPMessageHandler(serverSocket.accept()));
-						socketStateList.add(SocketState.FRESH);
-					} catch(SocketTimeoutException e) {
-						// This is normal. Break to continue with receiving messages.
-						break;	
-					}	
-				}
-		
-				// Process connections
-				// Iterate through the socket list to remove closed connection socket.
-				for (int i = 0; i < socketList.size(); i++) {
+				selector.select(granularity);
+				_enableWrites();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while ( it.hasNext() ) {
+					SelectionKey key = it.next();
+					it.remove();
+					if ( !key.isValid() ) continue;
+					if ( key.isAcceptable() ) {
+						_accept();
+						continue;
+					}
+					RPCCalleeConnection conn = (RPCCalleeConnection)key.attachment();
 					try {
-						TCPMessageHandler tcpSocket = socketList.get(i);
-						while (true) {
-							// Read message as JSONObject.
-							JSONObject message = tcpSocket.readMessageAsJSONObject();
-							String type = message.getString("type");
-							int clientId = message.getInt("id");
-							if (type.equals("control")) {
-								// Format normal response message that has the id field, host fiels, callid field and also
-								// type field.
-								JSONObject responseMessage = new JSONObject();
-								responseMessage.put("id", id);
-								id++;
-								responseMessage.put("host", host);
-								responseMessage.put("callid", clientId);
-								responseMessage.put("type", "OK");
-								
-								// Check if the caller wants persistent connection
-								if (!message.isNull("options") &&
-										!message.getJSONObject("options").isNull("connection") &&
-										message.getJSONObject("options").getString("connection").equals("keep-alive")) {
-									// Set the state to persistent
-									socketStateList.set(i, SocketState.PERSISTENT);
-									numOfCurrentPersistentConnection++;
-									// Add extra key-value in the response message that indicates that we agree with
-									// setting up persistent connection
-									JSONObject connectionJsonObject = new JSONObject();
-									connectionJsonObject.put("connection", "keep-alive");
-									responseMessage.put("value", connectionJsonObject);
-								}
-								tcpSocket.sendMessage(responseMessage);
-							} else if (type.equals("invoke")) {
-								// Get the method that is being invoked
-								String app = message.getString("app");
-								String method = message.getString("method");
-							
-								// Format response message
-								JSONObject responseMessage = new JSONObject();
-								responseMessage.put("id", id);
-								id++;
-								responseMessage.put("host", host);
-								responseMessage.put("callid", clientId);
-								
-								// Invoke the method if it exists
-								HashMap<String, RPCCallableMethod> map = callableMethodStorage.get(app);
-								JSONObject value = null ;
-								if (map != null) {
-									RPCCallableMethod rpcCallableMethod = map.get(method);
-									if (rpcCallableMethod != null) {
-										value = rpcCallableMethod.handleCall(message.getJSONObject("args"));
-									}
-									responseMessage.put("value", value);
-									responseMessage.put("type", "OK");
-									
-								} else {
-									// No such method, send error message
-									responseMessage.put("message", "apps and/or mehods are not being registered");
-									responseMessage.put("type", "ERROR");
-									responseMessage.put("callargs", message);
-								}
-								
-								tcpSocket.sendMessage(responseMessage);
-								
-								// Send response, change the state to complete iff the state is not persistent.
-								if (socketStateList.get(i) != SocketState.PERSISTENT) {
-									socketStateList.set(i, SocketState.COMPLETED);
-								}
-							} else {
-								JSONObject responseMessage = new JSONObject();
-								responseMessage.put("id", id);
-								id++;
-								responseMessage.put("host", host);
-								responseMessage.put("callid", clientId);
-								responseMessage.put("message", "type not supported");
-								responseMessage.put("type", "ERROR");
-								responseMessage.put("callargs", message);
-							}
+						if ( key.isReadable() ) {
+							byte[] msg;
+							while ( (msg = conn.nextMessage()) != null ) _handleMessage(conn, msg);
 						}
-					} catch (SocketTimeoutException e) {
-						Log.e(TAG, "Timed out waiting for data on tcp connection");
-						// Clean up the cache
-						if (socketStateList.get(i) == SocketState.PERSISTENT) {
-							numOfCurrentPersistentConnection--;
+						if ( key.isValid() && key.isWritable() ) {
+							if ( conn.flush() && _isFinished(conn) ) _close(conn);
 						}
-						socketStateList.set(i, SocketState.COMPLETED);
 					} catch (EOFException e) {
-						// normal termination of loop
-						Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+						// normal termination of a connection
+						Log.d(TAG, "EOF on connection from " + conn.remoteAddress());
+						_close(conn);
 					} catch (Exception e) {
 						Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-						// Clean up the cache
-						if (socketStateList.get(i) == SocketState.PERSISTENT) {
-							numOfCurrentPersistentConnection--;
-						}
-						socketStateList.set(i, SocketState.COMPLETED);
-					} finally {
-						if ( socketStateList.get(i) == SocketState.COMPLETED) { 
-							try {
-								socketList.get(i).close(); 
-							} catch (Exception e) {
-								// Do nothing.
-							}
-							socketList.remove(i);
-							socketStateList.remove(i);
-							i--;
-						}
+						_close(conn);
 					}
 				}
+				_closeIdleConnections();
 			}
 		} catch (Exception e) {
 			Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
 		} finally {
-			if ( serverSocket != null )  {
-				try {
-					serverSocket.close();
-				} catch (Exception e) {
-					// Do nothing.
+			dispatcher.shutdown();
+			for ( RPCCalleeConnection conn : _connections() ) _close(conn);
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (Exception e) {
+				// Do nothing.
+			}
+		}
+	}
+	
+	// Accepts all pending connections, registering each with the selector.  Connections beyond the limit
+	// are kept just long enough to tell the caller why, unless there are already as many of those as the limit.
+	private void _accept() throws IOException {
+		SocketChannel channel;
+		while ( (channel = serverChannel.accept()) != null ) {
+			boolean refused = !admission.admitConnection(connections.size() - nRefusedOpen);
+			if ( refused ) {
+				admission.refusedConnections.increment();
+				if ( nRefusedOpen >= admission.maxConnections() ) {
+					channel.close();
+					continue;
 				}
+				nRefusedOpen++;
 			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			RPCCalleeConnection conn = new RPCCalleeConnection(channel, key, maxReadLength);
+			conn.setRefused(refused);
+			key.attach(conn);
+			connections.add(conn);
 		}
 	}
 	
+	// Asks the selector to watch for writability on connections that workers have queued responses on,
+	// and closes any connection whose last call has completed and been written
+	private void _enableWrites() {
+		RPCCalleeConnection conn;
+		while ( (conn = writeReady.poll()) != null ) {
+			if ( _isFinished(conn) ) _close(conn);
+			else conn.enableWrite();
+		}
+	}
+	
+	// A connection that won't be used again can be closed once its responses have all been written
+	private boolean _isFinished(RPCCalleeConnection conn) {
+		return conn.state() == RPCCalleeConnection.State.COMPLETED && conn.pendingCalls() == 0 && !conn.hasPendingWrites() &&
+				!conn.awaitingAttachments();
+	}
+	
+	/**
+	 * Queues a response on a connection, encoded with the connection's codec.  Safe to call from any thread.
+	 */
+	void _respond(RPCCalleeConnection conn, RPCMessage response) {
+		_respond(conn, response, null);
+	}
+	
+	/**
+	 * Queues a response, recording in writeTime (if it isn't null) how long it takes to be written.
+	 */
+	private void _respond(RPCCalleeConnection conn, RPCMessage response, LatencyHistogram writeTime) {
+		// the first response to a call that carried connect options answers them, as a control message's response would
+		int callid = response.marshall().optInt("callid", -1);
+		JSONObject ack = conn.takeHandshakeAck(callid);
+		ByteBuffer encoded;
+		try {
+			if ( ack != null ) response.setOptions(ack);
+			encoded = conn.codec().encodeShared(response.marshall());
+		} catch (IOException | JSONException e) {
+			Log.e(TAG, "Couldn't encode response " + response + ": " + e.getMessage());
+			// the caller is sent an error it can decode, for the same call, so the call fails now rather than timing out
+			try {
+				response = new RPCErrorResponseMessage(callid, "Couldn't encode the response: " + e.getMessage(), null);
+				if ( ack != null ) response.setOptions(ack);
+				encoded = conn.codec().encodeShared(response.marshall());
+			} catch (IOException | JSONException e2) {
+				// nothing can be sent, so the connection ends once its other calls have; that fails this one too
+				Log.e(TAG, "Couldn't encode an error response either; ending connection from " + conn.remoteAddress());
+				conn.setState(RPCCalleeConnection.State.COMPLETED);
+				writeReady.add(conn);
+				if ( Thread.currentThread() != selectorThread ) selector.wakeup();
+				return;
+			}
+		}
+		conn.send(encoded, response.attachments(), writeTime);
+		if ( ack != null ) _switchCodec(conn, ack);
+		writeReady.add(conn);
+		if ( Thread.currentThread() != selectorThread ) selector.wakeup();
+	}
+	
+	/**
+	 * Decodes one incoming message.  Control messages set up persistence and are answered immediately;
+	 * invoke messages are handed to the dispatcher, which answers on the same connection when the call completes.
+	 */
+	private void _handleMessage(RPCCalleeConnection conn, byte[] msgBytes) throws Exception {
+		if ( conn.awaitingAttachments() ) {
+			RPCMessage invokeMsg = conn.addAttachment(msgBytes);
+			if ( invokeMsg != null ) {
+				// the call now holds only what its attachments actually take
+				admission.releaseAttachmentBytes(admission.maxAttachmentBytes() - _attachmentBytes(invokeMsg));
+				_dispatch(conn, (RPCInvokeMessage)invokeMsg);
+			}
+			return;
+		}
+		if ( conn.state() == RPCCalleeConnection.State.COMPLETED ) return;  // caller sent more after a non-persistent call
+		RPCMessage msg = RPCMessage.unmarshall(conn.codec().decode(msgBytes));
+		if ( conn.isRefused() && msg instanceof RPCCallMessage ) {
+			// whatever the caller asked, it's told to come back later; the connection closes once that's sent
+			conn.setState(RPCCalleeConnection.State.COMPLETED);
+			_respond(conn, new RPCErrorResponseMessage(msg.id(), "RPC service has too many connections (max " + admission.maxConnections() +
+					"); try again in " + admission.retryAfter() + " msec.", (RPCCallMessage)msg).setRetryAfter(admission.retryAfter()));
+			return;
+		}
+		if ( msg instanceof RPCControlMessage ) {
+			RPCControlMessage controlMsg = (RPCControlMessage)msg;
+			JSONObject value = _applyOptions(conn, controlMsg);
+			// the response goes out in the old codec, and everything after it in the new one
+			_respond(conn, new RPCNormalResponseMessage(controlMsg.id(), value));
+			_switchCodec(conn, value);
+		} else if ( msg instanceof RPCInvokeMessage ) {
+			// a caller may skip the connect handshake by sending its options with its first call, and
+			// waiting for the response (which carries our answer) before sending anything else
+			if ( conn.state() == RPCCalleeConnection.State.FRESH && msg.options() != null ) {
+				JSONObject value = _applyOptions(conn, (RPCInvokeMessage)msg);
+				conn.setHandshakeAck(msg.id(), value == null ? new JSONObject() : value);
+			}
+			// the call is the last thing done on a connection that isn't persistent
+			if ( conn.state() != RPCCalleeConnection.State.PERSISTENT ) conn.setState(RPCCalleeConnection.State.COMPLETED);
+			int nAttachments = msg.attachmentCount();
+			if ( nAttachments < 0 || nAttachments > MAX_ATTACHMENTS )
+				throw new IOException("Bad attachment count " + nAttachments + " (max is " + MAX_ATTACHMENTS + ")");
+			if ( nAttachments == 0 ) {
+				_dispatch(conn, (RPCInvokeMessage)msg);
+			} else if ( !conn.acceptsAttachments() ) {
+				// they can't be told apart from messages, so there's no going on with the connection
+				throw new IOException("Call with attachments on a connection that didn't agree to them");
+			} else if ( admission.reserveAttachmentBytes(admission.maxAttachmentBytes()) ) {
+				conn.awaitAttachments(msg, admission.maxAttachmentBytes(), true);
+			} else {
+				// the attachments are read, but only to be thrown away
+				admission.attachmentLimited.increment();
+				conn.awaitAttachments(msg, admission.maxAttachmentBytes(), false);
+				Registration registration = handlers.get(((RPCInvokeMessage)msg).handlerKey());
+				if ( registration != null ) registration.stats.rejected.increment();
+				_respond(conn, new RPCErrorResponseMessage(msg.id(), "RPC service has no room for more attachments; try again in " +
+						admission.retryAfter() + " msec.", (RPCCallMessage)msg).setRetryAfter(admission.retryAfter()));
+			}
+		} else {
+			throw new IOException("Unexpected message type '" + msg.type() + "' from caller");
+		}
+	}
+	
+	/**
+	 * Sets up conn as asked by the connect options in msg.
+	 * @return Our answer, saying which options we agreed to, or null if none.  It's the value of a control
+	 *   message's response, and the options of the response to an invocation that carried connect options.
+	 */
+	private JSONObject _applyOptions(RPCCalleeConnection conn, RPCCallMessage msg) throws JSONException {
+		JSONObject value = null;
+		// Check if the caller wants persistent connection
+		if ( "keep-alive".equals(msg.getOption("connection")) ) {
+			conn.setState(RPCCalleeConnection.State.PERSISTENT);
+			value = new JSONObject().put("connection", "keep-alive");
+		}
+		// and whether it understands attachments
+		if ( "1".equals(msg.getOption("attachments")) ) {
+			conn.setAcceptsAttachments(true);
+			if ( value == null ) value = new JSONObject();
+			value.put("attachments", "1");
+		}
+		// and which codecs it can use
+		RPCCodec codec = RPCCodec.choose(msg.getOption("codecs"), allowedCodecs);
+		if ( codec != null ) {
+			if ( value == null ) value = new JSONObject();
+			value.put("codec", codec.name());
+		}
+		return value;
+	}
+	
+	// Starts using the codec named in value (as returned by _applyOptions()), if there is one
+	private static void _switchCodec(RPCCalleeConnection conn, JSONObject value) {
+		RPCCodec codec = value == null ? null : RPCCodec.forName(value.optString("codec"));
+		if ( codec != null ) conn.setCodec(codec);
+	}
+	
+	// The bytes of attachments msg holds
+	private static long _attachmentBytes(RPCMessage msg) {
+		long nBytes = 0;
+		for ( ByteBuffer attachment : msg.attachments() ) nBytes += attachment.remaining();
+		return nBytes;
+	}
+	
+	// Hands an invocation to a worker, or rejects it.  The attachment buffer space its attachments hold
+	// is given back once it's done with, whichever happens.
+	private void _dispatch(RPCCalleeConnection conn, RPCInvokeMessage invokeMsg) throws Exception {
+		boolean dispatched = false;
+		try {
+			dispatched = _tryDispatch(conn, invokeMsg);
+		} finally {
+			if ( !dispatched ) admission.releaseAttachmentBytes(_attachmentBytes(invokeMsg));
+		}
+	}
+	
+	// Hands an invocation to a worker, or rejects it if the app or the service as a whole is at its limit
+	// @return True if a worker has the call
+	private boolean _tryDispatch(final RPCCalleeConnection conn, final RPCInvokeMessage invokeMsg) throws Exception {
+		Registration registration = handlers.get(invokeMsg.handlerKey());
+		if ( registration == null ) {
+			_respond(conn, new RPCErrorResponseMessage(invokeMsg.id(),
+					"No method " + invokeMsg.method() + "() registered for app " + invokeMsg.app(), invokeMsg).setNoSuchMethod());
+			return false;
+		}
+		final RPCCallableMethod rpcCallableMethod = registration.method;
+		final RPCMethodStats stats = registration.stats;
+		
+		long wait = admission.rateLimit(conn.remoteHost());
+		if ( wait > 0 ) {
+			admission.rateLimited.increment();
+			_reject(conn, invokeMsg, stats, "Too many calls from " + conn.remoteHost().getHostAddress(), wait);
+			return false;
+		}
+		if ( !admission.admitOnConnection(conn.pendingCalls()) ) {
+			admission.connectionLimited.increment();
+			_reject(conn, invokeMsg, stats, "Too many calls outstanding on this connection (" + conn.pendingCalls() + ")", admission.retryAfter());
+			return false;
+		}
+		final AtomicInteger inFlight = _appInFlight(invokeMsg.app());
+		if ( inFlight.incrementAndGet() > appMaxConcurrent && appMaxConcurrent > 0 ) {
+			inFlight.decrementAndGet();
+			_reject(conn, invokeMsg, stats, "Too many concurrent calls to app " + invokeMsg.app(), admission.retryAfter());
+			return false;
+		}
+		
+		conn.callStarted();
+		stats.inFlight.incrementAndGet();
+		final long queuedAt = System.nanoTime();
+		boolean accepted = dispatcher.tryExecute(new Runnable() {
+			@Override
+			public void run() {
+				long startedAt = System.nanoTime();
+				stats.queueTime.recordNanos(startedAt - queuedAt);
+				RPCMessage response;
+				if ( admission.shed(startedAt - queuedAt) ) {
+					// the caller has most likely given up; if not, it's told to try again rather than made to wait longer
+					inFlight.decrementAndGet();
+					stats.inFlight.decrementAndGet();
+					stats.shed.increment();
+					try {
+						response = new RPCErrorResponseMessage(invokeMsg.id(), "RPC service overloaded (call waited " +
+								(startedAt - queuedAt) / 1000000 + " msec.); try again in " + admission.retryAfter() + " msec.",
+								invokeMsg).setRetryAfter(admission.retryAfter());
+					} catch (JSONException e) {
+						response = null;
+					}
+				} else {
+					try {
+						response = _invoke(conn, rpcCallableMethod, invokeMsg);
+					} catch (Exception e) {
+						Log.e(TAG, "Couldn't build response for " + invokeMsg + ": " + e.getMessage());
+						response = null;
+					} finally {
+						inFlight.decrementAndGet();
+						stats.inFlight.decrementAndGet();
+					}
+					stats.handlerTime.recordNanos(System.nanoTime() - startedAt);
+					stats.calls.increment();
+					if ( response == null || response instanceof RPCErrorResponseMessage ) stats.errors.increment();
+				}
+				if ( response != null ) _respond(conn, response, stats.writeTime);
+				admission.releaseAttachmentBytes(_attachmentBytes(invokeMsg));
+				conn.callFinished();
+				// a connection finishing its last call may now be closable
+				writeReady.add(conn);
+				selector.wakeup();
+			}
+		});
+		if ( !accepted ) {
+			inFlight.decrementAndGet();
+			stats.inFlight.decrementAndGet();
+			conn.callFinished();
+			_reject(conn, invokeMsg, stats, "RPC service overloaded (" + dispatcher.queuedCount() + " calls queued)", admission.retryAfter());
+		}
+		return accepted;
+	}
+	
+	// Refuses a call without running it, telling the caller to try again after retryAfter msec.
+	private void _reject(RPCCalleeConnection conn, RPCInvokeMessage invokeMsg, RPCMethodStats stats, String reason, long retryAfter) throws JSONException {
+		stats.rejected.increment();
+		_respond(conn, new RPCErrorResponseMessage(invokeMsg.id(), reason + "; try again in " + retryAfter + " msec.", invokeMsg)
+				.setRetryAfter(retryAfter));
+	}
+	
+	private AtomicInteger _appInFlight(String app) {
+		AtomicInteger count = appInFlight.get(app);
+		if ( count == null ) {
+			AtomicInteger newCount = new AtomicInteger();
+			count = appInFlight.putIfAbsent(app, newCount);
+			if ( count == null ) count = newCount;
+		}
+		return count;
+	}
+	
+	// Calls the registered handler, producing either a normal or an error response.  A streaming handler
+	// sends its chunks on conn as it goes; its response follows the last of them.
+	private RPCMessage _invoke(RPCCalleeConnection conn, RPCCallableMethod rpcCallableMethod, RPCInvokeMessage invokeMsg) throws Exception {
+		try {
+			RPCResponseStream stream = null;
+			if ( rpcCallableMethod.isStreaming() )
+				stream = new RPCResponseStream(this, conn, invokeMsg.id(), invokeMsg.attachments(), streamMaxQueued, freshTimeout);
+			RPCMessage response = new RPCNormalResponseMessage(invokeMsg.id(), rpcCallableMethod.handleCall(invokeMsg.args(), stream));
+			if ( stream != null ) response.setAttachments(stream.responseAttachments());
+			return response;
+		} catch (Exception e) {
+			return new RPCErrorResponseMessage(invokeMsg.id(), String.valueOf(e.getMessage()), invokeMsg);
+		}
+	}
+	
+	// Closes connections that haven't seen any traffic within their timeout
+	private void _closeIdleConnections() {
+		admission.reapBuckets();
+		long now = System.currentTimeMillis();
+		for ( RPCCalleeConnection conn : _connections() ) {
+			if ( conn.hasPendingWrites() || conn.pendingCalls() > 0 ) continue;
+			int timeout = conn.state() == RPCCalleeConnection.State.PERSISTENT ? persistenceTimeout : freshTimeout;
+			if ( now - conn.lastActivity() > timeout ) {
+				Log.d(TAG, "Closing idle connection from " + conn.remoteAddress());
+				_close(conn);
+			}
+		}
+	}
+	
+	// Returns a snapshot of the currently open connections
+	private List<RPCCalleeConnection> _connections() {
+		return new ArrayList<RPCCalleeConnection>(connections);
+	}
+	
+	private void _close(RPCCalleeConnection conn) {
+		if ( conn.abandonAttachments() ) admission.releaseAttachmentBytes(admission.maxAttachmentBytes());
+		conn.close();
+		if ( connections.remove(conn) && conn.isRefused() ) nRefusedOpen--;
+	}
+	
+	/**
+	 * Wakes the selector thread so that it notices the shutdown promptly.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		selector.wakeup();
+	}
 	
 	/**
 	 * Services and applications with RPC callable methods register them with the RPC service using this routine.
 	 * Those methods are then invoked as callbacks when an remote RPC request for them arrives.
+	 * A registration replaces any existing one for the same service and method.  Registering while
+	 * the service is running is safe; calls already dispatched finish with the old handler.
 	 * @param serviceName  The name of the service.
 	 * @param methodName  The external, well-known name of the service's method to call
 	 * @param method The descriptor allowing invocation of the Java method implementing the call
-	 * @throws Exception
 	 */
 	@Override
 	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
-		// Put the serviceName, methodName and RPCCallableMethod into the hashmap of hashmap iff the service
-		// name is not a key inside the hashmap yet.
-		HashMap<String, RPCCallableMethod> methodNameToRPCCallableMethodMap = callableMethodStorage.get(serviceName);
-		if (methodNameToRPCCallableMethodMap == null) {
-			methodNameToRPCCallableMethodMap = new HashMap<String, RPCCallableMethod>();
+		RPCHandlerKey key = new RPCHandlerKey(serviceName, methodName);
+		Registration existing = handlers.get(key);
+		Map<RPCHandlerKey, Registration> updated = new LinkedHashMap<RPCHandlerKey, Registration>(handlers);
+		// re-registering a method keeps its statistics
+		updated.put(key, new Registration(serviceName, methodName, method, existing == null ? new RPCMethodStats() : existing.stats));
+		handlers = Collections.unmodifiableMap(updated);
+	}
+	
+	/**
+	 * Removes the registration for one method.  Calls to it that arrive afterwards get an error response.
+	 * @return The registration that was removed, or null if there wasn't one.
+	 */
+	@Override
+	public synchronized RPCCallableMethod unregisterHandler(String serviceName, String methodName) {
+		RPCHandlerKey key = new RPCHandlerKey(serviceName, methodName);
+		Registration existing = handlers.get(key);
+		if ( existing == null ) return null;
+		Map<RPCHandlerKey, Registration> updated = new LinkedHashMap<RPCHandlerKey, Registration>(handlers);
+		updated.remove(key);
+		handlers = Collections.unmodifiableMap(updated);
+		return existing.method;
+	}
+	
+	/**
+	 * Removes the registrations for all of a service's methods.
+	 * @return The number of registrations removed.
+	 */
+	public synchronized int unregisterHandlers(String serviceName) {
+		Map<RPCHandlerKey, Registration> updated = new LinkedHashMap<RPCHandlerKey, Registration>();
+		for ( Map.Entry<RPCHandlerKey, Registration> entry : handlers.entrySet() ) {
+			if ( !entry.getValue().app.equals(serviceName) ) updated.put(entry.getKey(), entry.getValue());
 		}
+		int nRemoved = handlers.size() - updated.size();
+		if ( nRemoved > 0 ) handlers = Collections.unmodifiableMap(updated);
+		return nRemoved;
+	}
+	
+	private static class Registration {
+		final String app;
+		final String methodName;
+		final RPCCallableMethod method;
+		final RPCMethodStats stats;
 		
-		methodNameToRPCCallableMethodMap.put(methodName, method);
-		callableMethodStorage.put(serviceName, methodNameToRPCCallableMethodMap);		
+		Registration(String app, String methodName, RPCCallableMethod method, RPCMethodStats stats) {
+			this.app = app;
+			this.methodName = methodName;
+			this.method = method;
+			this.stats = stats;
+		}
+	}
+	
+	/**
+	 * Registers a plain function as the handler for serviceName.methodName.  The function reports
+	 * failure by throwing an unchecked exception, whose message is returned to the caller.
+	 */
+	public void registerHandler(String serviceName, String methodName, Function<JSONObject,JSONObject> function) throws Exception {
+		registerHandler(serviceName, methodName, RPCCallableMethod.of(function));
 	}
 	
 	/**
@@ -239,9 +617,8 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * @return The existing registration for that method of that service, or null if no registration exists.
 	 */
 	public RPCCallableMethod getRegistrationFor( String serviceName, String methodName) {
-		// Look up in the hashmap of hashmap that we have.
-		HashMap<String, RPCCallableMethod> methodNameToRPCCallableMethodMap = callableMethodStorage.get(serviceName);
-		return methodNameToRPCCallableMethodMap.get(methodName);
+		Registration registration = handlers.get(new RPCHandlerKey(serviceName, methodName));
+		return registration == null ? null : registration.method;
 	}
 	
 	/**
@@ -256,21 +633,86 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	/**
 	 * Example output:
 	 * 
-	 * rpc Service:
 	 * Listening at 127.0.0.1:46120
-     * 0 current connections being persisted by service
-     * Registered apps/methods:
-     * dataxferrpc:	dataxfer()
-     * echorpc:	echo()
-	 * rpccall Service:
-     * Total persisted connection count: 0
+	 * 3 open connections {json=1, binary=2}
+	 * 2 current connections being persisted by service
+	 * RPCService-worker: 1 active of 8 workers, 0 queued (max 64)
+	 * Admission control: 0 connections refused, 0 calls over client rate, 0 over connection limit, 0 shed after waiting, 0 over attachment buffer (0 of unlimited bytes held); not overloaded (0 times)
+	 * echorpc: 1 calls in progress
+	 * Registered apps/methods:
+	 * dataxferrpc: dataxfer()
+	 * echorpc: echo()
+	 * Method statistics:
+	 * dataxferrpc.dataxfer: 0 calls, 0 errors, 0 rejected, 0 shed, 0 in progress
+	 *	queue usec:   [n=0 mean=0.0 p50=0 p99=0 p999=0 max=0]
+	 *	handler usec: [n=0 mean=0.0 p50=0 p99=0 p999=0 max=0]
+	 *	write usec:   [n=0 mean=0.0 p50=0 p99=0 p999=0 max=0]
+	 * echorpc.echo: 12 calls, 0 errors, 0 rejected, 0 shed, 1 in progress
+	 *	queue usec:   [n=13 mean=40.2 p50=34 p99=99 p999=99 max=101]
+	 *	handler usec: [n=12 mean=10.1 p50=9 p99=27 p999=27 max=27]
+	 *	write usec:   [n=12 mean=18.3 p50=17 p99=35 p999=35 max=36]
 	 */
 	@Override
 	public String dumpState() {
+		int nPersistent = 0;
+		HashMap<String, Integer> codecCounts = new HashMap<String, Integer>();
+		List<RPCCalleeConnection> connections = _connections();
+		for ( RPCCalleeConnection conn : connections ) {
+			if ( conn.state() == RPCCalleeConnection.State.PERSISTENT ) nPersistent++;
+			Integer count = codecCounts.get(conn.codec().name());
+			codecCounts.put(conn.codec().name(), count == null ? 1 : count + 1);
+		}
 		return "Listening at " + serverIP + ":" + rpcPort + "\n" +
-				numOfCurrentPersistentConnection + " current connections being persisted by service\n" +
+				connections.size() + " open connections " + codecCounts + "\n" +
+				nPersistent + " current connections being persisted by service\n" +
+				dispatcher + "\n" +
+				admission + "\n" +
+				getAppsInFlight() +
 				"Registered apps/methods:" + "\n" +
-				getRegisteredAppsMethods();
+				getRegisteredAppsMethods() +
+				"Method statistics:" + "\n" +
+				getMethodStats();
+	}
+	
+	/**
+	 * A machine readable copy of the per-method statistics shown by dumpState().  The result has
+	 * a member for each app with registered methods, whose value has a member for each of them,
+	 * named by the method, whose value is
+	 * {"calls":n, "errors":n, "rejected":n, "shed":n, "inflight":n, "queue":{...}, "handler":{...}, "write":{...}}.
+	 * Each of the last three summarizes the time calls spent in that stage, in microseconds:
+	 * {"count":n, "mean":usec, "p50":usec, "p99":usec, "p999":usec, "max":usec}.
+	 * <p>
+	 * queue is the time waiting for a worker, handler the time running the handler, and write the time
+	 * from the response being queued until it has been written to the socket.  errors counts calls whose
+	 * handler failed; rejected counts calls turned away because the service, app, connection or client was at
+	 * its limit, and shed counts calls dropped after waiting too long for a worker.
+	 */
+	public JSONObject methodStats() throws JSONException {
+		JSONObject result = new JSONObject();
+		for ( Registration registration : handlers.values() ) {
+			JSONObject appStats = result.optJSONObject(registration.app);
+			if ( appStats == null ) {
+				appStats = new JSONObject();
+				result.put(registration.app, appStats);
+			}
+			appStats.put(registration.methodName, registration.stats.toJSON());
+		}
+		return result;
+	}
+	
+	/**
+	 * Dumpstate
+	 * @return the number of calls outstanding for each app that has had at least one call.
+	 * Eg:
+	 * echorpc: 2 calls in progress
+	 */
+	private String getAppsInFlight() {
+		String result = "";
+		for ( String app : appInFlight.keySet() ) {
+			result += app + ": " + appInFlight.get(app).get() + " calls in progress" +
+					(appMaxConcurrent > 0 ? " (max " + appMaxConcurrent + ")" : "") + "\n";
+		}
+		return result;
 	}
 	
 	/**
@@ -282,17 +724,25 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 */
 	private String getRegisteredAppsMethods() {
 		String result = "";
-		if (callableMethodStorage != null) {
-			Set<String> set = callableMethodStorage.keySet();
-			for (String serviceName: set) {
-				HashMap<String, RPCCallableMethod> map = callableMethodStorage.get(serviceName);
-				if (map != null) {
-					Set<String> methodsSet = map.keySet();
-					for (String methodName: methodsSet) {
-						result += serviceName + ": " + methodName + "()\n";
-					}
-				}
-			}	
+		for ( Registration registration : handlers.values() ) {
+			result += registration.app + ": " + registration.methodName + "()\n";
+		}
+		return result;
+	}
+	
+	/**
+	 * Dumpstate
+	 * @return the calls, errors and latencies (in microseconds) of each registered method.
+	 * Eg:
+	 * echorpc.echo: 12 calls, 0 errors, 0 rejected, 0 shed, 0 in progress
+	 *	queue usec:   [n=12 mean=40.2 p50=34 p99=99 p999=99 max=101]
+	 *	handler usec: [n=12 mean=10.1 p50=9 p99=27 p999=27 max=27]
+	 *	write usec:   [n=12 mean=18.3 p50=17 p99=35 p999=35 max=36]
+	 */
+	private String getMethodStats() {
+		String result = "";
+		for ( Registration registration : handlers.values() ) {
+			result += registration.app + "." + registration.methodName + ": " + registration.stats + "\n";
 		}
 		return result;
 	}
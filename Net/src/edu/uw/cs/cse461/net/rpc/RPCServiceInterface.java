@@ -17,6 +17,12 @@ public interface RPCServiceInterface {
 	 */
 	public void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception;
 	
+	/**
+	 * Removes the callback for serviceName/methodName, if there is one.
+	 * @return The descriptor that was registered, or null.
+	 */
+	public RPCCallableMethod unregisterHandler(String serviceName, String methodName);
+	
 	/**
 	 * Some of the testing code needs to retrieve the current registration for a particular service and method,
 	 * so this interface is required.  You probably won't find a use for it in your code, though.
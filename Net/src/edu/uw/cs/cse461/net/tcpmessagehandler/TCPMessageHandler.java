@@ -8,9 +8,11 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,6 +31,24 @@ import edu.uw.cs.cse461.util.Log;
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must
  * wrap an existing Socket, because servers must use ServerSocket.accept(), which
  * returns a Socket that must then be turned into a TCPMessageHandler.
+ * <p>
+ * If the socket was created by a SocketChannel (e.g., accepted by a ServerSocket obtained
+ * from ServerSocketChannel.open().socket()), each message is sent with a single gathering
+ * write of the length field and the caller's data, without copying the data.  Otherwise the
+ * length field and data are copied into a per-connection output buffer, so that each message
+ * goes out in a single write, and a batch sent by sendMessages() in as few writes as fit.  A
+ * message too large for the buffer goes out as the buffer, filled with its length field and the start of
+ * its data, followed by the rest of the data written straight from the caller's array (or, for a direct
+ * buffer, copied through the output buffer a piece at a time).  The channel must be in blocking mode.
+ * <p>
+ * Reads go through a per-connection buffer, so several small messages are usually taken off
+ * the socket by a single read, and the length field is decoded in place.  Because the buffer
+ * may hold data belonging to later messages, all reads from a socket must go through the
+ * same TCPMessageHandler.  readMessageInto() lets a caller receive into its own (e.g., pooled
+ * or direct) buffer without any allocation.
+ * <p>
+ * A TCPMessageHandler keeps per-connection state, so at most one thread at a time may send
+ * (and at most one may read).
  *  
  * @author zahorjan
  *
@@ -36,9 +56,26 @@ import edu.uw.cs.cse461.util.Log;
 public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	private static final String TAG="TCPMessageHandler";
 	
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+	private static final int INPUT_BUFFER_SIZE = 8192;
+	private static final int LENGTH_FIELD_SIZE = 4;
+	private static final int MAX_GATHER_MESSAGES = 256;  // messages per gathering write; keeps us under the OS's iovec limit
+	
 	private Socket 	sock;
 	private int 	maxReadLength;
 	
+	private SocketChannel channel;     // null if the socket wasn't created by a SocketChannel
+	private OutputStream out;          // used only when there's no channel; created on first send
+	private byte[] outBuf;             // messages not yet written to out, in outBuf[0..outLen)
+	private int outLen;
+	private ByteBuffer lengthField = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer[] frame = new ByteBuffer[2];
+	private ByteBuffer batchLengthFields;  // length fields for sendMessages(); created on first use
+	
+	private InputStream in;            // created on first read
+	// bytes read from the socket but not yet consumed, between position and limit
+	private ByteBuffer readBuf = ByteBuffer.allocate(INPUT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	
 	//--------------------------------------------------------------------------------------
 	// helper routines
 	//--------------------------------------------------------------------------------------
@@ -66,11 +103,7 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	 * @return 
 	 */
 	protected static int byteToInt(byte buf[]) {
-		// You need to implement this.  It's the inverse of intToByte().
-		ByteBuffer b = ByteBuffer.allocate(buf.length);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		b.put(buf);
-		return b.getInt(0);
+		return (buf[0] & 0xff) | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
 	}
 
 	/**
@@ -81,6 +114,8 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	public TCPMessageHandler(Socket sock) throws IOException {
 		this.sock = sock;
 		this.maxReadLength = 2097148;
+		this.channel = sock.getChannel();
+		this.readBuf.limit(0);
 	}
 	
 	/**
@@ -143,12 +178,126 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	
 	@Override
 	public void sendMessage(byte[] buf) throws IOException {
-		OutputStream out = sock.getOutputStream();
-		byte[] lengthField = TCPMessageHandler.intToByte(buf.length);
-		ByteBuffer byteBuffer = ByteBuffer.allocate(lengthField.length + buf.length);
-		byteBuffer.put(lengthField, 0, lengthField.length);  // put the size header
-		byteBuffer.put(buf, 0, buf.length);  // append the payload
-		out.write(byteBuffer.array());
+		sendMessage(ByteBuffer.wrap(buf));
+	}
+	
+	/**
+	 * Sends the bytes between buf's position and its limit as one message.  buf may be direct.
+	 * On return, buf's position is equal to its limit.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		lengthField.clear();
+		lengthField.putInt(buf.remaining());
+		lengthField.flip();
+		
+		if ( channel != null ) {
+			frame[0] = lengthField;
+			frame[1] = buf;
+			try {
+				while ( buf.hasRemaining() || lengthField.hasRemaining() ) channel.write(frame);
+			} finally {
+				frame[1] = null;
+			}
+			return;
+		}
+
+		_append(buf);
+		_flush();
+	}
+	
+	// Adds buf's remaining bytes, as a message, to the output buffer.  If it won't fit there, the buffer is filled
+	// with the length field and as much of the message as fits and written, and then so is the rest of the message.
+	private void _append(ByteBuffer buf) throws IOException {
+		if ( out == null ) {
+			out = sock.getOutputStream();
+			outBuf = new byte[OUTPUT_BUFFER_SIZE];
+		}
+		int frameLen = LENGTH_FIELD_SIZE + buf.remaining();
+		if ( outLen + frameLen <= OUTPUT_BUFFER_SIZE ) {
+			outLen = _put(outBuf, outLen, buf);
+		} else if ( frameLen <= OUTPUT_BUFFER_SIZE ) {
+			_flush();
+			outLen = _put(outBuf, 0, buf);
+		} else {
+			if ( outLen + LENGTH_FIELD_SIZE > OUTPUT_BUFFER_SIZE ) _flush();
+			int len = buf.remaining();
+			_putLength(outBuf, outLen, len);
+			int n = OUTPUT_BUFFER_SIZE - outLen - LENGTH_FIELD_SIZE;
+			buf.get(outBuf, outLen + LENGTH_FIELD_SIZE, n);
+			outLen = OUTPUT_BUFFER_SIZE;
+			_flush();
+			if ( buf.hasArray() ) {
+				out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				buf.position(buf.limit());
+			} else {
+				while ( buf.hasRemaining() ) {
+					n = Math.min(buf.remaining(), OUTPUT_BUFFER_SIZE);
+					buf.get(outBuf, 0, n);
+					out.write(outBuf, 0, n);
+				}
+			}
+		}
+	}
+	
+	// Stores len, in the wire format, in dest at offset
+	private static void _putLength(byte[] dest, int offset, int len) {
+		dest[offset] = (byte)len;
+		dest[offset + 1] = (byte)(len >>> 8);
+		dest[offset + 2] = (byte)(len >>> 16);
+		dest[offset + 3] = (byte)(len >>> 24);
+	}
+	
+	// Copies buf's remaining bytes, preceded by their length, into dest at offset.  Returns the offset just past them.
+	private static int _put(byte[] dest, int offset, ByteBuffer buf) {
+		int len = buf.remaining();
+		_putLength(dest, offset, len);
+		buf.get(dest, offset + LENGTH_FIELD_SIZE, len);
+		return offset + LENGTH_FIELD_SIZE + len;
+	}
+	
+	// Writes whatever the output buffer holds
+	private void _flush() throws IOException {
+		if ( outLen == 0 ) return;
+		int len = outLen;
+		outLen = 0;
+		out.write(outBuf, 0, len);
+	}
+	
+	/**
+	 * Sends each buffer's remaining bytes as a separate message, as if by calling sendMessage(ByteBuffer)
+	 * on each in turn, but with as few writes as possible.  With a channel-backed socket, up to
+	 * MAX_GATHER_MESSAGES messages go out in each gathering write; otherwise the messages are
+	 * coalesced in the output buffer, which is written whenever the next message won't fit, and at the end.
+	 * On return, each buffer's position is equal to its limit.
+	 */
+	@Override
+	public void sendMessages(List<ByteBuffer> bufs) throws IOException {
+		if ( channel == null ) {
+			for ( ByteBuffer buf : bufs ) _append(buf);
+			_flush();
+			return;
+		}
+		
+		for ( int first = 0; first < bufs.size(); first += MAX_GATHER_MESSAGES ) {
+			int nMessages = Math.min(MAX_GATHER_MESSAGES, bufs.size() - first);
+			if ( batchLengthFields == null )
+				batchLengthFields = ByteBuffer.allocate(MAX_GATHER_MESSAGES * LENGTH_FIELD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer[] iov = new ByteBuffer[2 * nMessages];
+			long nBytes = 0;
+			for ( int i = 0; i < nMessages; i++ ) {
+				ByteBuffer buf = bufs.get(first + i);
+				batchLengthFields.clear();
+				batchLengthFields.position(i * LENGTH_FIELD_SIZE);
+				batchLengthFields.limit((i + 1) * LENGTH_FIELD_SIZE);
+				ByteBuffer lengthField = batchLengthFields.slice().order(ByteOrder.LITTLE_ENDIAN);
+				lengthField.putInt(0, buf.remaining());
+				iov[2*i] = lengthField;
+				iov[2*i + 1] = buf;
+				nBytes += LENGTH_FIELD_SIZE + buf.remaining();
+			}
+			while ( nBytes > 0 ) nBytes -= channel.write(iov);
+		}
 	}
 	
 	/**
@@ -189,25 +338,102 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	//   All of these invert any encoding done by the corresponding send method.
 	//--------------------------------------------------------------------------------------
 	
-	@Override
-	public byte[] readMessageAsBytes() throws IOException {
-		InputStream in = sock.getInputStream();
-		byte[] lengthArray = new byte[4];
-		if (in.read(lengthArray) == -1) {
-			throw new EOFException("Unexpected EOF here");
+	/**
+	 * Makes sure at least n bytes (n no more than INPUT_BUFFER_SIZE) are buffered, reading from
+	 * the socket if needed.
+	 * @throws EOFException If the connection is closed first.
+	 */
+	private void _fill(int n) throws IOException {
+		if ( readBuf.remaining() >= n ) return;
+		if ( in == null ) in = sock.getInputStream();
+		readBuf.compact();
+		try {
+			while ( readBuf.position() < n ) {
+				int len = in.read(readBuf.array(), readBuf.position(), readBuf.remaining());
+				if ( len < 0 ) throw new EOFException("Unexpected EOF here");
+				readBuf.position(readBuf.position() + len);
+			}
+		} finally {
+			readBuf.flip();
 		}
-		int length = TCPMessageHandler.byteToInt(lengthArray);
-		byte[] retval = new byte[length];
+	}
+	
+	/**
+	 * Returns the length of the next message, without consuming its length field.
+	 * @throws IOException If the length is negative or greater than the max read length.
+	 */
+	private int _peekLength() throws IOException {
+		_fill(LENGTH_FIELD_SIZE);
+		int length = readBuf.getInt(readBuf.position());
+		if ( length < 0 || length > maxReadLength )
+			throw new IOException("Bad message length " + length + " (max read length is " + maxReadLength + ")");
+		return length;
+	}
+	
+	/**
+	 * Reads the next message's data into dst, starting at its position.
+	 * dst must have at least length bytes remaining.
+	 */
+	private void _readBody(ByteBuffer dst, int length) throws IOException {
+		readBuf.position(readBuf.position() + LENGTH_FIELD_SIZE);
 		int leftToRead = length;
-		while (leftToRead > 0) {
-			int result = in.read(retval, length - leftToRead, leftToRead);
-			leftToRead -= result;
-			if (result == -1) // EOF detected
-				throw new EOFException("Unexpected EOF here");
+		
+		// first, whatever is already buffered
+		int n = Math.min(leftToRead, readBuf.remaining());
+		if ( n > 0 ) {
+			int limit = readBuf.limit();
+			readBuf.limit(readBuf.position() + n);
+			dst.put(readBuf);
+			readBuf.limit(limit);
+			leftToRead -= n;
+		}
+		if ( leftToRead == 0 ) return;
+		
+		if ( dst.hasArray() && leftToRead >= INPUT_BUFFER_SIZE ) {
+			// big enough that it's worth going straight into the destination
+			while ( leftToRead > 0 ) {
+				int len = in.read(dst.array(), dst.arrayOffset() + dst.position(), leftToRead);
+				if ( len < 0 ) throw new EOFException("Unexpected EOF here");
+				dst.position(dst.position() + len);
+				leftToRead -= len;
+			}
+			return;
 		}
+		
+		while ( leftToRead > 0 ) {
+			_fill(Math.min(leftToRead, INPUT_BUFFER_SIZE));
+			n = Math.min(leftToRead, readBuf.remaining());
+			int limit = readBuf.limit();
+			readBuf.limit(readBuf.position() + n);
+			dst.put(readBuf);
+			readBuf.limit(limit);
+			leftToRead -= n;
+		}
+	}
+	
+	@Override
+	public byte[] readMessageAsBytes() throws IOException {
+		int length = _peekLength();
+		byte[] retval = new byte[length];
+		_readBody(ByteBuffer.wrap(retval), length);
 		return retval;
 	}
 	
+	/**
+	 * Reads the next message into dst, starting at dst's position.  On return, dst's position
+	 * is just past the message.  No memory is allocated.
+	 * @return The length of the message.
+	 * @throws BufferOverflowException If the message won't fit in dst.  The message is not consumed,
+	 *   so the caller can retry with a bigger buffer.
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dst) throws IOException {
+		int length = _peekLength();
+		if ( length > dst.remaining() ) throw new BufferOverflowException();
+		_readBody(dst, length);
+		return length;
+	}
+	
 	@Override
 	public String readMessageAsString() throws IOException {
 		String retval = new String(readMessageAsBytes());
@@ -216,8 +442,11 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 
 	@Override
 	public int readMessageAsInt() throws IOException {
-		int retval = TCPMessageHandler.byteToInt(readMessageAsBytes());
-		return retval;
+		int length = _peekLength();
+		if ( length != LENGTH_FIELD_SIZE ) throw new IOException("Expected an int message but got one of length " + length);
+		_fill(2 * LENGTH_FIELD_SIZE);
+		readBuf.position(readBuf.position() + LENGTH_FIELD_SIZE);
+		return readBuf.getInt();
 	}
 	
 	@Override
@@ -2,6 +2,8 @@ package edu.uw.cs.cse461.net.tcpmessagehandler;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,6 +18,8 @@ public interface TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public void sendMessage(byte[] buf) throws IOException;
+	public void sendMessage(ByteBuffer buf) throws IOException;    // sends buf's remaining bytes, advancing its position
+	public void sendMessages(List<ByteBuffer> bufs) throws IOException;  // sends each buffer as a message, using as few writes as possible
 	public void sendMessage(String str) throws IOException;
 	public void sendMessage(int value) throws IOException;
 	public void sendMessage(JSONArray jsArray) throws IOException;
@@ -30,6 +34,7 @@ public interface TCPMessageHandlerInterface {
 	//--------------------------------------------------------------------------------------
 	
 	public byte[] readMessageAsBytes() throws IOException;
+	public int readMessageInto(ByteBuffer dst) throws IOException;  // reads into dst, returning the message length
 	public String readMessageAsString() throws IOException;
 	public int readMessageAsInt() throws IOException;
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
@@ -1,16 +1,24 @@
 package edu.uw.cs.cse461.service;
 
+import java.nio.ByteBuffer;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+import edu.uw.cs.cse461.net.rpc.RPCResponseStream;
 import edu.uw.cs.cse461.net.rpc.RPCService;
 import edu.uw.cs.cse461.util.Base64;
 
 /**
  * Implements DataXfer that uses RPCService.
+ * <p>
+ * dataxfer() returns all the data in a single response.  dataxferstream() streams it
+ * instead, as a sequence of responses each carrying at most dataxferrpc.chunksize bytes,
+ * so neither side ever holds more than a chunk of it in memory.  If the caller accepts
+ * attachments, each chunk's data is sent as a raw binary attachment rather than in Base64.
  * 
  * @author leelee
  *
@@ -24,7 +32,11 @@ public class DataXferRPCService extends DataXferServiceBase implements
 	public static final String DATA_LENGTH_KEY = "xferLength";
 	public static final String DATA_KEY = "data";
 
+	private static final int DEFAULT_CHUNK_SIZE = 65536;
+
 	private RPCCallableMethod dataxfer;
+	private RPCCallableMethod dataxferstream;
+	private int chunkSize;
 
 	public DataXferRPCService() throws Exception {
 		super("dataxferrpc");
@@ -32,6 +44,10 @@ public class DataXferRPCService extends DataXferServiceBase implements
 		dataxfer = new RPCCallableMethod(this, "_dataxfer");
 		// Register the method with the RPC service as externally invocable method "dataxfer"
 		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", dataxfer);
+
+		chunkSize = NetBase.theNetBase().config().getAsInt("dataxferrpc.chunksize", DEFAULT_CHUNK_SIZE, 1);
+		dataxferstream = new RPCCallableMethod(this, "_dataxferstream");
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferstream", dataxferstream);
 	}
 
 	/**
@@ -45,9 +61,7 @@ public class DataXferRPCService extends DataXferServiceBase implements
 	 * @throws JSONException
 	 */
 	public JSONObject _dataxfer(JSONObject args) throws Exception {
-		JSONObject header = args.getJSONObject(DataXferRPCService.HEADER_KEY);
-		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) )
-			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		JSONObject header = _checkHeader(args);
 
 		JSONObject object = new JSONObject();
 		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
@@ -57,6 +71,57 @@ public class DataXferRPCService extends DataXferServiceBase implements
 		return object;
 	}
 
+	/**
+	 * The streaming version of _dataxfer().  Takes the same arguments, but sends the data as a
+	 * sequence of chunks of at most chunkSize bytes.  Each chunk's data is its attachment if the caller
+	 * accepts attachments, and is Base64 encoded under DATA_KEY otherwise.
+	 * The return value, sent after the last chunk, is just the response header.
+	 * @param args
+	 * @param stream Where the chunks go
+	 * @return
+	 * @throws Exception
+	 */
+	public JSONObject _dataxferstream(JSONObject args, RPCResponseStream stream) throws Exception {
+		JSONObject header = _checkHeader(args);
+		int xferLength = header.getInt(DataXferRPCService.DATA_LENGTH_KEY);
+
+		byte[] zeroes = new byte[Math.min(chunkSize, xferLength)];
+		if ( stream.acceptsAttachments() ) {
+			JSONObject empty = new JSONObject();
+			for ( int sent = 0; sent < xferLength; sent += zeroes.length ) {
+				stream.send(empty, ByteBuffer.wrap(zeroes, 0, Math.min(zeroes.length, xferLength - sent)));
+			}
+			header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+			return new JSONObject().put(DataXferRPCService.HEADER_KEY, header);
+		}
+
+		// the data is all zeroes, so every full size chunk has the same encoding
+		String fullChunk = null;
+		for ( int sent = 0; sent < xferLength; sent += zeroes.length ) {
+			int len = Math.min(zeroes.length, xferLength - sent);
+			String data;
+			if ( len < zeroes.length ) {
+				data = Base64.encodeBytes(zeroes, 0, len);
+			} else {
+				if ( fullChunk == null ) fullChunk = Base64.encodeBytes(zeroes);
+				data = fullChunk;
+			}
+			stream.send(new JSONObject().put(DataXferRPCService.DATA_KEY, data));
+		}
+
+		header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+		return new JSONObject().put(DataXferRPCService.HEADER_KEY, header);
+	}
+
+	private JSONObject _checkHeader(JSONObject args) throws Exception {
+		JSONObject header = args.getJSONObject(DataXferRPCService.HEADER_KEY);
+		if ( header == null  || !header.has(HEADER_TAG_KEY) || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(HEADER_STR) )
+			throw new Exception("Missing or incorrect header value: '" + header + "'");
+		int xferLength = header.getInt(DataXferRPCService.DATA_LENGTH_KEY);
+		if ( xferLength < 0 ) throw new Exception("Negative transfer length " + xferLength);
+		return header;
+	}
+
 	@Override
 	public String dumpState() {
 		return "dataxferrpc is up";
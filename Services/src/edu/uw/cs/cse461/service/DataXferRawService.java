@@ -1,17 +1,31 @@
 package edu.uw.cs.cse461.service;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.BoundedExecutor;
+import edu.uw.cs.cse461.util.BufferPool;
 import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.DatagramChannels;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
@@ -23,7 +37,47 @@ import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterfac
  * may not receive all the data sent.
  * <p>
  * Four consecutive ports are used to send fixed amounts of data of various
- * sizes.
+ * sizes.  (That layout can be turned off by setting dataxferraw.server.compat to 0.)
+ * <p>
+ * One more port, dataxferraw.server.port (by default, the one after the four), sends
+ * whatever amount the client asks for.  Its header is HEADER_STR followed by the transfer
+ * size, as an 8 byte little endian integer, and the payload size, as a 4 byte little endian
+ * integer: header() builds one.  The payload size is the data carried by each UDP packet
+ * (between 1 and MAX_PAYLOAD_SIZE; 0 means PAYLOAD_SIZE), and the size of each write when
+ * TCP isn't in bulk mode.  Transfers may be up to dataxferraw.server.maxxfermb MB, except
+ * that plain UDP transfers may be only up to dataxferraw.server.udp.maxxfermb MB: a UDP request's
+ * source address is easily forged, and nothing slows a plain transfer down if its target isn't
+ * taking it.  Larger requests are ignored; clients should ask for a reliable transfer instead.
+ * <p>
+ * Each TCP port's accept thread hands its clients to a BoundedExecutor, so that
+ * clients of the same port are served concurrently.  dataxferraw.server.workers
+ * clients are served at once per port, and up to dataxferraw.server.queuedepth more
+ * wait; beyond that, new connections are closed right away.
+ * <p>
+ * Unless dataxferraw.server.bulk is 0, TCP data is sent from a single read-only
+ * direct buffer of zeroes shared by all sessions, in writes as large as the socket
+ * will take, so the kernel copies straight from it.  With bulk off, data is sent
+ * PAYLOAD_SIZE bytes per write, like the UDP side.
+ * <p>
+ * Each UDP port is a non-blocking DatagramChannel served by a thread of its own, which handles
+ * every request queued on each wakeup and sends each transfer from one reused direct buffer,
+ * waiting only when the socket's send buffer is full (see DatagramChannels).  Transfers of more than
+ * UDP_INLINE_XFER bytes are handed to a BoundedExecutor sized like the TCP ones, which sends them
+ * from the same channel, so that one long transfer doesn't hold up the port's other clients.  The
+ * send and receive buffers are dataxferraw.server.udp.buffer bytes, if the OS allows.
+ * <p>
+ * A UDP client of the any size port can ask for a reliable transfer by starting its header with
+ * RELIABLE_HEADER_STR instead (reliableHeader() builds one).  The transfer is then run by a
+ * ReliableUDPSender, on a socket of its own, and each packet is RELIABLE_DATA_STR, the packet's
+ * sequence number (8 bytes), which transmission of it this is (4 bytes, starting at 1), and then
+ * the payload.  Packet n carries bytes n*payloadSize on.  The client acks what it has with
+ * RELIABLE_ACK_STR, the number of packets it has received in order (8 bytes), and a bitmap of
+ * RELIABLE_ACK_BITS bits: bit i (bit i%8 of byte i/8) is set if packet cumAck+1+i has arrived.
+ * All integers are little endian.  The sender resends what the bitmap shows missing, and limits
+ * and paces what it sends with a congestion window that starts at dataxferraw.server.reliable.window
+ * packets and grows to at most dataxferraw.server.reliable.maxwindow.  Reliable transfers run on
+ * a BoundedExecutor sized like the TCP ones.  A client resends its request until data arrives, so
+ * a reliable request from an address and port that already has a transfer queued or running is ignored.
  * <p>
  * 
  * @author zahorjan
@@ -36,18 +90,74 @@ public class DataXferRawService extends DataXferServiceBase implements
 	public static final int NPORTS = 4;
 	public static final int[] XFERSIZE = { 1000, 10000, 100000, 1000000 };
 	public static final int PAYLOAD_SIZE = 1000;
+	public static final int EXT_HEADER_LEN = HEADER_LEN + 8 + 4;
+	// the most data a UDP packet carries after the response header (65507 is the largest IPv4 UDP payload)
+	public static final int MAX_PAYLOAD_SIZE = 65507 - RESPONSE_OKAY_LEN;
+	// reliable UDP mode; see the class comment for the formats
+	public static final String RELIABLE_HEADER_STR = "rxfr";
+	public static final byte[] RELIABLE_HEADER_BYTES = RELIABLE_HEADER_STR.getBytes();
+	public static final String RELIABLE_DATA_STR = "rdat";
+	public static final byte[] RELIABLE_DATA_BYTES = RELIABLE_DATA_STR.getBytes();
+	public static final int RELIABLE_DATA_HEADER_LEN = 4 + 8 + 4;
+	public static final int MAX_RELIABLE_PAYLOAD_SIZE = 65507 - RELIABLE_DATA_HEADER_LEN;
+	public static final String RELIABLE_ACK_STR = "rack";
+	public static final byte[] RELIABLE_ACK_BYTES = RELIABLE_ACK_STR.getBytes();
+	public static final int RELIABLE_ACK_BITS = 1024;
+	public static final int RELIABLE_ACK_LEN = 4 + 8 + RELIABLE_ACK_BITS / 8;
+	// plain UDP transfers larger than this are sent by a worker, not the port's datagram thread
+	public static final int UDP_INLINE_XFER = 1 << 16;
+	// The bulk TCP path sends every payload from these, shared by all sessions.  Each session writes
+	// from its own duplicate(), so their positions are independent.
+	private static final int BULK_CHUNK = 1 << 20;
+	private static final ByteBuffer BULK_ZEROES = ByteBuffer.allocateDirect(BULK_CHUNK).asReadOnlyBuffer();
+	private static final ByteBuffer BULK_OKAY = ((ByteBuffer)ByteBuffer.allocateDirect(RESPONSE_OKAY_LEN)
+			.put(RESPONSE_OKAY_BYTES).flip()).asReadOnlyBuffer();
 	private int mBasePort;
+	private int[] mPorts;
+	private long[] mFixedSize;               // per port: the amount sent, or -1 if the client asks for an amount
+	private long mMaxXferSize;
+	private long mMaxUDPXferSize;            // for plain (not reliable) UDP transfers
 	private ServerSocket[] mServerSocket;
-	private DatagramSocket[] mDatagramSocket;
+	private InetAddress mLocalAddress;
+	private SelectionKey[] mDatagramKeys;    // one per port; each key's channel is served by that port's datagram thread
+	private LongAdder mUDPWakeups = new LongAdder();
+	private LongAdder mUDPRequests = new LongAdder();
+	private LongAdder mUDPDatagrams = new LongAdder();
+	private LongAdder mUDPRefused = new LongAdder();
+	private BoundedExecutor mUDPSessions;    // long plain UDP transfers, from all ports
+	private BoundedExecutor[] mSessions;     // one per TCP port
+	private BoundedExecutor mReliableSessions;
+	// clients with a reliable transfer queued or running
+	private Set<SocketAddress> mReliableClients = Collections.newSetFromMap(new ConcurrentHashMap<SocketAddress, Boolean>());
+	private int mReliableWindow;
+	private int mReliableMaxWindow;
+	private int mSocketTimeout;
+	private boolean mBulk;
 
 	public DataXferRawService() throws Exception {
 		super("dataxferraw");
 
 		ConfigManager config = NetBase.theNetBase().config();
 		mBasePort = config.getAsInt("dataxferraw.server.baseport", 0);
+		mSocketTimeout = config.getAsInt("net.timeout.socket", 5000);
+		mBulk = config.getAsInt("dataxferraw.server.bulk", 1) != 0;
 		if (mBasePort == 0)
 			throw new RuntimeException(
 					"dataxferraw service can't run -- no dataxferraw.server.baseport entry in config file");
+		mMaxXferSize = config.getAsInt("dataxferraw.server.maxxfermb", 8192, 0) * (1L << 20);
+		mMaxUDPXferSize = Math.min(mMaxXferSize, config.getAsInt("dataxferraw.server.udp.maxxfermb", 4, 1) * (1L << 20));
+
+		// the four fixed size ports, if they're wanted, and then the port for any size
+		boolean compat = config.getAsInt("dataxferraw.server.compat", 1) != 0;
+		int nPorts = compat ? NPORTS + 1 : 1;
+		mPorts = new int[nPorts];
+		mFixedSize = new long[nPorts];
+		for (int i = 0; i < nPorts - 1; i++) {
+			mPorts[i] = mBasePort + i;
+			mFixedSize[i] = XFERSIZE[i];
+		}
+		mPorts[nPorts - 1] = config.getAsInt("dataxferraw.server.port", mBasePort + NPORTS);
+		mFixedSize[nPorts - 1] = -1;
 
 		// Sanity check -- code below relies on this property
 		if (HEADER_STR.length() != RESPONSE_OKAY_STR.length())
@@ -62,56 +172,49 @@ public class DataXferRawService extends DataXferServiceBase implements
 			throw new Exception(
 					"IPFinder isn't providing the local IP address.  Can't run.");
 
-		// allocate four ports
-		mDatagramSocket = new DatagramSocket[NPORTS];  // to keep track each of the datagram socket
-		Thread[] dgramThreads = new Thread[NPORTS];  // keep track each of the thread corresponding to a port
-		for (int i = 0; i < NPORTS; i++) {
-			mDatagramSocket[i] = new DatagramSocket(new InetSocketAddress(serverIP, mBasePort + i));
-			mDatagramSocket[i].setSoTimeout(NetBase.theNetBase().config()
-					.getAsInt("net.timeout.granularity", 500));
-			final DatagramSocket soc = mDatagramSocket[i];  // need to do this because of inner class issue in java
+		int nWorkers = config.getAsInt("dataxferraw.server.workers", 8, 1);
+		int queueDepth = config.getAsInt("dataxferraw.server.queuedepth", 16, 0);
+		boolean virtualWorkers = config.getAsInt("dataxferraw.server.workers.virtual", 0) != 0;
+		mReliableSessions = new BoundedExecutor(TAG + "-reliable", nWorkers, queueDepth, virtualWorkers);
+		mUDPSessions = new BoundedExecutor(TAG + "-udp", nWorkers, queueDepth, virtualWorkers);
+		mReliableWindow = config.getAsInt("dataxferraw.server.reliable.window", 10, 1);
+		mReliableMaxWindow = config.getAsInt("dataxferraw.server.reliable.maxwindow", RELIABLE_ACK_BITS, 2, RELIABLE_ACK_BITS);
+
+		mLocalAddress = InetAddress.getByName(serverIP);
+
+		// allocate the ports
+		int udpBufferSize = config.getAsInt("dataxferraw.server.udp.buffer", 4 << 20, 0);
+		final int granularity = config.getAsInt("net.timeout.granularity", 500);
+		mDatagramKeys = new SelectionKey[nPorts];  // to keep track each of the datagram channels
+		Thread[] dgramThreads = new Thread[nPorts];  // keep track each of the thread corresponding to a port
+		for (int i = 0; i < nPorts; i++) {
+			mDatagramKeys[i] = DatagramChannels.open(new InetSocketAddress(serverIP, mPorts[i]), udpBufferSize);
+			final SelectionKey key = mDatagramKeys[i];  // need to do this because of inner class issue in java
+			final DatagramChannel channel = (DatagramChannel)key.channel();
+			final long fixedSize = mFixedSize[i];
 			// for datagram thread to wait for incoming connections
 			Thread dgramThread = new Thread() {
 				public void run() {
-					byte buf[] = new byte[HEADER_LEN];
-					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					byte buf[] = new byte[EXT_HEADER_LEN];
+					ByteBuffer request = ByteBuffer.wrap(buf);
+					// every response packet is the okay header followed by zeroes, so one buffer serves for all of them
+					ByteBuffer response = ByteBuffer.allocateDirect(RESPONSE_OKAY_LEN + MAX_PAYLOAD_SIZE);
+					response.put(RESPONSE_OKAY_BYTES);
 					// Thread termination in this code is primitive. When shutdown()
 					// is called (by the application's main thread, so asynchronously to the threads
-					// just mentioned) it closes the sockets. This causes an exception on any thread
-					// trying to read from it, which is what provokes thread termination.
+					// just mentioned) the thread notices within granularity msec., and closes the channel.
 					try {
 						while (!mAmShutdown) {
 							try {
-								int bytesLeft = XFERSIZE[soc.getLocalPort() - mBasePort];  // we get the amount of bytes we need to transfer
-								soc.receive(packet);
-								if (packet.getLength() < HEADER_STR.length())
-									throw new Exception("Bad header: length = "
-											+ packet.getLength());
-								String headerStr = new String(buf, 0,
-										HEADER_STR.length());
-								if (!headerStr.equalsIgnoreCase(HEADER_STR))
-									throw new Exception("Bad header: got '"
-											+ headerStr + "', wanted '"
-											+ HEADER_STR + "'");
-								// after this point we are sure that the request is correct
-								// create a new buffer to send data back to the client
-								// This loop is for dividing the data into chucks of UDP payload size, 1000
-								while (bytesLeft > 0) {
-									int size = RESPONSE_OKAY_LEN + PAYLOAD_SIZE;
-									if (bytesLeft < PAYLOAD_SIZE) {
-										// if the bytes left is less than the payload size
-										// set the size to the "header + bytesleft"
-										size = RESPONSE_OKAY_LEN + bytesLeft;
-									}
-									byte[] returnPacket = new byte[size];
-									System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0,
-											returnPacket, 0, HEADER_STR.length());  // put the header into the packet 
-									soc.send(new DatagramPacket(returnPacket, returnPacket.length,
-											packet.getAddress(), packet.getPort()));
-									bytesLeft -= PAYLOAD_SIZE;
+								if (key.selector().select(granularity) == 0)
+									continue;  // time to check for shutdown
+								key.selector().selectedKeys().clear();
+								mUDPWakeups.increment();
+								// serve every request that has queued up since the last wakeup
+								SocketAddress client;
+								while (!mAmShutdown && (client = channel.receive((ByteBuffer)request.clear())) != null) {
+									_serveUDP(key, client, _parseRequest(buf, request.position(), fixedSize), response);
 								}
-							} catch (SocketTimeoutException e) {
-								// socket timeout is normal
 							} catch (Exception e) {
 								Log.w(TAG, "Dgram reading thread caught "
 										+ e.getClass().getName() + " exception: "
@@ -119,13 +222,7 @@ public class DataXferRawService extends DataXferServiceBase implements
 							}
 						}
 					} finally {
-						if (soc != null) {
-							try {
-								soc.close();
-							} catch (Exception e) {
-								System.out.println("Exception: " + e.getMessage());
-							}
-						}
+						DatagramChannels.close(key);
 					}
 				}
 			};
@@ -133,84 +230,63 @@ public class DataXferRawService extends DataXferServiceBase implements
 			dgramThreads[i] = dgramThread;
 		}
 		
-		mServerSocket = new ServerSocket[NPORTS];
-		Thread[] tcpThreads = new Thread[NPORTS];
+		mServerSocket = new ServerSocket[nPorts];
+		mSessions = new BoundedExecutor[nPorts];
+		Thread[] tcpThreads = new Thread[nPorts];
 		// TCP sockets
-		for (int i = 0; i < NPORTS; i++) {
-			mServerSocket[i] = new ServerSocket();
-			mServerSocket[i].bind(new InetSocketAddress(serverIP, mBasePort + i));
+		for (int i = 0; i < nPorts; i++) {
+			// channel-backed, so that payloads can be written straight from a direct buffer
+			mServerSocket[i] = ServerSocketChannel.open().socket();
+			mServerSocket[i].bind(new InetSocketAddress(serverIP, mPorts[i]));
 			mServerSocket[i].setSoTimeout(NetBase.theNetBase().config()
 					.getAsInt("net.timeout.granularity", 500));
 			Log.i(TAG, "Server socket = " + mServerSocket[i].getLocalSocketAddress());
 			final ServerSocket serverSocket = mServerSocket[i];
+			final BoundedExecutor sessions = new BoundedExecutor(TAG + "-" + serverSocket.getLocalPort(), nWorkers, queueDepth, virtualWorkers);
+			mSessions[i] = sessions;
+			final long fixedSize = mFixedSize[i];
 			Thread tcpThread = new Thread() {
 
 				public void run() {
-					byte[] header = new byte[4];
-					int socketTimeout = NetBase.theNetBase().config()
-							.getAsInt("net.timeout.socket", 5000);
 					try {
 						while (!isShutdown()) {
-							Socket sock = null;
+							final Socket sock;
 							try {
-								int xferSize = XFERSIZE[serverSocket.getLocalPort() - mBasePort];
 								// accept() blocks until a client connects. When it
 								// does, a new socket is created that communicates only
 								// with that client. That socket is returned.
 								sock = serverSocket.accept();
-								// We're going to read from sock, to get the message
-								// to echo, but we can't risk a client mistake
-								// blocking us forever. So, arrange for the socket
-								// to give up if no data arrives for a while.
-								sock.setSoTimeout(socketTimeout);
-								InputStream is = sock.getInputStream();
-								OutputStream os = sock.getOutputStream();
-								// Read the header. Either it gets here in one chunk
-								// or we ignore it. (That's not exactly the
-								// spec, admittedly.)
-								int len = is.read(header);
-								if (len != HEADER_STR.length())
-									throw new Exception("Bad header length: got "
-											+ len + " but wanted "
-											+ HEADER_STR.length());
-								String headerStr = new String(header);
-								if (!headerStr.equalsIgnoreCase(HEADER_STR))
-									throw new Exception("Bad header: got '"
-											+ headerStr + "' but wanted '"
-											+ HEADER_STR + "'");
-								os.write(RESPONSE_OKAY_STR.getBytes());
-
-								// Keep on sending the packet until the transfer size is 0.
-								// This is to prevent memory outage in the client side.
-								while (xferSize > 0) {
-									int size = PAYLOAD_SIZE;
-									if (xferSize < PAYLOAD_SIZE) {
-										size = xferSize;
-									}
-									byte[] returnPacket = new byte[size];
-									os.write(returnPacket, 0, returnPacket.length);
-								}
-
 							} catch (SocketTimeoutException e) {
-								// normal behavior, but we're done with the client
-								// we were talking with
-							} catch (Exception e) {
-								Log.i(TAG, "TCP thread caught "
-										+ e.getClass().getName() + " exception: "
-										+ e.getMessage());
-							} finally {
-								if (sock != null)
-									try {
-										sock.close();
-									} catch (Exception e) {
-										System.out.println("Exception: " + e.getMessage());
-									}
+								// normal: it's time to check for shutdown
+								continue;
+							} catch (IOException e) {
+								if (serverSocket.isClosed())
+									throw e;
+								Log.i(TAG, "accept() on port " + serverSocket.getLocalPort() + " failed: " + e.getMessage());
+								continue;
+							}
+							// the session runs on a worker, so a slow client doesn't hold up the others on this port
+							boolean accepted = sessions.tryExecute(new Runnable() {
+								@Override
+								public void run() {
+									_serveTCP(sock, fixedSize);
+								}
+							});
+							if (!accepted) {
+								Log.i(TAG, "Too many sessions on port " + serverSocket.getLocalPort() + "; refusing "
+										+ sock.getRemoteSocketAddress());
+								try {
+									sock.close();
+								} catch (Exception e) {
+									// Do nothing.
+								}
 							}
 						}
 					} catch (Exception e) {
 						Log.w(TAG, "TCP server thread exiting due to exception: "
 								+ e.getMessage());
 					} finally {
+						sessions.shutdown();
 						if (mServerSocket != null)
 							try {
 								serverSocket.close();
@@ -225,9 +301,255 @@ public class DataXferRawService extends DataXferServiceBase implements
 		}
 	}
 
+	/**
+	 * Sends the data the client on sock asks for, once it has sent a valid header, and then closes sock.
+	 * Runs on one of the port's session workers.
+	 * @param fixedSize The amount the port sends, or -1 if the header gives it.
+	 */
+	private void _serveTCP(Socket sock, long fixedSize) {
+		byte[] header = new byte[fixedSize < 0 ? EXT_HEADER_LEN : HEADER_LEN];
+		ByteBuffer payload = null;
+		try {
+			// We're going to read from sock, to get the message
+			// to echo, but we can't risk a client mistake
+			// blocking us forever. So, arrange for the socket
+			// to give up if no data arrives for a while.
+			sock.setSoTimeout(mSocketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header.
+			new DataInputStream(is).readFully(header);
+			Request request = _parseRequest(header, header.length, fixedSize);
+			if (request.reliable)
+				throw new Exception("Reliable transfers are UDP only");
+			long xferSize = request.xferSize;
+			SocketChannel channel = sock.getChannel();
+			if (mBulk) {
+				_sendBulk(channel, xferSize);
+				return;
+			}
+			os.write(RESPONSE_OKAY_STR.getBytes());
+
+			// Keep on sending the packet until the transfer size is 0.
+			// This is to prevent memory outage in the client side.
+			int payloadSize = request.payloadSize;
+			payload = BufferPool.acquire(payloadSize);
+			ByteBuffer zeroes = BULK_ZEROES.duplicate();
+			zeroes.limit(payloadSize);
+			payload.put(zeroes);
+			while (xferSize > 0) {
+				int size = payloadSize;
+				if (xferSize < payloadSize) {
+					size = (int)xferSize;
+				}
+				payload.clear();
+				payload.limit(size);
+				while ( payload.hasRemaining() ) channel.write(payload);
+				xferSize -= size;
+			}
+
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client
+			// we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP thread caught "
+					+ e.getClass().getName() + " exception: "
+					+ e.getMessage());
+		} finally {
+			BufferPool.release(payload);
+			try {
+				sock.close();
+			} catch (Exception e) {
+				System.out.println("Exception: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sends what client has asked for, from key's channel, or hands it to a ReliableUDPSender if it wants
+	 * a reliable transfer.  Runs on the port's datagram thread, which sends only short transfers itself.
+	 * @param response A buffer of RESPONSE_OKAY_LEN + MAX_PAYLOAD_SIZE bytes, the okay response followed by zeroes.
+	 */
+	private void _serveUDP(final SelectionKey key, final SocketAddress client, final Request request, ByteBuffer response) throws IOException {
+		if (request.reliable) {
+			// a copy of a request already being served: the client hasn't seen the sender's first packet yet
+			if (!mReliableClients.add(client))
+				return;
+			// runs on a socket of its own, so this thread can get on with other requests
+			final Runnable sender = new ReliableUDPSender(mLocalAddress, client, request.xferSize, request.payloadSize,
+					mReliableWindow, mReliableMaxWindow, mSocketTimeout);
+			boolean accepted = mReliableSessions.tryExecute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sender.run();
+					} finally {
+						mReliableClients.remove(client);
+					}
+				}
+			});
+			if (!accepted) {
+				mReliableClients.remove(client);
+				Log.i(TAG, "Too many reliable transfers; ignoring " + client);
+			}
+			return;
+		}
+		if (request.xferSize > mMaxUDPXferSize) {
+			mUDPRefused.increment();
+			Log.i(TAG, "Ignoring request for " + request.xferSize + " bytes over plain UDP (max is " + mMaxUDPXferSize
+					+ ") from " + client);
+			return;
+		}
+		mUDPRequests.increment();
+		if (request.xferSize <= UDP_INLINE_XFER) {
+			_sendUDP(key, client, request, response);
+			return;
+		}
+		boolean accepted = mUDPSessions.tryExecute(new Runnable() {
+			@Override
+			public void run() {
+				_sendUDPWorker(key, client, request);
+			}
+		});
+		if (!accepted)
+			Log.i(TAG, "Too many UDP transfers; ignoring " + client);
+	}
+
+	/**
+	 * Sends a transfer from a worker.  The worker has its own key for the port's channel (see
+	 * DatagramChannels.share()), so it can wait for room to send without disturbing the datagram thread.
+	 */
+	private void _sendUDPWorker(SelectionKey portKey, SocketAddress client, Request request) {
+		SelectionKey key = null;
+		ByteBuffer response = BufferPool.acquire(RESPONSE_OKAY_LEN + request.payloadSize);
+		try {
+			response.put(RESPONSE_OKAY_BYTES);
+			ByteBuffer zeroes = BULK_ZEROES.duplicate();
+			zeroes.limit(request.payloadSize);
+			response.put(zeroes);
+			key = DatagramChannels.share(portKey);
+			_sendUDP(key, client, request, response);
+		} catch (Exception e) {
+			Log.i(TAG, "UDP transfer to " + client + " failed: " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			DatagramChannels.release(key);
+			BufferPool.release(response);
+		}
+	}
+
+	/**
+	 * Sends the transfer request asks for to client, from key's channel.
+	 * @param response A buffer of at least RESPONSE_OKAY_LEN + request.payloadSize bytes, the okay response followed by zeroes.
+	 */
+	private void _sendUDP(SelectionKey key, SocketAddress client, Request request, ByteBuffer response) throws IOException {
+		long bytesLeft = request.xferSize;  // we get the amount of bytes we need to transfer
+		int payloadSize = request.payloadSize;
+		// This loop is for dividing the data into chucks of UDP payload size.  Datagrams go out back to
+		// back until the socket's send buffer is full, and only then does the thread wait.
+		while (bytesLeft > 0) {
+			int size = (int)Math.min(payloadSize, bytesLeft);
+			response.clear();
+			response.limit(RESPONSE_OKAY_LEN + size);
+			DatagramChannels.send(key, response, client, mSocketTimeout);
+			mUDPDatagrams.increment();
+			bytesLeft -= size;
+		}
+	}
+
+	/**
+	 * What a client has asked for: how much data, how much of it per UDP packet, and whether
+	 * it wants a reliable transfer.
+	 */
+	private static class Request {
+		final long xferSize;
+		final int payloadSize;
+		final boolean reliable;
+
+		Request(long xferSize, int payloadSize, boolean reliable) {
+			this.xferSize = xferSize;
+			this.payloadSize = payloadSize;
+			this.reliable = reliable;
+		}
+	}
+
+	/**
+	 * Checks the first len bytes of buf, a client's header, and returns what it asks for.
+	 * @param fixedSize The amount the port sends, or -1 if the header gives it.
+	 * @throws Exception If the header isn't valid.
+	 */
+	private Request _parseRequest(byte[] buf, int len, long fixedSize) throws Exception {
+		if (len < HEADER_LEN)
+			throw new Exception("Bad header: length = " + len);
+		String headerStr = new String(buf, 0, HEADER_LEN);
+		boolean reliable = fixedSize < 0 && headerStr.equalsIgnoreCase(RELIABLE_HEADER_STR);
+		if (!reliable && !headerStr.equalsIgnoreCase(HEADER_STR))
+			throw new Exception("Bad header: got '"
+					+ headerStr + "', wanted '"
+					+ HEADER_STR + "'");
+		if (fixedSize >= 0)
+			return new Request(fixedSize, PAYLOAD_SIZE, false);
+		if (len < EXT_HEADER_LEN)
+			throw new Exception("Bad header: length = " + len + ", but this port wants " + EXT_HEADER_LEN);
+		ByteBuffer fields = ByteBuffer.wrap(buf, HEADER_LEN, EXT_HEADER_LEN - HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+		long xferSize = fields.getLong();
+		int payloadSize = fields.getInt();
+		if (payloadSize == 0)
+			payloadSize = PAYLOAD_SIZE;
+		if (xferSize < 0 || xferSize > mMaxXferSize)
+			throw new Exception("Bad transfer size " + xferSize + " (max is " + mMaxXferSize + ")");
+		int maxPayloadSize = reliable ? MAX_RELIABLE_PAYLOAD_SIZE : MAX_PAYLOAD_SIZE;
+		if (payloadSize < 0 || payloadSize > maxPayloadSize)
+			throw new Exception("Bad payload size " + payloadSize + " (max is " + maxPayloadSize + ")");
+		return new Request(xferSize, payloadSize, reliable);
+	}
+
+	/**
+	 * Builds the header a client sends to the port that sends any amount.
+	 * @param xferSize Bytes of data wanted.
+	 * @param payloadSize Bytes of data per UDP packet, or 0 for PAYLOAD_SIZE.
+	 */
+	public static byte[] header(long xferSize, int payloadSize) {
+		ByteBuffer header = ByteBuffer.allocate(EXT_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(HEADER_BYTES).putLong(xferSize).putInt(payloadSize);
+		return header.array();
+	}
+
+	/**
+	 * Builds the header a client sends to the any size port for a reliable UDP transfer.
+	 * @param xferSize Bytes of data wanted.
+	 * @param payloadSize Bytes of data per packet, or 0 for PAYLOAD_SIZE.
+	 */
+	public static byte[] reliableHeader(long xferSize, int payloadSize) {
+		byte[] header = header(xferSize, payloadSize);
+		System.arraycopy(RELIABLE_HEADER_BYTES, 0, header, 0, HEADER_LEN);
+		return header;
+	}
+
+	/**
+	 * Sends the okay response followed by xferSize bytes of zeroes, in as few writes as the socket allows.
+	 * The zeroes come from BULK_ZEROES, so nothing is allocated or filled per transfer.  The response
+	 * and the first part of the payload go out in a single gathering write.
+	 */
+	private static void _sendBulk(SocketChannel channel, long xferSize) throws IOException {
+		ByteBuffer[] bufs = { BULK_OKAY.duplicate(), BULK_ZEROES.duplicate() };
+		long left = xferSize;
+		bufs[1].limit((int)Math.min(left, BULK_CHUNK));
+		left -= bufs[1].remaining();
+		while (bufs[0].hasRemaining() || bufs[1].hasRemaining()) {
+			channel.write(bufs);
+			if (!bufs[1].hasRemaining() && left > 0) {
+				bufs[1].clear();
+				bufs[1].limit((int)Math.min(left, BULK_CHUNK));
+				left -= bufs[1].remaining();
+			}
+		}
+	}
+
 	@Override
 	public void shutdown() {
 		super.shutdown();
+		mReliableSessions.shutdown();
+		mUDPSessions.shutdown();
 		Log.d(TAG, "Shutting down");
 	}
 
@@ -240,13 +562,24 @@ public class DataXferRawService extends DataXferServiceBase implements
 	public String dumpState() {
 		// Example of expected output:
 		// Listening on:
-		//		TCP: 127.0.0.1:46104 (1000B), 127.0.0.1:46105 (10000B), 127.0.0.1:46106 (100000B), 127.0.0.1:46107 (1000000B)
-		// 		UDP: 127.0.0.1:46104 (1000B), 127.0.0.1:46105 (10000B), 127.0.0.1:46106 (100000B), 127.0.0.1:46107 (1000000B)
+		//		TCP: 127.0.0.1:46104 (1000B), 127.0.0.1:46105 (10000B), 127.0.0.1:46106 (100000B), 127.0.0.1:46107 (1000000B), 127.0.0.1:46108 (any size)
+		// 		UDP: 127.0.0.1:46104 (1000B), 127.0.0.1:46105 (10000B), 127.0.0.1:46106 (100000B), 127.0.0.1:46107 (1000000B), 127.0.0.1:46108 (any size)
 		String serverIP = IPFinder.localIP();
-		String portNum = "" + serverIP + ":" + mBasePort + " (1000B), " + 
-				serverIP + ":" + (mBasePort + 1) + " (10000B), " + serverIP +
-				":" + (mBasePort + 2) + " (100000B), " + serverIP + ":" +
-				(mBasePort + 3) + " (1000000B)";
-		return "Listening on:\n\tTCP: " + portNum + "\n\tUDP: " + portNum;
+		String portNum = "";
+		for (int i = 0; i < mPorts.length; i++) {
+			if (i > 0)
+				portNum += ", ";
+			portNum += serverIP + ":" + mPorts[i] + (mFixedSize[i] >= 0 ? " (" + mFixedSize[i] + "B)" : " (any size)");
+		}
+		StringBuilder sb = new StringBuilder("Listening on:\n\tTCP: " + portNum + "\n\tUDP: " + portNum);
+		sb.append("\nTCP sessions:");
+		for (BoundedExecutor sessions : mSessions)
+			sb.append("\n\t").append(sessions);
+		sb.append("\nUDP: " + mUDPRequests.sum() + " transfers, " + mUDPDatagrams.sum() + " datagrams sent, "
+				+ mUDPWakeups.sum() + " wakeups, " + mUDPRefused.sum() + " refused (over " + mMaxUDPXferSize + " bytes)");
+		sb.append("\n\t").append(mUDPSessions);
+		sb.append("\n").append(ReliableUDPSender.totals());
+		sb.append("\n\t").append(mReliableSessions);
+		return sb.toString();
 	}
 }
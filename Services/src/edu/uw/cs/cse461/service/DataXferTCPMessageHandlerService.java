@@ -5,11 +5,16 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.util.BufferPool;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -17,13 +22,16 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 	
 	private static final String TAG="DataXferTCPMessageHandlerService";
 	private static final int MAX_PACKET_SIZE = 1000;
+	private static final int PACKETS_PER_BATCH = 64;   // packets handed to the TCPMessageHandler per sendMessages() call
+	private static final byte[] ZEROES = new byte[MAX_PACKET_SIZE];
 	private ServerSocket mServerSocket;
 
 	public DataXferTCPMessageHandlerService() throws Exception {
 		super("dataxfertcpmessagehandler");
 		String serverIP = IPFinder.localIP();
 		int tcpPort = 0;
-		mServerSocket = new ServerSocket();
+		// a channel-backed server socket lets TCPMessageHandler send each message with one gathering write
+		mServerSocket = ServerSocketChannel.open().socket();
 		mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
 		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
@@ -39,14 +47,18 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 							sock = serverSocket.accept();  // if this fails, we want out of the while loop...
 							// should really spawn a thread here, but the code is already complicated enough that we don't bother
 							TCPMessageHandler tcpMessageHandlerSocket = null;
+							// the data sent is all zeroes, so every packet can be sent from the same buffer
+							ByteBuffer payload = BufferPool.acquire(MAX_PACKET_SIZE);
+							payload.put(ZEROES);
+							payload.clear();
 							try {
+								// one handler for the life of the connection: it may have buffered the start of the next message
+								tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+								tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+								tcpMessageHandlerSocket.setNoDelay(true);
 								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
 								// because it has timed out on the read
 								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									
 									String header = tcpMessageHandlerSocket.readMessageAsString();
 									if ( ! header.equalsIgnoreCase(DataXferServiceBase.HEADER_STR))
 										throw new Exception("Bad header: '" + header + "'");
@@ -55,13 +67,16 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 									int transferSize = transferSizeObj.getInt("transferSize");
 									// now respond
 									tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
+									List<ByteBuffer> batch = new ArrayList<ByteBuffer>(PACKETS_PER_BATCH);
 									while (transferSize > 0) {
-										if (transferSize >= MAX_PACKET_SIZE) {
-											tcpMessageHandlerSocket.sendMessage(new byte[MAX_PACKET_SIZE]);
-											transferSize -= MAX_PACKET_SIZE;
-										} else {
-											tcpMessageHandlerSocket.sendMessage(new byte[transferSize]);
-											transferSize = 0;
+										int packetSize = Math.min(transferSize, MAX_PACKET_SIZE);
+										ByteBuffer packet = payload.duplicate();
+										packet.limit(packetSize);
+										batch.add(packet);
+										transferSize -= packetSize;
+										if ( batch.size() == PACKETS_PER_BATCH || transferSize == 0 ) {
+											tcpMessageHandlerSocket.sendMessages(batch);
+											batch.clear();
 										}
 									}
 								}
@@ -74,6 +89,7 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
 							} finally {
 								if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+								BufferPool.release(payload);
 							}
 						} catch (SocketTimeoutException e) {
 							// this is normal.  Just loop back and see if we're terminating.
@@ -1,15 +1,21 @@
 package edu.uw.cs.cse461.service;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.BoundedExecutor;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.DatagramChannels;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -24,7 +30,9 @@ public class EchoRawService extends EchoServiceBase {
 	private static final String TAG = "EchoRawService";
 
 	private ServerSocket mServerSocket;
-	private DatagramSocket mDatagramSocket;
+	private SelectionKey mDatagramKey;
+	private BoundedExecutor mSessions;
+	private int mSocketTimeout;
 
 	/**
 	 * A NetLoadableService must provide a public constructor taking no
@@ -33,7 +41,10 @@ public class EchoRawService extends EchoServiceBase {
 	 * This service must listen to both a UDP and a TCP port. It creates sockets
 	 * bound to those ports in this constructor. It also creates a thread per
 	 * socket - the thread blocks trying to receive data on its socket, and when
-	 * it does, echoes back whatever it receives.
+	 * it does, echoes back whatever it receives.  TCP clients are served
+	 * concurrently, by up to echoraw.server.workers threads, with up to
+	 * echoraw.server.queuedepth more waiting; connections beyond that are closed
+	 * right away.
 	 * 
 	 * @throws Exception
 	 */
@@ -64,47 +75,50 @@ public class EchoRawService extends EchoServiceBase {
 		mServerSocket.setSoTimeout(NetBase.theNetBase().config()
 				.getAsInt("net.timeout.granularity", 500));
 
-		mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, 0));
-		mDatagramSocket.setSoTimeout(NetBase.theNetBase().config()
-				.getAsInt("net.timeout.granularity", 500));
+		ConfigManager config = NetBase.theNetBase().config();
+		mSocketTimeout = config.getAsInt("net.timeout.socket", 5000);
+		mSessions = new BoundedExecutor(TAG, config.getAsInt("echoraw.server.workers", 8, 1),
+				config.getAsInt("echoraw.server.queuedepth", 16, 0),
+				config.getAsInt("echoraw.server.workers.virtual", 0) != 0);
+
+		final int granularity = config.getAsInt("net.timeout.granularity", 500);
+		mDatagramKey = DatagramChannels.open(new InetSocketAddress(serverIP, 0),
+				config.getAsInt("echoraw.server.udp.buffer", 4 << 20, 0));
+		final DatagramChannel channel = (DatagramChannel)mDatagramKey.channel();
 
 		Log.i(TAG, "Server socket = " + mServerSocket.getLocalSocketAddress());
 		Log.i(TAG,
-				"Datagram socket = " + mDatagramSocket.getLocalSocketAddress());
+				"Datagram socket = " + channel.socket().getLocalSocketAddress());
 
-		// Code/thread handling the UDP socket
+		// Code/thread handling the UDP channel.  Each wakeup, it echoes every datagram that has
+		// queued up since the last one, all through the same direct buffer.
 		Thread dgramThread = new Thread() {
 			public void run() {
-				byte buf[] = new byte[64 * 1024];
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
 
 				// Thread termination in this code is primitive. When shutdown()
 				// is called (by the
 				// application's main thread, so asynchronously to the threads
-				// just mentioned) it
-				// closes the sockets. This causes an exception on any thread
-				// trying to read from
-				// it, which is what provokes thread termination.
+				// just mentioned) the thread notices within granularity msec.,
+				// and closes the channel.
 				try {
 					while (!mAmShutdown) {
 						try {
-							mDatagramSocket.receive(packet);
-							if (packet.getLength() < HEADER_STR.length())
-								throw new Exception("Bad header: length = "
-										+ packet.getLength());
-							String headerStr = new String(buf, 0,
-									HEADER_STR.length());
-							if (!headerStr.equalsIgnoreCase(HEADER_STR))
-								throw new Exception("Bad header: got '"
-										+ headerStr + "', wanted '"
-										+ HEADER_STR + "'");
-							System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0,
-									buf, 0, HEADER_STR.length());
-							mDatagramSocket.send(new DatagramPacket(buf, packet
-									.getLength(), packet.getAddress(), packet
-									.getPort()));
-						} catch (SocketTimeoutException e) {
-							// socket timeout is normal
+							mDatagramKey.selector().select(granularity);
+							mDatagramKey.selector().selectedKeys().clear();
+							SocketAddress client;
+							while (!mAmShutdown && (client = channel.receive((ByteBuffer)buf.clear())) != null) {
+								buf.flip();
+								if (buf.remaining() < HEADER_LEN)
+									throw new Exception("Bad header: length = "
+											+ buf.remaining());
+								if (!_isHeader(buf))
+									throw new Exception("Bad header: got '"
+											+ _headerString(buf) + "', wanted '"
+											+ HEADER_STR + "'");
+								buf.put(RESPONSE_OKAY_BYTES).rewind();
+								DatagramChannels.send(mDatagramKey, buf, client, mSocketTimeout);
+							}
 						} catch (Exception e) {
 							Log.w(TAG, "Dgram reading thread caught "
 									+ e.getClass().getName() + " exception: "
@@ -112,80 +126,54 @@ public class EchoRawService extends EchoServiceBase {
 						}
 					}
 				} finally {
-					if (mDatagramSocket != null) {
-						mDatagramSocket.close();
-						mDatagramSocket = null;
-					}
+					DatagramChannels.close(mDatagramKey);
 				}
 			}
 		};
 		dgramThread.start();
 
-		// Code/thread handling the TCP socket
+		// Code/thread handling the TCP socket.  It only accepts connections; each
+		// client is served by one of mSessions' workers.
 		Thread tcpThread = new Thread() {
 
 			public void run() {
-				byte[] header = new byte[4];
-				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config()
-						.getAsInt("net.timeout.socket", 5000);
 				try {
 					while (!isShutdown()) {
-						Socket sock = null;
+						final Socket sock;
 						try {
 							// accept() blocks until a client connects. When it
 							// does, a new socket is created that communicates
 							// only
 							// with that client. That socket is returned.
 							sock = mServerSocket.accept();
-							// We're going to read from sock, to get the message
-							// to echo, but we can't risk a client mistake
-							// blocking us forever. So, arrange for the socket
-							// to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header. Either it gets here in one chunk
-							// or we ignore it. (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if (len != HEADER_STR.length())
-								throw new Exception("Bad header length: got "
-										+ len + " but wanted "
-										+ HEADER_STR.length());
-							String headerStr = new String(header);
-							if (!headerStr.equalsIgnoreCase(HEADER_STR))
-								throw new Exception("Bad header: got '"
-										+ headerStr + "' but wanted '"
-										+ HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-
-							// Now read and echo the payload.
-							// Keep reading until the client has closed its side
-							// of the connection
-							while ((len = is.read(buf)) >= 0)
-								os.write(buf, 0, len);
-
 						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client
-							// we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught "
-									+ e.getClass().getName() + " exception: "
-									+ e.getMessage());
-						} finally {
-							if (sock != null)
-								try {
-									sock.close();
-									sock = null;
-								} catch (Exception e) {
-								}
+							// normal: it's time to check for shutdown
+							continue;
+						} catch (IOException e) {
+							if (mServerSocket.isClosed())
+								throw e;
+							Log.i(TAG, "accept() failed: " + e.getMessage());
+							continue;
+						}
+						boolean accepted = mSessions.tryExecute(new Runnable() {
+							@Override
+							public void run() {
+								_serveTCP(sock);
+							}
+						});
+						if (!accepted) {
+							Log.i(TAG, "Too many sessions; refusing " + sock.getRemoteSocketAddress());
+							try {
+								sock.close();
+							} catch (Exception e) {
+							}
 						}
 					}
 				} catch (Exception e) {
 					Log.w(TAG, "TCP server thread exiting due to exception: "
 							+ e.getMessage());
 				} finally {
+					mSessions.shutdown();
 					if (mServerSocket != null)
 						try {
 							mServerSocket.close();
@@ -198,6 +186,75 @@ public class EchoRawService extends EchoServiceBase {
 		tcpThread.start();
 	}
 
+	/**
+	 * True if buf starts with HEADER_STR, ignoring case.  Only buf's contents are looked at.
+	 */
+	private static boolean _isHeader(ByteBuffer buf) {
+		for (int i = 0; i < HEADER_LEN; i++) {
+			if (Character.toLowerCase((char)buf.get(i)) != Character.toLowerCase(HEADER_STR.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static String _headerString(ByteBuffer buf) {
+		byte[] header = new byte[HEADER_LEN];
+		for (int i = 0; i < HEADER_LEN; i++)
+			header[i] = buf.get(i);
+		return new String(header);
+	}
+
+	/**
+	 * Echoes what the client on sock sends, once it has sent a valid header, until
+	 * it closes its side of the connection.  Runs on one of mSessions' workers.
+	 */
+	private void _serveTCP(Socket sock) {
+		byte[] header = new byte[4];
+		byte[] buf = new byte[1024];
+		try {
+			// We're going to read from sock, to get the message
+			// to echo, but we can't risk a client mistake
+			// blocking us forever. So, arrange for the socket
+			// to give up if no data arrives for a while.
+			sock.setSoTimeout(mSocketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header. Either it gets here in one chunk
+			// or we ignore it. (That's not exactly the
+			// spec, admittedly.)
+			int len = is.read(header);
+			if (len != HEADER_STR.length())
+				throw new Exception("Bad header length: got "
+						+ len + " but wanted "
+						+ HEADER_STR.length());
+			String headerStr = new String(header);
+			if (!headerStr.equalsIgnoreCase(HEADER_STR))
+				throw new Exception("Bad header: got '"
+						+ headerStr + "' but wanted '"
+						+ HEADER_STR + "'");
+			os.write(RESPONSE_OKAY_STR.getBytes());
+
+			// Now read and echo the payload.
+			// Keep reading until the client has closed its side
+			// of the connection
+			while ((len = is.read(buf)) >= 0)
+				os.write(buf, 0, len);
+
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client
+			// we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP thread caught "
+					+ e.getClass().getName() + " exception: "
+					+ e.getMessage());
+		} finally {
+			try {
+				sock.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
 	/**
 	 * This method is called when the entire infrastructure wants to terminate.
 	 * We set a flag indicating all threads should terminate. We then close the
@@ -225,10 +282,11 @@ public class EchoRawService extends EchoServiceBase {
 		else
 			sb.append("Not listening");
 		sb.append("\n\tUDP: ");
-		if (mDatagramSocket != null)
-			sb.append(mDatagramSocket.getLocalSocketAddress());
+		if (mDatagramKey != null)
+			sb.append(((DatagramChannel)mDatagramKey.channel()).socket().getLocalSocketAddress());
 		else
 			sb.append("Not listening");
+		sb.append("\nTCP sessions: ").append(mSessions);
 		return sb.toString();
 	}
 
@@ -41,13 +41,13 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 							// should really spawn a thread here, but the code is already complicated enough that we don't bother
 							TCPMessageHandler tcpMessageHandlerSocket = null;
 							try {
+								// one handler for the life of the connection: it may have buffered the start of the next message
+								tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+								tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+								tcpMessageHandlerSocket.setNoDelay(true);
 								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
 								// because it has timed out on the read
 								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									
 									String header = tcpMessageHandlerSocket.readMessageAsString();
 									if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
 										throw new Exception("Bad header: '" + header + "'");
@@ -0,0 +1,395 @@
+package edu.uw.cs.cse461.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Sends one reliable UDP transfer for DataXferRawService: xferSize bytes of zeroes, in sequence
+ * numbered packets of payloadSize bytes, resending whatever the client reports missing.
+ * <p>
+ * The transfer runs on its own socket, connected to the client, so the client's acks don't
+ * mix with requests arriving at the service's port.  The client learns the socket's address
+ * from the first data packet.  See DataXferRawService for the packet formats.
+ * <p>
+ * How much is sent is limited by a congestion window, in packets, that grows as acks arrive
+ * (doubling each round trip until the first loss, then by one packet per round trip) and is
+ * halved when a loss is detected, at most once per window.  A packet counts as lost once a
+ * packet sent after it has been acked and it still hasn't, allowing a quarter of a round trip for
+ * reordering.  If nothing is acked for two round trips, the newest outstanding packet is resent,
+ * to draw an ack that shows whether anything before it was lost.  If nothing is acked for a
+ * retransmission timeout, everything outstanding is resent and the window drops to two packets.
+ * Once a round trip time has been measured, sends are paced across the round trip rather than
+ * sent in bursts as acks arrive.
+ *
+ * @author zahorjan
+ *
+ */
+class ReliableUDPSender implements Runnable {
+	private static final String TAG = "ReliableUDPSender";
+
+	private static final long MIN_RTO = 10000000L;         // nsec.
+	private static final long MAX_RTO = 2000000000L;
+	private static final long MIN_PROBE_TIMEOUT = 1000000L;
+	private static final long WRITE_RETRY = 100000L;       // nsec. to wait when the socket buffer is full
+	private static final int MIN_WINDOW = 2;               // the client acks in order packets in pairs
+	private static final int PACING_BURST = 4;             // packets that may go out back to back
+	private static final double PACING_GAIN = 1.25;        // send a bit faster than cwnd/srtt, so pacing doesn't limit the window
+
+	// totals over all transfers, for dumpState()
+	static final LongAdder transfers = new LongAdder();
+	static final LongAdder abandoned = new LongAdder();
+	static final LongAdder packetsSent = new LongAdder();
+	static final LongAdder retransmits = new LongAdder();
+	static final LongAdder timeouts = new LongAdder();
+	static final LongAdder probes = new LongAdder();
+
+	private InetAddress mLocalAddress;
+	private SocketAddress mClient;
+	private long mNPackets;
+	private long mXferSize;
+	private int mPayloadSize;
+	private int mMaxWindow;
+	private long mGiveUpNanos;
+
+	private ByteBuffer mData;
+	private ByteBuffer mAck = ByteBuffer.allocate(DataXferRawService.RELIABLE_ACK_LEN).order(ByteOrder.LITTLE_ENDIAN);
+
+	// Packets between mCumAck and mNextSeq are outstanding.  Their state is kept in slot seq % mMaxWindow.
+	private long mCumAck = 0;              // every packet before this one has been acked
+	private long mNextSeq = 0;             // next packet not yet sent at all
+	private long[] mSentAt;
+	private int[] mTransmissions;
+	private boolean[] mSacked;
+	private boolean[] mLost;
+	private int mSackedCount = 0;
+	private int mLostCount = 0;
+	private ArrayDeque<Long> mResend = new ArrayDeque<Long>();   // may hold packets acked since they were queued
+
+	private double mCwnd;
+	private double mSsthresh = Double.MAX_VALUE;
+	private long mRecoveryPoint = 0;       // no further window cuts until this packet is acked
+	private long mSrtt = 0;                // nsec.; 0 until there's a sample
+	private long mRttVar = 0;
+	private long mRto;
+	private long mRtoDeadline = Long.MAX_VALUE;
+	private long mProbeDeadline = Long.MAX_VALUE;
+	private long mDeliveredSentAt = 0;     // when the most recently sent of the acked packets was sent
+	private long mNextSendTime = 0;
+	private long mLastProgress;
+
+	/**
+	 * @param localAddress The address to send from.
+	 * @param client Where the request came from.
+	 * @param initialWindow Packets that may be outstanding before the first ack arrives.
+	 * @param maxWindow Most packets ever outstanding, at most DataXferRawService.RELIABLE_ACK_BITS.
+	 * @param giveUpMsec How long to keep trying without hearing from the client.
+	 */
+	ReliableUDPSender(InetAddress localAddress, SocketAddress client, long xferSize, int payloadSize,
+			int initialWindow, int maxWindow, int giveUpMsec) {
+		mLocalAddress = localAddress;
+		mClient = client;
+		mXferSize = xferSize;
+		mPayloadSize = payloadSize;
+		mNPackets = (xferSize + payloadSize - 1) / payloadSize;
+		mMaxWindow = Math.min(maxWindow, DataXferRawService.RELIABLE_ACK_BITS);
+		mCwnd = Math.max(MIN_WINDOW, Math.min(initialWindow, mMaxWindow));
+		mGiveUpNanos = giveUpMsec * 1000000L;
+		mRto = Math.max(MIN_RTO, Math.min(1000000000L, mGiveUpNanos / 4));
+		mSentAt = new long[mMaxWindow];
+		mTransmissions = new int[mMaxWindow];
+		mSacked = new boolean[mMaxWindow];
+		mLost = new boolean[mMaxWindow];
+	}
+
+	@Override
+	public void run() {
+		transfers.increment();
+		DatagramChannel channel = null;
+		Selector selector = null;
+		try {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(mLocalAddress, 0));
+			channel.connect(mClient);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			// payloads are all zeroes, so only the header part of this changes from packet to packet
+			mData = ByteBuffer.allocateDirect(DataXferRawService.RELIABLE_DATA_HEADER_LEN + mPayloadSize).order(ByteOrder.LITTLE_ENDIAN);
+			mData.put(DataXferRawService.RELIABLE_DATA_BYTES);
+			if ( !_transfer(channel, selector) ) {
+				abandoned.increment();
+				Log.i(TAG, "Gave up on " + mClient + " after " + mCumAck + " of " + mNPackets + " packets were acked");
+			}
+		} catch (PortUnreachableException e) {
+			// the client has gone away, normally because it has everything and missed only our last retransmissions
+		} catch (IOException e) {
+			abandoned.increment();
+			Log.i(TAG, "Transfer to " + mClient + " failed: " + e.getMessage());
+		} finally {
+			try {
+				if ( selector != null ) selector.close();
+				if ( channel != null ) channel.close();
+			} catch (IOException e) {
+				// Do nothing.
+			}
+		}
+	}
+
+	/**
+	 * Sends until every packet has been acked.
+	 * @return False if the client stopped acking.
+	 */
+	private boolean _transfer(DatagramChannel channel, Selector selector) throws IOException {
+		mLastProgress = System.nanoTime();
+		while ( mCumAck < mNPackets ) {
+			long now = System.nanoTime();
+			while ( channel.read(mAck) > 0 ) {
+				_onAck(now);
+				mAck.clear();
+			}
+			if ( mCumAck == mNPackets ) break;
+			if ( now - mLastProgress > mGiveUpNanos ) return false;
+			if ( now >= mRtoDeadline ) _onTimeout(now);
+			else if ( now >= mProbeDeadline ) _probe(channel, now);
+
+			long wait = Math.min(_send(channel, now), Math.min(mRtoDeadline, mProbeDeadline) - now);
+			if ( wait >= 1000000L ) {
+				selector.select(Math.min(wait, mGiveUpNanos) / 1000000L);
+				selector.selectedKeys().clear();
+			} else if ( wait > 0 ) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends resends and then new packets as far as the window and pacing allow.
+	 * @return How long until there might be something more to send, in nsec., or Long.MAX_VALUE if that waits on an ack.
+	 */
+	private long _send(DatagramChannel channel, long now) throws IOException {
+		long gap = mSrtt == 0 ? 0 : (long)(mSrtt / (mCwnd * PACING_GAIN));
+		while ( true ) {
+			if ( _pipe() >= (long)mCwnd ) return Long.MAX_VALUE;
+			// drop resends for packets acked since they were queued
+			while ( !mResend.isEmpty() && !_isLost(mResend.peekFirst()) ) mResend.pollFirst();
+			boolean resend = !mResend.isEmpty();
+			long seq;
+			if ( resend ) seq = mResend.peekFirst();
+			else if ( mNextSeq < mNPackets && mNextSeq - mCumAck < mMaxWindow ) seq = mNextSeq;
+			else return Long.MAX_VALUE;
+			if ( now < mNextSendTime ) return mNextSendTime - now;
+
+			if ( !_sendPacket(channel, seq, now) ) return WRITE_RETRY;
+			if ( resend ) {
+				mResend.pollFirst();
+				mLost[_slot(seq)] = false;
+				mLostCount--;
+				retransmits.increment();
+			} else {
+				mNextSeq++;
+			}
+			if ( mRtoDeadline == Long.MAX_VALUE ) _armTimers(now);
+			mNextSendTime = Math.max(mNextSendTime, now - PACING_BURST * gap) + gap;
+		}
+	}
+
+	/**
+	 * Writes packet seq.
+	 * @return False if the socket's send buffer is full.
+	 */
+	private boolean _sendPacket(DatagramChannel channel, long seq, long now) throws IOException {
+		int slot = _slot(seq);
+		if ( seq == mNextSeq ) {
+			mTransmissions[slot] = 0;
+			mSacked[slot] = false;
+			mLost[slot] = false;
+		}
+		int size = (int)Math.min(mPayloadSize, mXferSize - seq * mPayloadSize);
+		mData.clear();
+		mData.putLong(4, seq).putInt(12, mTransmissions[slot] + 1);
+		mData.limit(DataXferRawService.RELIABLE_DATA_HEADER_LEN + size);
+		if ( channel.write(mData) == 0 ) return false;
+		mTransmissions[slot]++;
+		mSentAt[slot] = now;
+		packetsSent.increment();
+		return true;
+	}
+
+	/**
+	 * Handles the ack in mAck: a cumulative ack, and a bitmap of the packets received beyond it.
+	 */
+	private void _onAck(long now) {
+		mAck.flip();
+		if ( mAck.remaining() < DataXferRawService.RELIABLE_ACK_LEN ) return;
+		for ( int i = 0; i < 4; i++ ) {
+			if ( mAck.get(i) != DataXferRawService.RELIABLE_ACK_BYTES[i] ) return;
+		}
+		long cum = mAck.getLong(4);
+		if ( cum < mCumAck || cum > mNextSeq ) return;   // stale, or nonsense
+
+		long newestSentAt = 0;      // send time of the newest packet this ack covers, sent only once
+		int newlyAcked = 0;
+		for ( long seq = mCumAck; seq < cum; seq++ ) {
+			int slot = _slot(seq);
+			if ( mSacked[slot] ) {
+				mSackedCount--;
+				continue;
+			}
+			if ( mLost[slot] ) {
+				mLost[slot] = false;
+				mLostCount--;
+			}
+			newlyAcked++;
+			mDeliveredSentAt = Math.max(mDeliveredSentAt, mSentAt[slot]);
+			if ( mTransmissions[slot] == 1 ) newestSentAt = Math.max(newestSentAt, mSentAt[slot]);
+		}
+		mCumAck = cum;
+		for ( int bit = 0; bit < DataXferRawService.RELIABLE_ACK_BITS; bit++ ) {
+			long seq = cum + 1 + bit;
+			if ( seq >= mNextSeq ) break;
+			if ( (mAck.get(12 + bit / 8) & (1 << (bit % 8))) == 0 ) continue;
+			int slot = _slot(seq);
+			if ( mSacked[slot] ) continue;
+			mSacked[slot] = true;
+			mSackedCount++;
+			if ( mLost[slot] ) {
+				mLost[slot] = false;
+				mLostCount--;
+			}
+			newlyAcked++;
+			mDeliveredSentAt = Math.max(mDeliveredSentAt, mSentAt[slot]);
+			if ( mTransmissions[slot] == 1 ) newestSentAt = Math.max(newestSentAt, mSentAt[slot]);
+		}
+		if ( newlyAcked == 0 ) return;
+
+		mLastProgress = now;
+		if ( newestSentAt > 0 ) _sampleRtt(now - newestSentAt);
+		_armTimers(now);
+		if ( mCumAck >= mRecoveryPoint ) {
+			if ( mCwnd < mSsthresh ) mCwnd += newlyAcked;
+			else mCwnd += newlyAcked / mCwnd;
+			mCwnd = Math.min(mCwnd, mMaxWindow);
+		}
+		if ( mSackedCount > 0 ) _detectLosses();
+	}
+
+	/**
+	 * Queues for resending every outstanding packet that was sent more than a reordering window before
+	 * a packet that has been acked.  The first loss in a window halves it.
+	 */
+	private void _detectLosses() {
+		long lostBefore = mDeliveredSentAt - mSrtt / 4;
+		boolean found = false;
+		for ( long seq = mCumAck; seq < mNextSeq; seq++ ) {
+			int slot = _slot(seq);
+			if ( mSacked[slot] || mLost[slot] || mSentAt[slot] >= lostBefore ) continue;
+			_markLost(seq);
+			found = true;
+		}
+		if ( found && mCumAck >= mRecoveryPoint ) {
+			mSsthresh = Math.max(mCwnd / 2, MIN_WINDOW);
+			mCwnd = mSsthresh;
+			mRecoveryPoint = mNextSeq;
+		}
+	}
+
+	/**
+	 * Nothing has been acked for a retransmission timeout: resend everything outstanding, starting
+	 * again from a window of MIN_WINDOW packets (the client acks in pairs), and back off the timeout.
+	 */
+	private void _onTimeout(long now) {
+		timeouts.increment();
+		for ( long seq = mCumAck; seq < mNextSeq; seq++ ) {
+			int slot = _slot(seq);
+			if ( !mSacked[slot] && !mLost[slot] ) _markLost(seq);
+		}
+		mSsthresh = Math.max(mCwnd / 2, MIN_WINDOW);
+		mCwnd = MIN_WINDOW;
+		mRecoveryPoint = mNextSeq;
+		mRto = Math.min(MAX_RTO, mRto * 2);
+		mRtoDeadline = now + mRto;
+		mProbeDeadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Nothing has been acked for two round trips, though there are packets outstanding.  The window
+	 * may be full of packets that made it but whose ack was lost or is being held back by the client
+	 * until a second packet arrives, or the newest packets may have been lost, with nothing sent after
+	 * them to show it.  Either way, resending the newest outstanding packet gets an ack, which in the
+	 * second case lets the losses be found without waiting for the retransmission timeout.
+	 */
+	private void _probe(DatagramChannel channel, long now) throws IOException {
+		mProbeDeadline = Long.MAX_VALUE;
+		for ( long seq = mNextSeq - 1; seq >= mCumAck; seq-- ) {
+			if ( mSacked[_slot(seq)] ) continue;
+			if ( _sendPacket(channel, seq, now) ) probes.increment();
+			return;
+		}
+	}
+
+	/**
+	 * Sets the retransmission and probe timeouts running from now, or stops them if nothing is outstanding.
+	 */
+	private void _armTimers(long now) {
+		if ( mCumAck == mNextSeq ) {
+			mRtoDeadline = Long.MAX_VALUE;
+			mProbeDeadline = Long.MAX_VALUE;
+			return;
+		}
+		mRtoDeadline = now + mRto;
+		mProbeDeadline = mSrtt == 0 ? Long.MAX_VALUE : now + Math.max(MIN_PROBE_TIMEOUT, 2 * mSrtt);
+	}
+
+	private void _markLost(long seq) {
+		mLost[_slot(seq)] = true;
+		mLostCount++;
+		mResend.addLast(seq);
+	}
+
+	private boolean _isLost(long seq) {
+		return seq >= mCumAck && mLost[_slot(seq)];
+	}
+
+	// Packets thought to be in the network: sent, and neither acked nor given up on
+	private long _pipe() {
+		return mNextSeq - mCumAck - mSackedCount - mLostCount;
+	}
+
+	// Round trip estimate and retransmission timeout, as in RFC 6298
+	private void _sampleRtt(long rtt) {
+		if ( mSrtt == 0 ) {
+			mSrtt = Math.max(1, rtt);
+			mRttVar = rtt / 2;
+		} else {
+			mRttVar += (Math.abs(mSrtt - rtt) - mRttVar) / 4;
+			mSrtt = Math.max(1, mSrtt + (rtt - mSrtt) / 8);
+		}
+		mRto = Math.max(MIN_RTO, Math.min(MAX_RTO, mSrtt + 4 * mRttVar));
+	}
+
+	private int _slot(long seq) {
+		return (int)(seq % mMaxWindow);
+	}
+
+	/**
+	 * Totals over all reliable transfers.
+	 */
+	static String totals() {
+		return "Reliable UDP: " + transfers.sum() + " transfers (" + abandoned.sum() + " abandoned), " +
+				packetsSent.sum() + " packets sent, " + retransmits.sum() + " retransmitted, " + probes.sum() + " tail probes, " + timeouts.sum() + " timeouts";
+	}
+}
@@ -0,0 +1,215 @@
+package edu.uw.cs.cse461.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed number of worker threads, holding at most a fixed number of
+ * tasks waiting for a worker.  A task offered when that queue is full is refused
+ * (tryExecute() returns false) rather than queued, so callers can fail fast under load.
+ * <p>
+ * If virtual threads are requested and the JVM provides them, each task runs on its own
+ * virtual thread, but no more than nThreads of them run at once.  Otherwise a
+ * conventional pool of platform threads is used.
+ * <p>
+ * Waiting tasks normally run in the order they were offered.  setLastInFirstOut() reverses
+ * that, so that under overload the newest tasks, whose submitters are most likely still
+ * waiting for them, run first.  Only the platform thread implementation supports it.
+ *
+ * @author zahorjan
+ *
+ */
+public class BoundedExecutor {
+	private static final String TAG="BoundedExecutor";
+
+	private String mName;
+	private int mNThreads;
+	private int mQueueDepth;
+
+	// platform thread implementation
+	private ThreadPoolExecutor mPool;
+	private ReversibleQueue mQueue;     // null if tasks aren't queued
+
+	// virtual thread implementation
+	private ThreadFactory mVirtualFactory;
+	private Semaphore mAdmitted;      // workers plus queue slots
+	private Semaphore mRunning;       // workers
+	private AtomicInteger mNActive = new AtomicInteger();
+	private AtomicInteger mNQueued = new AtomicInteger();
+	private volatile boolean mIsShutdown = false;
+
+	/**
+	 * @param name Used to name worker threads.
+	 * @param nThreads Maximum number of tasks that run concurrently.
+	 * @param queueDepth Maximum number of tasks waiting to run.
+	 * @param useVirtualThreads Run tasks on virtual threads, if the JVM supports them.
+	 */
+	public BoundedExecutor(final String name, int nThreads, int queueDepth, boolean useVirtualThreads) {
+		mName = name;
+		mNThreads = Math.max(1, nThreads);
+		mQueueDepth = Math.max(0, queueDepth);
+
+		if ( useVirtualThreads ) {
+			mVirtualFactory = _virtualThreadFactory(name);
+			if ( mVirtualFactory == null ) Log.w(TAG, name + ": virtual threads not supported by this JVM.  Using platform threads.");
+		}
+
+		if ( mVirtualFactory != null ) {
+			mAdmitted = new Semaphore(mNThreads + mQueueDepth);
+			mRunning = new Semaphore(mNThreads);
+		} else {
+			final AtomicInteger threadNum = new AtomicInteger();
+			if ( mQueueDepth > 0 ) mQueue = new ReversibleQueue(mQueueDepth);
+			mPool = new ThreadPoolExecutor(mNThreads, mNThreads, 0L, TimeUnit.MILLISECONDS,
+					mQueue != null ? mQueue : new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name + "-" + threadNum.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	/**
+	 * A bounded queue that workers take from either its head or its tail.
+	 */
+	private static class ReversibleQueue extends LinkedBlockingDeque<Runnable> {
+		private static final long serialVersionUID = 1L;
+		private volatile boolean mIsLIFO = false;
+
+		ReversibleQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException {
+			return mIsLIFO ? takeLast() : takeFirst();
+		}
+
+		@Override
+		public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return mIsLIFO ? pollLast(timeout, unit) : pollFirst(timeout, unit);
+		}
+
+		@Override
+		public Runnable poll() {
+			return mIsLIFO ? pollLast() : pollFirst();
+		}
+	}
+
+	/**
+	 * Returns a factory for virtual threads, or null if this JVM doesn't have them.
+	 * Reflection keeps this class compilable on JVMs that predate them.
+	 */
+	private static ThreadFactory _virtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the task on a worker if one is free, or queues it if there's room.
+	 * @return false if the queue is full (or the executor has been shut down), in which case the task will never run.
+	 */
+	public boolean tryExecute(final Runnable task) {
+		if ( mPool != null ) {
+			try {
+				mPool.execute(task);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		}
+
+		if ( mIsShutdown || !mAdmitted.tryAcquire() ) return false;
+		mNQueued.incrementAndGet();
+		Thread t = mVirtualFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mRunning.acquireUninterruptibly();
+					mNQueued.decrementAndGet();
+					mNActive.incrementAndGet();
+					try {
+						task.run();
+					} finally {
+						mNActive.decrementAndGet();
+						mRunning.release();
+					}
+				} finally {
+					mAdmitted.release();
+				}
+			}
+		});
+		t.start();
+		return true;
+	}
+
+	/**
+	 * Number of tasks currently running.
+	 */
+	public int activeCount() {
+		return mPool != null ? mPool.getActiveCount() : mNActive.get();
+	}
+
+	/**
+	 * Number of tasks waiting for a worker.
+	 */
+	public int queuedCount() {
+		return mPool != null ? mPool.getQueue().size() : mNQueued.get();
+	}
+
+	public int maxThreads() {
+		return mNThreads;
+	}
+
+	public int maxQueueDepth() {
+		return mQueueDepth;
+	}
+
+	public boolean usesVirtualThreads() {
+		return mVirtualFactory != null;
+	}
+
+	/**
+	 * Sets whether the most recently queued task runs next, rather than the one that has waited longest.
+	 * Ignored when tasks run on virtual threads, or aren't queued at all.
+	 */
+	public void setLastInFirstOut(boolean lifo) {
+		if ( mQueue != null ) mQueue.mIsLIFO = lifo;
+	}
+
+	public boolean isLastInFirstOut() {
+		return mQueue != null && mQueue.mIsLIFO;
+	}
+
+	/**
+	 * Stops accepting tasks.  Tasks already running are allowed to finish.
+	 */
+	public void shutdown() {
+		mIsShutdown = true;
+		if ( mPool != null ) mPool.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return mName + ": " + activeCount() + " active of " + mNThreads + (usesVirtualThreads() ? " virtual" : "") +
+				" workers, " + queuedCount() + " queued (max " + mQueueDepth + (isLastInFirstOut() ? ", newest first" : "") + ")";
+	}
+}
@@ -0,0 +1,211 @@
+package edu.uw.cs.cse461.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers, shared by everything in the process.
+ * <p>
+ * Buffers come in power of two size classes, from 512 bytes to 1MB.  acquire() hands out
+ * a buffer from the smallest class that fits, and release() returns it for reuse.  Each
+ * thread keeps a few buffers of each class for itself, so the common case of a thread
+ * acquiring and releasing the same size over and over touches no shared state.  Virtual
+ * threads, which typically live for a single task, skip that and use the shared buffers.  Requests
+ * bigger than the largest class are satisfied with a new buffer that isn't pooled.
+ * <p>
+ * A buffer must be released at most once, and not used after it has been released.
+ * In debug mode (setDebug(true)), the pool remembers where each outstanding buffer was
+ * acquired, complains about buffers released twice or not acquired from the pool, and
+ * reportLeaks() logs the buffers that haven't been released.
+ * <p>
+ * Like Log, this class is used statically.
+ *
+ * @author zahorjan
+ *
+ */
+public class BufferPool {
+	private static final String TAG="BufferPool";
+
+	private static final int MIN_SHIFT = 9;              // smallest class is 512 bytes
+	private static final int MAX_SHIFT = 20;             // largest class is 1MB
+	private static final int NCLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	/** The largest size acquire() hands out from the pool.  Anything bigger is a new, unpooled buffer. */
+	public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+	private static final int THREAD_CACHE_SIZE = 8;      // buffers of each class a thread keeps for itself
+	private static final int SHARED_CACHE_SIZE = 64;     // buffers of each class kept for any thread
+
+	// Each thread's cache, one deque per size class; null for virtual threads, which use the shared buffers.
+	// Whether a thread is virtual is worked out once, the first time it uses the pool.
+	private static ThreadLocal<List<ArrayDeque<ByteBuffer>>> mThreadCache = new ThreadLocal<List<ArrayDeque<ByteBuffer>>>() {
+		@Override
+		protected List<ArrayDeque<ByteBuffer>> initialValue() {
+			if ( _isVirtual(Thread.currentThread()) ) return null;
+			List<ArrayDeque<ByteBuffer>> cache = new ArrayList<ArrayDeque<ByteBuffer>>(NCLASSES);
+			for ( int i = 0; i < NCLASSES; i++ ) cache.add(new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE));
+			return cache;
+		}
+	};
+
+	// Thread.isVirtual(), or null if this JVM has no virtual threads.  Reflection keeps this class
+	// compilable on JVMs that predate them.
+	private static final Method IS_VIRTUAL = _isVirtualMethod();
+
+	private static List<ConcurrentLinkedQueue<ByteBuffer>> mShared = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(NCLASSES);
+	private static AtomicInteger[] mSharedCount = new AtomicInteger[NCLASSES];
+	static {
+		for ( int i = 0; i < NCLASSES; i++ ) {
+			mShared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			mSharedCount[i] = new AtomicInteger();
+		}
+	}
+
+	private static AtomicLong mNAcquired = new AtomicLong();
+	private static AtomicLong mNReleased = new AtomicLong();
+	private static AtomicLong mNAllocated = new AtomicLong();
+
+	private static volatile boolean mDebug = false;
+	// debug mode only: where each outstanding buffer was acquired
+	private static Map<ByteBuffer, Throwable> mOutstanding = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>());
+
+	/**
+	 * Turns debug mode on or off.  Buffers acquired while debug mode is off aren't tracked.
+	 * @return The previous setting.
+	 */
+	static public boolean setDebug(boolean debug) {
+		boolean old = mDebug;
+		mDebug = debug;
+		if ( !debug ) mOutstanding.clear();
+		return old;
+	}
+
+	private static Method _isVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	// Whether t is a virtual thread.  If that can't be determined, it's treated as a platform thread.
+	private static boolean _isVirtual(Thread t) {
+		if ( IS_VIRTUAL == null ) return false;
+		try {
+			return (Boolean)IS_VIRTUAL.invoke(t);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	// The calling thread's cache of buffers of the given class, or null if it's a virtual thread
+	private static ArrayDeque<ByteBuffer> _threadCache(int sizeClass) {
+		List<ArrayDeque<ByteBuffer>> cache = mThreadCache.get();
+		return cache == null ? null : cache.get(sizeClass);
+	}
+
+	// The size class for buffers of the given size, or -1 if they're too big to pool
+	private static int _sizeClass(int size) {
+		if ( size <= (1 << MIN_SHIFT) ) return 0;
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+	}
+
+	/**
+	 * Returns a big endian direct buffer with position 0 and limit size.  Its capacity may be larger
+	 * than size.  Its contents are whatever was left in it by its last user.
+	 */
+	static public ByteBuffer acquire(int size) {
+		if ( size < 0 ) throw new IllegalArgumentException("Negative buffer size " + size);
+		mNAcquired.incrementAndGet();
+		int sizeClass = _sizeClass(size);
+		ByteBuffer buf = null;
+		if ( sizeClass >= 0 ) {
+			ArrayDeque<ByteBuffer> local = _threadCache(sizeClass);
+			if ( local != null ) buf = local.pollFirst();
+			if ( buf == null ) {
+				buf = mShared.get(sizeClass).poll();
+				if ( buf != null ) mSharedCount[sizeClass].decrementAndGet();
+			}
+		}
+		if ( buf == null ) {
+			mNAllocated.incrementAndGet();
+			buf = ByteBuffer.allocateDirect(sizeClass >= 0 ? 1 << (sizeClass + MIN_SHIFT) : size);
+		}
+		buf.clear();
+		buf.limit(size);
+		buf.order(ByteOrder.BIG_ENDIAN);
+		if ( mDebug ) mOutstanding.put(buf, new Throwable("acquired by " + Thread.currentThread().getName()));
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer obtained from acquire() to the pool.  Releasing null does nothing.
+	 */
+	static public void release(ByteBuffer buf) {
+		if ( buf == null ) return;
+		if ( mDebug && mOutstanding.remove(buf) == null ) {
+			Log.e(TAG, "Buffer released twice, or not acquired from the pool: " + buf);
+			return;
+		}
+		mNReleased.incrementAndGet();
+		if ( !buf.isDirect() || Integer.bitCount(buf.capacity()) != 1 ) return;
+		int sizeClass = _sizeClass(buf.capacity());
+		if ( sizeClass < 0 ) return;
+
+		ArrayDeque<ByteBuffer> local = _threadCache(sizeClass);
+		if ( local != null && local.size() < THREAD_CACHE_SIZE ) {
+			local.addFirst(buf);
+		} else if ( mSharedCount[sizeClass].incrementAndGet() <= SHARED_CACHE_SIZE ) {
+			mShared.get(sizeClass).add(buf);
+		} else {
+			// pool is full; let the garbage collector have it
+			mSharedCount[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * The number of buffers acquired but not yet released.  Outside of debug mode, this is just
+	 * the number of acquire() calls less the number of release() calls.
+	 */
+	static public long outstanding() {
+		if ( mDebug ) return mOutstanding.size();
+		return mNAcquired.get() - mNReleased.get();
+	}
+
+	/**
+	 * In debug mode, logs each buffer that hasn't been released and where it was acquired.
+	 * @return The number of buffers reported.
+	 */
+	static public int reportLeaks() {
+		if ( !mDebug ) return 0;
+		List<Throwable> sites;
+		synchronized(mOutstanding) {
+			sites = new ArrayList<Throwable>(mOutstanding.values());
+		}
+		for ( Throwable site : sites ) {
+			StringWriter trace = new StringWriter();
+			site.printStackTrace(new PrintWriter(trace));
+			Log.w(TAG, "Unreleased buffer " + trace);
+		}
+		return sites.size();
+	}
+
+	/**
+	 * A one line summary of pool activity.
+	 */
+	static public String stats() {
+		return "BufferPool: " + mNAcquired.get() + " acquired, " + mNReleased.get() + " released, " +
+				mNAllocated.get() + " allocated, " + outstanding() + " outstanding" + (mDebug ? " (debug)" : "");
+	}
+}
@@ -0,0 +1,117 @@
+package edu.uw.cs.cse461.util;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Helpers for the raw UDP services, which serve each port from one non-blocking DatagramChannel
+ * and a Selector of their own.  On each wakeup, a service drains every datagram queued on the
+ * channel, and it sends as many as the socket's send buffer takes before waiting for room, so
+ * a wakeup and its select() are paid per batch rather than per datagram.  Datagrams are read into
+ * and sent from direct buffers that the service reuses, so nothing is allocated or copied per
+ * datagram on the Java side.
+ * <p>
+ * The JDK has no way to hand the kernel several datagrams in one call (as sendmmsg() and
+ * recvmmsg() do), or to have it split one large buffer into datagrams (UDP GSO), so each datagram
+ * is still one system call.  Large socket buffers at least let a burst be queued, rather than
+ * dropped, while the thread is busy.
+ * <p>
+ * Like Log, this class is used statically.
+ *
+ * @author zahorjan
+ *
+ */
+public class DatagramChannels {
+
+	/**
+	 * Opens a non-blocking channel bound to local, and registers it with a new Selector for reading.
+	 * @param bufferSize The send and receive buffer size to ask for, in bytes, or 0 to leave the defaults.
+	 *                   The OS may give less (on Linux, at most net.core.wmem_max and rmem_max).
+	 * @return The channel's key; key.channel() and key.selector() give the channel and selector.
+	 */
+	public static SelectionKey open(SocketAddress local, int bufferSize) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			if ( bufferSize > 0 ) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+			}
+			channel.bind(local);
+			channel.configureBlocking(false);
+			return channel.register(Selector.open(), SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends buf's remaining bytes to target as one datagram, waiting up to timeout msec. for room
+	 * in the socket's send buffer if it's full.
+	 * @param key A key returned by open().  It's left registered for reading.
+	 * @throws SocketTimeoutException If there's still no room after timeout msec.
+	 */
+	public static void send(SelectionKey key, ByteBuffer buf, SocketAddress target, long timeout) throws IOException {
+		DatagramChannel channel = (DatagramChannel)key.channel();
+		while ( channel.send(buf, target) == 0 ) {
+			key.interestOps(SelectionKey.OP_WRITE);
+			try {
+				int n = key.selector().select(timeout);
+				key.selector().selectedKeys().clear();
+				if ( n == 0 ) throw new SocketTimeoutException("No room to send to " + target + " for " + timeout + " msec.");
+			} finally {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * Registers key's channel with a new Selector, so that a thread other than the one serving key
+	 * can send() on the channel while that one goes on reading from it.
+	 * @return A key for the new registration, to be let go of with release().
+	 */
+	public static SelectionKey share(SelectionKey key) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			return key.channel().register(selector, 0);
+		} catch (IOException e) {
+			selector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the selector of a key returned by share(), leaving its channel open.
+	 */
+	public static void release(SelectionKey key) {
+		if ( key == null ) return;
+		try {
+			key.selector().close();
+		} catch (IOException e) {
+			// Do nothing.
+		}
+	}
+
+	/**
+	 * Closes key's channel and selector.
+	 */
+	public static void close(SelectionKey key) {
+		if ( key == null ) return;
+		try {
+			key.selector().close();
+		} catch (IOException e) {
+			// Do nothing.
+		}
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// Do nothing.
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package edu.uw.cs.cse461.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, cheap enough to record into on every call from many threads at once.
+ * <p>
+ * Values are recorded in microseconds into log-linear buckets, in the style of HdrHistogram:
+ * each power of two is split into SUB_BUCKETS equal buckets, so a reported percentile is within
+ * about 3% of the true value however large it is.  Values from 0 to about 25 days are tracked.
+ * <p>
+ * Counts are striped: each thread records into one of several arrays, chosen by its id, so
+ * threads recording at the same time rarely contend for the same cache lines.  Reading the
+ * histogram (snapshot()) sums the stripes.  A snapshot taken while values are being recorded
+ * may be missing some of them, but never includes anything that wasn't recorded.
+ *
+ * @author zahorjan
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;          // values up to 2^41 usec
+	private static final int N_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	private static final int SUM_INDEX = N_BUCKETS;       // each stripe ends with the sum and max of its values
+	private static final int MAX_INDEX = N_BUCKETS + 1;
+	private static final int STRIPE_LENGTH = N_BUCKETS + 2;
+	private static final int MAX_STRIPES = 8;
+
+	private AtomicLongArray[] mStripes;
+	private int mStripeMask;
+
+	public LatencyHistogram() {
+		int nStripes = 1;
+		while ( nStripes < Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()) ) nStripes <<= 1;
+		mStripes = new AtomicLongArray[nStripes];
+		for ( int i = 0; i < nStripes; i++ ) mStripes[i] = new AtomicLongArray(STRIPE_LENGTH);
+		mStripeMask = nStripes - 1;
+	}
+
+	/**
+	 * Records one value, given in nanoseconds.  Negative values are recorded as 0.
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+
+	/**
+	 * Records one value, given in microseconds.  Negative values are recorded as 0.
+	 */
+	public void record(long usec) {
+		if ( usec < 0 ) usec = 0;
+		AtomicLongArray stripe = mStripes[(int)Thread.currentThread().getId() & mStripeMask];
+		stripe.incrementAndGet(_bucket(usec));
+		stripe.addAndGet(SUM_INDEX, usec);
+		long max;
+		while ( usec > (max = stripe.get(MAX_INDEX)) && !stripe.compareAndSet(MAX_INDEX, max, usec) ) { }
+	}
+
+	// Values below SUB_BUCKETS each get their own bucket; above that, each power of two gets SUB_BUCKETS buckets
+	private static int _bucket(long usec) {
+		if ( usec < SUB_BUCKETS ) return (int)usec;
+		int exponent = 63 - Long.numberOfLeadingZeros(usec);
+		if ( exponent > MAX_EXPONENT ) return N_BUCKETS - 1;
+		int subBucket = (int)(usec >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// The midpoint of the values that fall in bucket
+	private static long _bucketValue(int bucket) {
+		if ( bucket < SUB_BUCKETS ) return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long low = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+		return low + width / 2;
+	}
+
+	/**
+	 * Returns the histogram's current contents.
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[N_BUCKETS];
+		long sum = 0;
+		long max = 0;
+		for ( AtomicLongArray stripe : mStripes ) {
+			for ( int i = 0; i < N_BUCKETS; i++ ) counts[i] += stripe.get(i);
+			sum += stripe.get(SUM_INDEX);
+			max = Math.max(max, stripe.get(MAX_INDEX));
+		}
+		return new Snapshot(counts, sum, max);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * An unchanging copy of a histogram's contents.  All values are in microseconds.
+	 */
+	public static class Snapshot {
+		private long[] mCounts;
+		private long mCount;
+		private long mSum;
+		private long mMax;
+
+		private Snapshot(long[] counts, long sum, long max) {
+			mCounts = counts;
+			for ( long count : counts ) mCount += count;
+			mSum = sum;
+			mMax = max;
+		}
+
+		public long count() {
+			return mCount;
+		}
+
+		public double mean() {
+			return mCount == 0 ? 0.0 : (double)mSum / mCount;
+		}
+
+		public long max() {
+			return mMax;
+		}
+
+		/**
+		 * The value at or below which the given fraction of recorded values fall.
+		 * @param fraction Between 0 and 1; 0.99 for the 99th percentile, for instance.
+		 * @return The value, or 0 if nothing has been recorded.
+		 */
+		public long percentile(double fraction) {
+			if ( mCount == 0 ) return 0;
+			long rank = (long)Math.ceil(fraction * mCount);
+			if ( rank < 1 ) rank = 1;
+			long seen = 0;
+			for ( int i = 0; i < mCounts.length; i++ ) {
+				seen += mCounts[i];
+				if ( seen >= rank ) return Math.min(_bucketValue(i), mMax);
+			}
+			return mMax;
+		}
+
+		/**
+		 * Summarizes the snapshot, with values in microseconds, as
+		 * [n=count mean=... p50=... p99=... p999=... max=...]
+		 */
+		@Override
+		public String toString() {
+			return String.format("[n=%d mean=%.1f p50=%d p99=%d p999=%d max=%d]",
+					mCount, mean(), percentile(0.5), percentile(0.99), percentile(0.999), mMax);
+		}
+	}
+}